@@ -27,15 +27,24 @@ import org.apache.zookeeper.KeeperException;
 import java.io.IOException;
 
 public class Application {
+    // Runs the workers as tasks in this JVM instead of a process each
+    private static final String IN_JVM_ARGUMENT = "--in-jvm";
+
     public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
-        if (args.length != 2) {
-            System.out.println("Expecting parameters <number of workers> <path to worker jar file>");
+        if (args.length != 2 && args.length != 3) {
+            System.out.println("Expecting parameters <number of workers> <path to worker jar file> [<number of standby workers> | " + IN_JVM_ARGUMENT + "]");
             System.exit(1);
         }
 
         int numberOfWorkers = Integer.parseInt(args[0]);
         String pathToWorkerProgram = args[1];
-        Autohealer autohealer = new Autohealer(numberOfWorkers, pathToWorkerProgram);
+        Autohealer autohealer;
+        if (args.length == 3 && args[2].equals(IN_JVM_ARGUMENT)) {
+            autohealer = Autohealer.inJvm(numberOfWorkers, pathToWorkerProgram);
+        } else {
+            int numberOfStandbyWorkers = args.length == 3 ? Integer.parseInt(args[2]) : 0;
+            autohealer = new Autohealer(numberOfWorkers, pathToWorkerProgram, numberOfStandbyWorkers);
+        }
         autohealer.connectToZookeeper();
         autohealer.startWatchingWorkers();
         autohealer.run();
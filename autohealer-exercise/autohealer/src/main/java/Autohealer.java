@@ -26,6 +26,25 @@ import org.apache.zookeeper.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class Autohealer implements Watcher {
 
@@ -35,23 +54,177 @@ public class Autohealer implements Watcher {
     // Parent Znode where each worker stores an ephemeral child to indicate it is alive
     private static final String AUTOHEALER_ZNODES_PATH = "/workers";
 
+    // Every worker we launch finds its id in this environment variable, and stores it in its znode
+    private static final String WORKER_ID_VARIABLE = "AUTOHEALER_WORKER_ID";
+    // A standby worker connects to zookeeper, then waits for this line on its standard input before it registers
+    private static final String STANDBY_ARGUMENT = "--standby";
+    private static final byte[] PROMOTE_COMMAND = "promote\n".getBytes(StandardCharsets.UTF_8);
+
+    // The most workers starting at the same time, more would only compete for the CPU and all start slower
+    private static final int MAX_CONCURRENT_LAUNCHES = 4;
+    // Launch rate: LAUNCH_BURST launches right away, then LAUNCHES_PER_SECOND
+    private static final int LAUNCH_BURST = 4;
+    private static final double LAUNCHES_PER_SECOND = 8;
+    // A worker that did not register within this long is killed and counts as failed to start
+    private static final long LAUNCH_TIMEOUT_MILLIS = 30_000;
+    // A worker that dies sooner after registering than this is crash looping, see setMinHealthyUptimeMillis()
+    // The default can be changed with -Dautohealer.minHealthyUptimeMillis=<milliseconds>
+    private static final String MIN_HEALTHY_UPTIME_PROPERTY = "autohealer.minHealthyUptimeMillis";
+    private static final long DEFAULT_MIN_HEALTHY_UPTIME_MILLIS = 10_000;
+    // A slot whose workers keep failing waits before launching again, doubled with every failure in a row
+    // The first failure is restarted right away
+    private static final long INITIAL_SLOT_BACKOFF_MILLIS = 500;
+    private static final long MAX_SLOT_BACKOFF_MILLIS = 30_000;
+    // The output of the workers of each slot goes to LOG_DIRECTORY/worker-<slot>.log, rolled at MAX_LOG_BYTES
+    private static final String LOG_DIRECTORY = "worker-logs";
+    private static final long MAX_LOG_BYTES = 10 * 1024 * 1024;
+    private static final int MAX_LOG_FILES = 3;
+
     // Path to the worker jar
     private final String pathToProgram;
 
     // The number of worker instances we need to maintain at all times
     private final int numberOfWorkers;
+    // The number of standby workers we keep started and connected, ready to replace a dead worker
+    private final int numberOfStandbyWorkers;
+    // Runs the workers as tasks in this JVM, null when every worker is a process of its own
+    private final WorkerTaskRunner workerTaskRunner;
+    private volatile long minHealthyUptimeMillis = Long.getLong(MIN_HEALTHY_UPTIME_PROPERTY, DEFAULT_MIN_HEALTHY_UPTIME_MILLIS);
     private ZooKeeper zooKeeper;
 
+    // Every reconciliation runs on this thread, which owns the state below
+    private final ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "autohealer-reconciler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Starting a process can block for a while, so the launches happen on their own threads
+    private final ExecutorService launcher = Executors.newFixedThreadPool(MAX_CONCURRENT_LAUNCHES, runnable -> {
+        Thread thread = new Thread(runnable, "autohealer-launcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final TokenBucket launchTokens = new TokenBucket(LAUNCH_BURST, LAUNCHES_PER_SECOND);
+    // Reads the output of every worker, a worker whose pipe is full stops working
+    private final WorkerOutputPump outputPump = new WorkerOutputPump();
+    // One slot for each worker we maintain, a slot has at most one worker
+    private final Slot[] slots;
+    // The standby workers share this slot until they are promoted, for their log and the backoff of their launches
+    private final Slot standbySlot = new Slot(-1, "standby.log");
+    // The standby workers whose process did not exit yet, oldest first
+    private final Deque<ManagedWorker> standbyWorkers = new ArrayDeque<>();
+    // The ids of our workers start with it, so a worker of an earlier autohealer is not taken for one of ours
+    private final String instanceId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private long launches = 0;
+    // Our workers whose process did not exit yet, by id
+    private final Map<String, ManagedWorker> workers = new HashMap<>();
+    // The children of /workers, with the worker id stored in each
+    private final Map<String, String> workerIdsByZnode = new HashMap<>();
+    // When our worker exited, for its znode that zookeeper did not remove yet
+    private final Map<String, Long> exitedZnodes = new HashMap<>();
+    // The next reconciliation we scheduled ourselves, for a launch timeout, a backoff or the rate limit
+    private ScheduledFuture<?> scheduledReconciliation;
+
+    // Heal statistics, from the exit of a worker to its replacement registering
+    // The restarts the crash loop backoff delayed are counted apart
+    private volatile long heals = 0;
+    private volatile long totalHealMillis = 0;
+    private volatile long backedOffRestarts = 0;
+    private volatile long totalBackedOffRestartMillis = 0;
+    private volatile long promotions = 0;
+    // From the exit of a worker to zookeeper removing its znode, how late we would heal without the exit
+    private volatile long removedZnodes = 0;
+    private volatile long totalZnodeRemovalMillis = 0;
+
+    private static class Slot {
+        private final int index;
+        private final WorkerOutputPump.RollingLog log;
+        private ManagedWorker worker;
+        private int failuresInARow = 0;
+        private long nextLaunchMillis = 0;
+        // When the slot's last worker exited, 0 once it is healed
+        private long vacatedMillis = 0;
+        private boolean backedOff = false;
+
+        Slot(int index, String logName) {
+            this.index = index;
+            this.log = new WorkerOutputPump.RollingLog(new File(LOG_DIRECTORY, logName), MAX_LOG_BYTES, MAX_LOG_FILES);
+        }
+    }
+
+    // A worker we launched, a process or a task in this JVM, from the launch until it exits
+    // A standby worker gets its slot, and its launch time, when it is promoted
+    private static class ManagedWorker {
+        private final String id;
+        private Slot slot;
+        private long launchedMillis;
+        private boolean promoted = false;
+        private Process process;
+        private Future<?> task;
+        private String znode;
+        private long registeredMillis;
+
+        ManagedWorker(String id, Slot slot, long launchedMillis) {
+            this.id = id;
+            this.slot = slot;
+            this.launchedMillis = launchedMillis;
+        }
+    }
+
     public Autohealer(int numberOfWorkers, String pathToProgram) {
+        this(numberOfWorkers, pathToProgram, 0);
+    }
+
+    public Autohealer(int numberOfWorkers, String pathToProgram, int numberOfStandbyWorkers) {
         this.numberOfWorkers = numberOfWorkers;
+        this.numberOfStandbyWorkers = numberOfStandbyWorkers;
         this.pathToProgram = pathToProgram;
+        this.workerTaskRunner = null;
+        this.slots = new Slot[numberOfWorkers];
+        for (int i = 0; i < numberOfWorkers; i++) {
+            slots[i] = new Slot(i, "worker-" + i + ".log");
+        }
+    }
+
+    /**
+     * Runs the workers as tasks in this JVM, the worker jar has to provide a WorkerTask
+     * A worker that fails only restarts its task, but a worker that exits the JVM or exhausts its memory takes
+     * every worker and the autohealer with it: the processes stay the choice when the workers need isolation
+     * There are no standby workers in this mode, a task starts without a JVM start already
+     */
+    public static Autohealer inJvm(int numberOfWorkers, String pathToProgram) throws IOException {
+        return new Autohealer(numberOfWorkers, pathToProgram, new WorkerTaskRunner(pathToProgram));
+    }
+
+    private Autohealer(int numberOfWorkers, String pathToProgram, WorkerTaskRunner workerTaskRunner) {
+        this.numberOfWorkers = numberOfWorkers;
+        this.numberOfStandbyWorkers = 0;
+        this.pathToProgram = pathToProgram;
+        this.workerTaskRunner = workerTaskRunner;
+        this.slots = new Slot[numberOfWorkers];
+        for (int i = 0; i < numberOfWorkers; i++) {
+            slots[i] = new Slot(i, "worker-" + i + ".log");
+        }
+    }
+
+    /**
+     * A worker that exits sooner than this after registering counts as a failure of its slot, and a slot
+     * that keeps failing backs off before launching again
+     * 0 only backs off the workers that exit before registering
+     */
+    public void setMinHealthyUptimeMillis(long minHealthyUptimeMillis) {
+        this.minHealthyUptimeMillis = minHealthyUptimeMillis;
+    }
+
+    public long getMinHealthyUptimeMillis() {
+        return minHealthyUptimeMillis;
     }
 
     public void startWatchingWorkers() throws KeeperException, InterruptedException {
         if (zooKeeper.exists(AUTOHEALER_ZNODES_PATH, false) == null) {
             zooKeeper.create(AUTOHEALER_ZNODES_PATH, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
         }
-        launchWorkersIfNecessary();
+        requestReconciliation();
     }
 
     public void connectToZookeeper() throws IOException {
@@ -65,9 +238,74 @@ public class Autohealer implements Watcher {
     }
 
     public void close() throws InterruptedException {
+        reconciler.shutdownNow();
+        reconciler.awaitTermination(SESSION_TIMEOUT, TimeUnit.MILLISECONDS);
+        launcher.shutdownNow();
+        if (workerTaskRunner != null) {
+            try {
+                workerTaskRunner.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        // The standby workers do no work, the running workers stay up without us
+        for (ManagedWorker worker : standbyWorkers) {
+            if (worker.process != null) {
+                worker.process.destroy();
+            }
+        }
+        outputPump.close();
+        for (Slot slot : slots) {
+            closeLog(slot);
+        }
+        closeLog(standbySlot);
         zooKeeper.close();
     }
 
+    private static void closeLog(Slot slot) {
+        try {
+            slot.log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getHeals() {
+        return heals;
+    }
+
+    public double getMeanHealMillis() {
+        return heals == 0 ? 0 : totalHealMillis / (double) heals;
+    }
+
+    public long getBackedOffRestarts() {
+        return backedOffRestarts;
+    }
+
+    public long getPromotions() {
+        return promotions;
+    }
+
+    public double getMeanBackedOffRestartMillis() {
+        return backedOffRestarts == 0 ? 0 : totalBackedOffRestartMillis / (double) backedOffRestarts;
+    }
+
+    /**
+     * @return the mean time from an exit to the replacement registering, over the heals and the backed off restarts
+     */
+    public double getMeanRestartMillis() {
+        long restarts = heals + backedOffRestarts;
+        return restarts == 0 ? 0 : (totalHealMillis + totalBackedOffRestartMillis) / (double) restarts;
+    }
+
+    public long getRemovedZnodes() {
+        return removedZnodes;
+    }
+
+    public double getMeanZnodeRemovalMillis() {
+        return removedZnodes == 0 ? 0 : totalZnodeRemovalMillis / (double) removedZnodes;
+    }
+
     @Override
     public void process(WatchedEvent event) {
         switch (event.getType()) {
@@ -81,26 +319,322 @@ public class Autohealer implements Watcher {
                     }
                 }
                 break;
-            /**
-             * Add states code here to respond to the relevant events
-             */
+            case NodeChildrenChanged:
+                // A worker registered or its znode went away, the watch has to be set again anyway
+                requestReconciliation();
+                break;
         }
     }
 
+    private void requestReconciliation() {
+        reconciler.execute(this::launchWorkersIfNecessary);
+    }
+
+    /**
+     * Compares the live workers with the number we need, and launches the missing ones
+     * Our own workers are alive until their process exits, zookeeper only tells us about the workers we did not launch
+     * Runs on the reconciler thread only
+     */
     private void launchWorkersIfNecessary() {
-        /**
-         * Implement this method to watch and launch new workers if necessary
-         */
+        List<String> children;
+        try {
+            children = zooKeeper.getChildren(AUTOHEALER_ZNODES_PATH, this);
+        } catch (KeeperException | InterruptedException e) {
+            e.printStackTrace();
+            // the watch may not be set, so we look again later
+            scheduleReconciliation(INITIAL_SLOT_BACKOFF_MILLIS);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        updateZnodes(children, now);
+
+        // Workers of other autohealers, or that nobody launched, are alive as long as their znode is there
+        int otherWorkers = 0;
+        for (String workerId : workerIdsByZnode.values()) {
+            if (!workerId.startsWith(instanceId + "-")) {
+                otherWorkers++;
+            }
+        }
+
+        // A worker that takes too long to register is killed, its exit then counts as a failed launch
+        int startingWorkers = 0;
+        long nextReconciliationMillis = Long.MAX_VALUE;
+        for (ManagedWorker worker : workers.values()) {
+            if (worker.znode != null) {
+                continue;
+            }
+            startingWorkers++;
+            long timeoutMillis = worker.launchedMillis + LAUNCH_TIMEOUT_MILLIS - now;
+            if (timeoutMillis <= 0 && (worker.process != null || worker.task != null)) {
+                System.out.println(String.format("Worker in slot %d did not register within %d ms", worker.slot.index, LAUNCH_TIMEOUT_MILLIS));
+                if (worker.process != null) {
+                    worker.process.destroyForcibly();
+                } else {
+                    worker.task.cancel(true);
+                }
+            } else {
+                nextReconciliationMillis = Math.min(nextReconciliationMillis, Math.max(timeoutMillis, 1));
+            }
+        }
+
+        // A standby worker takes an empty slot first, it does not start a JVM so it is not rate limited
+        int missingWorkers = numberOfWorkers - workers.size() - otherWorkers;
+        for (Slot slot : slots) {
+            if (missingWorkers <= 0) {
+                break;
+            }
+            if (slot.worker != null) {
+                continue;
+            }
+            if (slot.nextLaunchMillis > now) {
+                nextReconciliationMillis = Math.min(nextReconciliationMillis, slot.nextLaunchMillis - now);
+                continue;
+            }
+            if (promoteStandbyWorker(slot, now)) {
+                startingWorkers++;
+                missingWorkers--;
+                continue;
+            }
+            if (startingWorkers >= MAX_CONCURRENT_LAUNCHES) {
+                break;
+            }
+            if (!launchTokens.tryAcquire()) {
+                nextReconciliationMillis = Math.min(nextReconciliationMillis, launchTokens.millisUntilAvailable());
+                break;
+            }
+            launch(slot, now);
+            startingWorkers++;
+            missingWorkers--;
+        }
+
+        // The slots had their pick, what is left of the launch rate refills the standby pool
+        int missingStandbyWorkers = numberOfStandbyWorkers - standbyWorkers.size();
+        if (missingStandbyWorkers > 0 && standbySlot.nextLaunchMillis > now) {
+            nextReconciliationMillis = Math.min(nextReconciliationMillis, standbySlot.nextLaunchMillis - now);
+        } else {
+            for (int i = 0; i < missingStandbyWorkers; i++) {
+                if (!launchTokens.tryAcquire()) {
+                    nextReconciliationMillis = Math.min(nextReconciliationMillis, launchTokens.millisUntilAvailable());
+                    break;
+                }
+                launch(standbySlot, now);
+            }
+        }
+        if (workers.size() + otherWorkers < numberOfWorkers || startingWorkers > 0) {
+            System.out.println(String.format("Workers alive : %d, starting : %d, needed : %d",
+                    workers.size() + otherWorkers - startingWorkers, startingWorkers, numberOfWorkers));
+        }
+
+        // We come back when a launch times out, and when a blocked slot may launch
+        if (nextReconciliationMillis != Long.MAX_VALUE) {
+            scheduleReconciliation(nextReconciliationMillis);
+        }
+    }
+
+    // Reads the worker id of every new child, and forgets the children that are gone
+    private void updateZnodes(List<String> children, long now) {
+        Set<String> currentZnodes = new HashSet<>(children);
+        workerIdsByZnode.keySet().retainAll(currentZnodes);
+        exitedZnodes.entrySet().removeIf(exited -> {
+            if (currentZnodes.contains(exited.getKey())) {
+                return false;
+            }
+            removedZnodes++;
+            totalZnodeRemovalMillis += now - exited.getValue();
+            return true;
+        });
+
+        for (String znode : currentZnodes) {
+            if (workerIdsByZnode.containsKey(znode)) {
+                continue;
+            }
+            String workerId;
+            try {
+                workerId = new String(zooKeeper.getData(AUTOHEALER_ZNODES_PATH + "/" + znode, false, null), StandardCharsets.UTF_8);
+            } catch (KeeperException.NoNodeException e) {
+                continue;
+            } catch (KeeperException | InterruptedException e) {
+                e.printStackTrace();
+                continue;
+            }
+            workerIdsByZnode.put(znode, workerId);
+
+            ManagedWorker worker = workers.get(workerId);
+            if (worker != null) {
+                registered(worker, znode, now);
+            } else if (workerId.startsWith(instanceId + "-")) {
+                // Our worker registered after its process exited already
+                exitedZnodes.put(znode, now);
+            }
+        }
+    }
+
+    private void registered(ManagedWorker worker, String znode, long now) {
+        worker.znode = znode;
+        worker.registeredMillis = now;
+        Slot slot = worker.slot;
+        System.out.println(String.format("Worker %s registered %d ms after its %s", znode, now - worker.launchedMillis,
+                worker.promoted ? "promotion" : "launch"));
+        if (worker.promoted) {
+            standbySlot.failuresInARow = 0;
+        }
+        if (slot.vacatedMillis != 0) {
+            if (slot.backedOff) {
+                backedOffRestarts++;
+                totalBackedOffRestartMillis += now - slot.vacatedMillis;
+            } else {
+                heals++;
+                totalHealMillis += now - slot.vacatedMillis;
+            }
+            slot.vacatedMillis = 0;
+        }
+    }
+
+    // Takes the oldest started standby worker, tells it to register and gives it the slot
+    // The ones whose process is not started yet stay in the pool
+    private boolean promoteStandbyWorker(Slot slot, long now) {
+        Iterator<ManagedWorker> standbys = standbyWorkers.iterator();
+        while (standbys.hasNext()) {
+            ManagedWorker worker = standbys.next();
+            if (worker.process == null) {
+                continue;
+            }
+            standbys.remove();
+            try {
+                OutputStream input = worker.process.getOutputStream();
+                input.write(PROMOTE_COMMAND);
+                input.flush();
+            } catch (IOException e) {
+                // It exited, its waiter tells us soon
+                continue;
+            }
+            worker.slot = slot;
+            worker.launchedMillis = now;
+            worker.promoted = true;
+            promotions++;
+            slot.worker = worker;
+            workers.put(worker.id, worker);
+            outputPump.redirect(worker.process, slot.log);
+            System.out.println(String.format("Promoted a standby worker to slot %d", slot.index));
+            return true;
+        }
+        return false;
+    }
+
+    private void launch(Slot slot, long now) {
+        ManagedWorker worker = new ManagedWorker(instanceId + "-" + launches++, slot, now);
+        boolean standby = slot == standbySlot;
+        if (standby) {
+            standbyWorkers.add(worker);
+        } else {
+            slot.worker = worker;
+            workers.put(worker.id, worker);
+        }
+        if (workerTaskRunner != null) {
+            // A task starts in no time, and we learn about its end from the task itself
+            System.out.println(String.format("Starting worker task in slot %d", slot.index));
+            worker.task = workerTaskRunner.start(worker.id, slot.log,
+                    failure -> reconciler.execute(() -> workerExited(worker, failure == null ? 0 : 1)));
+            return;
+        }
+        launcher.execute(() -> {
+            Process process;
+            try {
+                process = startNewWorker(worker.id, standby);
+                outputPump.drain(process, slot.log);
+            } catch (IOException e) {
+                e.printStackTrace();
+                reconciler.execute(() -> workerExited(worker, -1));
+                return;
+            }
+            reconciler.execute(() -> worker.process = process);
+
+            // We learn about the exit right away instead of after the session timeout, one thread waits for each process
+            Thread waiter = new Thread(() -> {
+                try {
+                    int exitCode = process.waitFor();
+                    reconciler.execute(() -> workerExited(worker, exitCode));
+                } catch (InterruptedException e) {
+                    // the autohealer is closing
+                }
+            }, "autohealer-waiter-" + worker.id);
+            waiter.setDaemon(true);
+            waiter.start();
+        });
+    }
+
+    private void workerExited(ManagedWorker worker, int exitCode) {
+        long now = System.currentTimeMillis();
+        Slot slot = worker.slot;
+        if (slot == standbySlot) {
+            System.out.println(String.format("Standby worker exited with code %d", exitCode));
+            standbyWorkers.remove(worker);
+            backOff(slot, slot.failuresInARow + 1, now);
+            launchWorkersIfNecessary();
+            return;
+        }
+        workers.remove(worker.id);
+        slot.worker = null;
+
+        boolean crashLooping;
+        if (worker.znode == null) {
+            System.out.println(String.format("Worker in slot %d exited with code %d before registering", slot.index, exitCode));
+            crashLooping = true;
+        } else {
+            long uptimeMillis = now - worker.registeredMillis;
+            System.out.println(String.format("Worker %s exited with code %d after %d ms", worker.znode, exitCode, uptimeMillis));
+            if (workerIdsByZnode.containsKey(worker.znode)) {
+                exitedZnodes.put(worker.znode, now);
+            }
+            crashLooping = uptimeMillis < minHealthyUptimeMillis;
+        }
+        if (slot.vacatedMillis == 0) {
+            slot.vacatedMillis = now;
+        }
+
+        backOff(slot, crashLooping ? slot.failuresInARow + 1 : 0, now);
+        launchWorkersIfNecessary();
+    }
+
+    private void backOff(Slot slot, int failuresInARow, long now) {
+        slot.failuresInARow = failuresInARow;
+        slot.backedOff = failuresInARow > 1;
+        if (slot.backedOff) {
+            long backoffMillis = Math.min(MAX_SLOT_BACKOFF_MILLIS,
+                    INITIAL_SLOT_BACKOFF_MILLIS << Math.min(failuresInARow - 2, 20));
+            // The jitter keeps slots that failed together from launching together again
+            backoffMillis = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+            slot.nextLaunchMillis = now + backoffMillis;
+            System.out.println(String.format("Slot %d failed %d times in a row, next launch in %d ms",
+                    slot.index, failuresInARow, backoffMillis));
+        }
+    }
+
+    private void scheduleReconciliation(long delayMillis) {
+        if (scheduledReconciliation != null) {
+            scheduledReconciliation.cancel(false);
+        }
+        scheduledReconciliation = reconciler.schedule(this::launchWorkersIfNecessary, Math.max(delayMillis, 1), TimeUnit.MILLISECONDS);
     }
 
     /**
      * Helper method to start a single worker
+     * @param workerId the id the worker stores in its znode
+     * @param standby true for a standby worker, which only registers once promoted
      * @throws IOException
      */
-    private void startNewWorker() throws IOException {
+    private Process startNewWorker(String workerId, boolean standby) throws IOException {
         File file = new File(pathToProgram);
-        String command = "java -jar " + file.getCanonicalPath();
+        String command = "java -jar " + file.getCanonicalPath() + (standby ? " " + STANDBY_ARGUMENT : "");
         System.out.println(String.format("Launching worker instance : %s ", command));
-        Runtime.getRuntime().exec(command, null, file.getParentFile());
+        List<String> arguments = new ArrayList<>(Arrays.asList("java", "-jar", file.getCanonicalPath()));
+        if (standby) {
+            arguments.add(STANDBY_ARGUMENT);
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder(arguments)
+                .directory(file.getParentFile())
+                .redirectErrorStream(true);
+        processBuilder.environment().put(WORKER_ID_VARIABLE, workerId);
+        return processBuilder.start();
     }
 }
@@ -0,0 +1,88 @@
+/*
+ *  MIT License
+ *
+ *  Copyright (c) 2019 Michael Pogrebinsky - Distributed Systems & Cloud Computing with Java
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mean time to heal of the Autohealer, with the flaky worker, which crashes shortly after it registers
+ * A heal goes from the exit of a worker to its replacement registering, restarts delayed by the crash loop backoff
+ * are counted apart. Without watching the processes, the autohealer would only start the replacement once zookeeper
+ * removes the dead worker's znode, we measure that delay too.
+ * The flaky worker crashes within a second, far below the default healthy uptime, so with the default every
+ * restart of a slot after the first is backed off: run with -Dautohealer.minHealthyUptimeMillis=0 to measure
+ * the heals themselves. Every mean comes with the number of samples behind it.
+ * With a number of standby workers, we run once without and once with the standby pool
+ * With --in-jvm, we run once with the workers as processes and once as tasks in this JVM
+ * Needs a zookeeper server on localhost:2181, like the Autohealer
+ */
+public class HealBenchmark {
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final String IN_JVM_ARGUMENT = "--in-jvm";
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("Expecting parameters <number of workers> <path to worker jar file> <seconds> [<number of standby workers> | " + IN_JVM_ARGUMENT + "]");
+            System.exit(1);
+        }
+
+        int numberOfWorkers = Integer.parseInt(args[0]);
+        String pathToWorkerProgram = args[1];
+        long seconds = Long.parseLong(args[2]);
+        run(new Autohealer(numberOfWorkers, pathToWorkerProgram), "processes", seconds);
+        if (args.length == 4) {
+            // The znodes of the first run's workers have to expire first, or they count as workers of someone else
+            Thread.sleep(2 * SESSION_TIMEOUT);
+            if (args[3].equals(IN_JVM_ARGUMENT)) {
+                run(Autohealer.inJvm(numberOfWorkers, pathToWorkerProgram), "tasks in this JVM", seconds);
+            } else {
+                int numberOfStandbyWorkers = Integer.parseInt(args[3]);
+                run(new Autohealer(numberOfWorkers, pathToWorkerProgram, numberOfStandbyWorkers),
+                        String.format("processes, %d standby workers", numberOfStandbyWorkers), seconds);
+            }
+        }
+    }
+
+    private static void run(Autohealer autohealer, String workers, long seconds)
+            throws IOException, InterruptedException, KeeperException {
+        autohealer.connectToZookeeper();
+        autohealer.startWatchingWorkers();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        autohealer.close();
+
+        System.out.println();
+        System.out.println(String.format("Workers : %s, minimum healthy uptime : %d ms", workers, autohealer.getMinHealthyUptimeMillis()));
+        System.out.println(String.format("Heals : %d, mean time to heal : %.0f ms", autohealer.getHeals(), autohealer.getMeanHealMillis()));
+        System.out.println(String.format("Restarts delayed by the crash loop backoff : %d, mean time to restart : %.0f ms",
+                autohealer.getBackedOffRestarts(), autohealer.getMeanBackedOffRestartMillis()));
+        System.out.println(String.format("All restarts : %d, mean time to restart : %.0f ms, standby workers promoted : %d",
+                autohealer.getHeals() + autohealer.getBackedOffRestarts(), autohealer.getMeanRestartMillis(), autohealer.getPromotions()));
+        System.out.println(String.format("Znodes removed by zookeeper after an exit : %d, mean time to the removal : %.0f ms",
+                autohealer.getRemovedZnodes(), autohealer.getMeanZnodeRemovalMillis()));
+        System.out.println(String.format("Mean time to heal when waiting for zookeeper instead : %.0f ms",
+                autohealer.getMeanZnodeRemovalMillis() + autohealer.getMeanHealMillis()));
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ *  MIT License
+ *
+ *  Copyright (c) 2019 Michael Pogrebinsky - Distributed Systems & Cloud Computing with Java
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads the output of every worker we launch, so a worker never blocks on a full pipe
+ * One thread serves all the workers: it only reads what is available, so it never waits on a quiet worker,
+ * and it reads into the same buffer every time
+ * The output goes to a rolling log per slot, which keeps the disk usage bounded however much the workers print
+ */
+public class WorkerOutputPump {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // How long the thread sleeps when no worker had anything to say, doubled up to the maximum while it stays quiet
+    private static final long MIN_IDLE_NANOS = 100_000;
+    private static final long MAX_IDLE_NANOS = 20_000_000;
+
+    private final List<Drain> drains = new CopyOnWriteArrayList<>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long bytesRead = 0;
+    private volatile long bytesDiscarded = 0;
+
+    // The output of one process and where it goes
+    private static class Drain {
+        private final Process process;
+        private final InputStream output;
+        private volatile RollingLog log;
+        // true while writes to the log fail, only touched by the pump thread
+        private boolean logFailing = false;
+
+        Drain(Process process, RollingLog log) {
+            this.process = process;
+            this.output = process.getInputStream();
+            this.log = log;
+        }
+    }
+
+    public WorkerOutputPump() {
+        this.thread = new Thread(this::pump, "autohealer-output-pump");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts reading the output of the process into the log, until the process exited and all its output is read
+     * The process should be started with redirectErrorStream, its error stream is not read
+     */
+    public void drain(Process process, RollingLog log) {
+        drains.add(new Drain(process, log));
+    }
+
+    /**
+     * From now on, the output of the process goes to this log
+     */
+    public void redirect(Process process, RollingLog log) {
+        for (Drain drain : drains) {
+            if (drain.process == process) {
+                drain.log = log;
+            }
+        }
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return how many of the bytes read could not be written to their log
+     */
+    public long getBytesDiscarded() {
+        return bytesDiscarded;
+    }
+
+    public void close() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+
+    private void pump() {
+        long idleNanos = MIN_IDLE_NANOS;
+        while (running) {
+            boolean readAny = false;
+            for (Drain drain : drains) {
+                try {
+                    readAny |= pumpOnce(drain);
+                } catch (IOException e) {
+                    // only the pipe itself, the log errors are handled in writeToLog()
+                    e.printStackTrace();
+                    drains.remove(drain);
+                }
+            }
+            if (readAny) {
+                idleNanos = MIN_IDLE_NANOS;
+            } else {
+                LockSupport.parkNanos(idleNanos);
+                idleNanos = Math.min(idleNanos * 2, MAX_IDLE_NANOS);
+            }
+        }
+    }
+
+    // Copies what the process wrote so far, and forgets the process once it exited and its output is read
+    private boolean pumpOnce(Drain drain) throws IOException {
+        int available = drain.output.available();
+        if (available > 0) {
+            int read = drain.output.read(buffer, 0, Math.min(available, buffer.length));
+            if (read > 0) {
+                writeToLog(drain, read);
+                bytesRead += read;
+                return true;
+            }
+        }
+        // Nothing is left in the pipe: once the process is gone, reading returns the end of the stream right away
+        if (!drain.process.isAlive()) {
+            int read;
+            while ((read = drain.output.read(buffer)) > 0) {
+                writeToLog(drain, read);
+                bytesRead += read;
+            }
+            drain.output.close();
+            drains.remove(drain);
+        }
+        return false;
+    }
+
+    // A log we can't write (full disk, deleted directory...) must not stop the drain, or the worker blocks
+    // on a full pipe again: we keep reading and discard the output until the log can be written again
+    private void writeToLog(Drain drain, int length) {
+        try {
+            drain.log.write(buffer, length);
+            if (drain.logFailing) {
+                drain.logFailing = false;
+                System.out.println("Writing the worker output to its log again");
+            }
+        } catch (IOException e) {
+            bytesDiscarded += length;
+            if (!drain.logFailing) {
+                drain.logFailing = true;
+                System.out.println("Discarding the worker output, its log can't be written : " + e);
+            }
+        }
+    }
+
+    /**
+     * A log file that is moved aside once it reaches maxBytes, keeping the last maxFiles - 1 moved files
+     * log, log.1 ... log.(maxFiles - 1), the oldest being deleted
+     */
+    public static class RollingLog {
+        private final File file;
+        private final long maxBytes;
+        private final int maxFiles;
+        private OutputStream output;
+        private long size;
+
+        public RollingLog(File file, long maxBytes, int maxFiles) {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.maxFiles = maxFiles;
+        }
+
+        public void write(byte[] bytes, int length) throws IOException {
+            write(bytes, 0, length);
+        }
+
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            try {
+                if (output == null) {
+                    file.getParentFile().mkdirs();
+                    output = new FileOutputStream(file, true);
+                    size = file.length();
+                }
+                if (size + length > maxBytes && size > 0) {
+                    roll();
+                }
+                output.write(bytes, offset, length);
+                size += length;
+            } catch (IOException e) {
+                // the next write opens the file again
+                closeQuietly();
+                throw e;
+            }
+        }
+
+        private void closeQuietly() {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // already failing
+                }
+                output = null;
+            }
+        }
+
+        private void roll() throws IOException {
+            output.close();
+            for (int i = maxFiles - 1; i > 0; i--) {
+                File older = new File(file.getPath() + "." + i);
+                File newer = i == 1 ? file : new File(file.getPath() + "." + (i - 1));
+                if (newer.exists()) {
+                    older.delete();
+                    newer.renameTo(older);
+                }
+            }
+            output = new FileOutputStream(file, false);
+            size = 0;
+        }
+
+        public synchronized void close() throws IOException {
+            if (output != null) {
+                output.close();
+                output = null;
+            }
+        }
+    }
+}
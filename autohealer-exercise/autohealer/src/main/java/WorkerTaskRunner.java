@@ -0,0 +1,153 @@
+/*
+ *  MIT License
+ *
+ *  Copyright (c) 2019 Michael Pogrebinsky - Distributed Systems & Cloud Computing with Java
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs workers as tasks in this JVM instead of a process each: the in-JVM mode of the Autohealer
+ * The worker jar has to provide a WorkerTask class, a Runnable built with the worker id
+ * Every task runs on a virtual thread when the JVM has them (Java 21), or on a thread of a cached pool otherwise,
+ * we look them up by reflection since we are built for Java 1.8
+ * What a task prints goes to the log of its slot, like the output of a worker process
+ */
+public class WorkerTaskRunner {
+    private static final String WORKER_TASK_CLASS = "WorkerTask";
+
+    // Where the current thread's output goes, the threads a task starts (zookeeper's) inherit it
+    private static final InheritableThreadLocal<WorkerOutputPump.RollingLog> taskLog = new InheritableThreadLocal<>();
+
+    private final URLClassLoader classLoader;
+    private final Constructor<? extends Runnable> taskConstructor;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    public WorkerTaskRunner(String pathToProgram) throws IOException {
+        URL jar = new File(pathToProgram).getCanonicalFile().toURI().toURL();
+        // The classes we have ourselves (zookeeper) are shared, the worker's own classes are loaded once for all tasks
+        this.classLoader = new URLClassLoader(new URL[]{jar}, WorkerTaskRunner.class.getClassLoader());
+        try {
+            this.taskConstructor = Class.forName(WORKER_TASK_CLASS, true, classLoader)
+                    .asSubclass(Runnable.class)
+                    .getConstructor(String.class);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            classLoader.close();
+            throw new IOException(String.format("%s has no %s(String) Runnable, it cannot run in this JVM", pathToProgram, WORKER_TASK_CLASS), e);
+        }
+
+        ExecutorService virtualThreadExecutor = null;
+        try {
+            virtualThreadExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Before Java 21
+        }
+        this.virtualThreads = virtualThreadExecutor != null;
+        this.executor = virtualThreads ? virtualThreadExecutor : Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "autohealer-worker-task");
+            thread.setDaemon(true);
+            return thread;
+        });
+        System.out.println(String.format("Running the workers in this JVM, on %s", virtualThreads ? "virtual threads" : "pooled threads"));
+
+        routeOutput();
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Starts a worker task
+     * @param onExit called when the task ended, with what it threw, null if it returned
+     * @return cancel(true) stops the task
+     */
+    public Future<?> start(String workerId, WorkerOutputPump.RollingLog log, Consumer<Throwable> onExit) {
+        return executor.submit(() -> {
+            taskLog.set(log);
+            Throwable failure = null;
+            try {
+                taskConstructor.newInstance(workerId).run();
+            } catch (Throwable e) {
+                failure = e;
+                e.printStackTrace();
+            } finally {
+                taskLog.remove();
+            }
+            onExit.accept(failure);
+        });
+    }
+
+    /**
+     * Interrupts every task, they close their zookeeper session so their znodes go away right away
+     */
+    public void close() throws InterruptedException, IOException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        classLoader.close();
+    }
+
+    // System.out and System.err are shared by the whole JVM, we send what the tasks write to their own log
+    private static synchronized void routeOutput() {
+        if (!(System.out instanceof RoutingPrintStream)) {
+            System.setOut(new RoutingPrintStream(System.out));
+            System.setErr(new RoutingPrintStream(System.err));
+        }
+    }
+
+    private static class RoutingPrintStream extends PrintStream {
+        RoutingPrintStream(PrintStream original) {
+            super(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    WorkerOutputPump.RollingLog log = taskLog.get();
+                    if (log == null) {
+                        original.write(bytes, offset, length);
+                    } else {
+                        log.write(bytes, offset, length);
+                    }
+                }
+
+                @Override
+                public void flush() {
+                    original.flush();
+                }
+            }, true);
+        }
+    }
+}
@@ -27,9 +27,15 @@ import org.apache.zookeeper.KeeperException;
 import java.io.IOException;
 
 public class Application {
+    // Started by the autohealer as a standby worker: connected, but not registered until promoted
+    private static final String STANDBY_ARGUMENT = "--standby";
+
     public static void main(String[] args) throws IOException, KeeperException, InterruptedException {
         Worker worker = new Worker();
         worker.connectToZookeeper();
+        if (args.length == 1 && args[0].equals(STANDBY_ARGUMENT) && !worker.awaitPromotion()) {
+            return;
+        }
         worker.work();
     }
 }
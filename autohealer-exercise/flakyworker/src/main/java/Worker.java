@@ -27,7 +27,10 @@ import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 import java.util.concurrent.locks.LockSupport;
 
@@ -38,20 +41,52 @@ public class Worker {
     // Parent Znode where each worker stores an ephemeral child to indicate it is alive
     private static final String AUTOHEALER_ZNODES_PATH = "/workers";
 
+    // Set by the autohealer that launched us, we store it in our znode so it can tell which znode is ours
+    private static final String WORKER_ID_VARIABLE = "AUTOHEALER_WORKER_ID";
+
     private static final float CHANCE_TO_FAIL = 0.1F;
 
     private final Random random = new Random();
+    // The id we store in our znode, null when nobody launched us
+    private final String workerId;
     private ZooKeeper zooKeeper;
 
+    public Worker() {
+        this(System.getenv(WORKER_ID_VARIABLE));
+    }
+
+    public Worker(String workerId) {
+        this.workerId = workerId;
+    }
+
     public void connectToZookeeper() throws IOException {
         this.zooKeeper = new ZooKeeper(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, event -> {
         });
     }
 
+    /**
+     * Waits as a standby worker until the autohealer promotes us, by writing a line to our standard input
+     * We talk to zookeeper once before, so the session is established and the code we need to register is loaded
+     * @return false if the autohealer is gone, and we should exit instead
+     */
+    public boolean awaitPromotion() throws KeeperException, InterruptedException, IOException {
+        zooKeeper.exists(AUTOHEALER_ZNODES_PATH, false);
+        System.out.println("Standby, waiting to be promoted");
+        BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        if (input.readLine() == null) {
+            return false;
+        }
+        System.out.println("Promoted");
+        return true;
+    }
+
+    /**
+     * Works until a critical error, or until the thread is interrupted when we run as a task in the autohealer
+     */
     public void work() throws KeeperException, InterruptedException {
         addChildZnode();
 
-        while (true) {
+        while (!Thread.currentThread().isInterrupted()) {
             System.out.println("Working...");
             LockSupport.parkNanos(1000);
             if (random.nextFloat() < CHANCE_TO_FAIL) {
@@ -61,9 +96,15 @@ public class Worker {
         }
     }
 
+    public void close() throws InterruptedException {
+        if (zooKeeper != null) {
+            zooKeeper.close();
+        }
+    }
+
     private void addChildZnode() throws KeeperException, InterruptedException {
         zooKeeper.create(AUTOHEALER_ZNODES_PATH + "/worker_",
-                new byte[]{},
+                workerId == null ? new byte[]{} : workerId.getBytes(StandardCharsets.UTF_8),
                 ZooDefs.Ids.OPEN_ACL_UNSAFE,
                 CreateMode.EPHEMERAL_SEQUENTIAL);
     }
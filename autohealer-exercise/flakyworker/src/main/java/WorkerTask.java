@@ -0,0 +1,65 @@
+/*
+ *  MIT License
+ *
+ *  Copyright (c) 2019 Michael Pogrebinsky - Distributed Systems & Cloud Computing with Java
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+
+/**
+ * A worker run as a task on a thread of the autohealer, instead of in a JVM of its own
+ * The autohealer finds this class in the worker jar and creates one per worker, with the id to store in the znode
+ * The task ends with the worker, by an exception on a critical error, or when the thread is interrupted
+ */
+public class WorkerTask implements Runnable {
+    private final String workerId;
+
+    public WorkerTask(String workerId) {
+        this.workerId = workerId;
+    }
+
+    @Override
+    public void run() {
+        Worker worker = new Worker(workerId);
+        try {
+            worker.connectToZookeeper();
+            worker.work();
+        } catch (IOException | KeeperException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Unlike a process, a task leaves its session open when it fails, and its znode would stay
+            // The interrupt is cleared for the close, or the close itself would be interrupted
+            boolean interrupted = Thread.interrupted();
+            try {
+                worker.close();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
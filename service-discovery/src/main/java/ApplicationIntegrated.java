@@ -1,76 +1,192 @@
+import cluster.management.ClusterEventExecutor;
+import cluster.management.LeaderCheckpoint;
 import cluster.management.LeaderElectionIntegrated;
+import cluster.management.LoadBalancer;
+import cluster.management.RegistrySnapshotStore;
 import cluster.management.ServiceRegistryIntegrated;
+import cluster.management.WeightedLeaderElection;
+import cluster.management.ZooKeeperSessionManager;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 
-public class ApplicationIntegrated implements Watcher {
+public class ApplicationIntegrated implements ZooKeeperSessionManager.SessionStateListener {
     private static final String ZOOKEEPER_ADDRESS = "localhost:2181";
     private static final int SESSION_TIMEOUT = 3000;
     private static final int DEFAULT_PORT = 8080;
-    private ZooKeeper zooKeeper;
+
+    // registry changes that arrive within this window of each other are folded into a single refresh,
+    // but a refresh is never delayed by more than REFRESH_MAX_DELAY_MILLIS
+    private static final long REFRESH_WINDOW_MILLIS = 50;
+    private static final long REFRESH_MAX_DELAY_MILLIS = 500;
+
+    // capacity of each of the election / registry event lanes
+    private static final int EVENT_QUEUE_CAPACITY = 64;
+
+    // the last known registry view, loaded at boot so we can route before we are synced with zookeeper
+    private static final String REGISTRY_SNAPSHOT_FILE = "service-registry-%d.snapshot";
+
+    // how long a leader that is being stopped waits for its successor to take over
+    private static final long HANDOFF_TIMEOUT_MILLIS = 2000;
+
+    // -Dcluster.election=weighted elects the node with the highest -Dcluster.priority (by default its number of cores)
+    // instead of the oldest one
+    private static final String WEIGHTED_ELECTION = "weighted";
+
+    // the leader pings the workers over UDP (same port number as their address) and stops routing to the ones
+    // that went silent, well before SESSION_TIMEOUT expires their registry znode
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 100;
+    private static final double PHI_THRESHOLD = 8.0;
+
+    // an expired session is reopened instead of the node leaving the cluster,
+    // with a backoff between the failed attempts doubling up to RECOVERY_MAX_BACKOFF_MILLIS
+    private static final long RECOVERY_INITIAL_BACKOFF_MILLIS = 100;
+    private static final long RECOVERY_MAX_BACKOFF_MILLIS = 5000;
+
+    // shared with every other coordination role of this JVM, see ZooKeeperSessionManager
+    private ZooKeeperSessionManager session;
+    private boolean sessionClosed = false;
 
     public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        long startNanos = System.nanoTime();
         int currentServerPort = args.length == 1 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
 
         ApplicationIntegrated application = new ApplicationIntegrated();
         ZooKeeper zooKeeper = application.connectToZookeeper();
+        application.session.enableRecovery(RECOVERY_INITIAL_BACKOFF_MILLIS, RECOVERY_MAX_BACKOFF_MILLIS);
 
-        ServiceRegistryIntegrated serviceRegistry = new ServiceRegistryIntegrated(zooKeeper);
+        // watchers only enqueue their work, the zookeeper calls run on the election and registry lanes
+        ClusterEventExecutor eventExecutor = new ClusterEventExecutor(EVENT_QUEUE_CAPACITY);
 
-        OnElectionAction onElectionAction = new OnElectionAction(serviceRegistry,currentServerPort);
+        // the components that share the session share its watches too, through the session's per path dispatch
+        ServiceRegistryIntegrated serviceRegistry = new ServiceRegistryIntegrated(application.session, eventExecutor);
+        serviceRegistry.enableCoalescing(REFRESH_WINDOW_MILLIS, REFRESH_MAX_DELAY_MILLIS);
 
-        // leader election
-        LeaderElectionIntegrated leaderElection = new LeaderElectionIntegrated(zooKeeper,onElectionAction);
-        leaderElection.volunteerForLeadership();
-        leaderElection.reelectLeader();
+        RegistrySnapshotStore snapshotStore = new RegistrySnapshotStore(
+                Paths.get(System.getProperty("java.io.tmpdir"), String.format(REGISTRY_SNAPSHOT_FILE, currentServerPort)));
+        if (serviceRegistry.useSnapshotStore(snapshotStore)) {
+            System.out.println(String.format("Routing from the provisional registry snapshot after %.1f ms",
+                    (System.nanoTime() - startNanos) / 1e6));
+        }
+
+        // the routing decisions a leader makes, fed by the registry
+        LoadBalancer loadBalancer = new LoadBalancer(LoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+        serviceRegistry.addRegistryListener(loadBalancer);
+
+        // followers tail the leader's checkpoints, so whoever takes over can route right away
+        LeaderCheckpoint checkpoint = new LeaderCheckpoint(application.session, eventExecutor);
+
+        // after an expiry, our registry and candidate znodes come back in one multi(), the election goes last
+        // since its re-election invokes the callbacks
+        application.session.addRecoverableComponent(serviceRegistry);
+        application.session.addRecoverableComponent(checkpoint);
+
+        OnElectionAction onElectionAction = new OnElectionAction(serviceRegistry, currentServerPort, checkpoint, loadBalancer);
+        onElectionAction.enableHeartbeats(HEARTBEAT_INTERVAL_MILLIS, PHI_THRESHOLD);
+
+        if (WEIGHTED_ELECTION.equals(System.getProperty("cluster.election"))) {
+            int priority = Integer.getInteger("cluster.priority", Runtime.getRuntime().availableProcessors());
+            WeightedLeaderElection weightedElection = new WeightedLeaderElection(zooKeeper, onElectionAction, priority,
+                    WeightedLeaderElection.DEFAULT_PREEMPTION_MARGIN, WeightedLeaderElection.DEFAULT_MIN_TENURE_MILLIS,
+                    eventExecutor);
+            application.session.addRecoverableComponent(weightedElection);
+            weightedElection.volunteerForLeadership();
+            weightedElection.reelectLeader();
+            // no planned handoff in this mode, the best candidate takes over once our session is closed
+        } else {
+            electOldest(application.session, onElectionAction, eventExecutor);
+        }
 
         // make main thread waits
         application.run();
+        System.out.println(serviceRegistry.getRefresher());
+        System.out.println(eventExecutor);
+        System.out.println(checkpoint);
+        if (onElectionAction.getHeartbeatMonitor() != null) {
+            System.out.println(onElectionAction.getHeartbeatMonitor());
+        }
+        checkpoint.stopWriting();
+        serviceRegistry.close();
+        snapshotStore.close();
+        eventExecutor.shutdown();
         application.close();
         System.out.println("Disconnected from Zookeeper, exiting application");
     }
 
+    private static void electOldest(ZooKeeperSessionManager session, OnElectionAction onElectionAction,
+                                    ClusterEventExecutor eventExecutor) throws KeeperException, InterruptedException {
+        // leader election
+        LeaderElectionIntegrated leaderElection = new LeaderElectionIntegrated(session, onElectionAction, eventExecutor);
+        session.addRecoverableComponent(leaderElection);
+        leaderElection.volunteerForLeadership();
+        leaderElection.reelectLeader();
+
+        // on a clean stop (SIGTERM, rolling deploy) the leader hands over to the next candidate right away,
+        // instead of the cluster waiting for our session to go away
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (!leaderElection.isLeader()) {
+                return;
+            }
+            try {
+                // the leader's view already is in its checkpoint, the successor tailed it, so the handoff carries no state
+                boolean confirmed = leaderElection.handOffLeadership(new byte[0], HANDOFF_TIMEOUT_MILLIS);
+                System.out.println(confirmed ? "The new leader confirmed the handoff" : "No successor confirmed the handoff");
+            } catch (KeeperException | InterruptedException | IllegalStateException e) {
+                e.printStackTrace();
+            }
+        }));
+    }
+
 
     public ZooKeeper connectToZookeeper() throws IOException {
-        // create zookeeper object
-        this.zooKeeper = new ZooKeeper(ZOOKEEPER_ADDRESS,SESSION_TIMEOUT,this);
-        return zooKeeper;
+        // one session per ensemble and per JVM, whoever acquires it next gets it already connected
+        this.session = ZooKeeperSessionManager.acquire(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        session.addSessionStateListener(this);
+        return session.getZooKeeper();
     }
 
     public void run() throws InterruptedException {
-        synchronized (zooKeeper){
-            zooKeeper.wait();
+        synchronized (this){
+            while (!sessionClosed) {
+                wait();
+            }
         }
     }
 
     public void close() throws InterruptedException {
-        zooKeeper.close();
+        session.removeSessionStateListener(this);
+        session.release();
     }
 
 
     @Override
-    // handling events in the event handling thread
-    public void process(WatchedEvent watchedEvent) {
-        switch (watchedEvent.getType()){
-
-            // handle connections and disconnections events
-            case None:
-                if(watchedEvent.getState() == Event.KeeperState.SyncConnected){
-                    // if we get connected to the Zookeeper server
-                    System.out.println("Successfully connected to Zookeeper server");
-                }else{
-                    // when we lose connection to zookeeper
-                    synchronized (zooKeeper){
-                        System.out.println("Disconnected from zookeeper event");
-                        // wake up the main thread
-                        zooKeeper.notifyAll();
-                    }
+    // the session manager tracks the connection state for every component, we only follow it
+    public void onSessionStateChanged(ZooKeeperSessionManager.State previousState, ZooKeeperSessionManager.State newState) {
+        switch (newState){
+            case CONNECTED:
+                // if we get connected to the Zookeeper server
+                System.out.println("Successfully connected to Zookeeper server");
+                break;
+            case DISCONNECTED:
+                // the client reconnects on its own, within the session timeout our session survives it
+                System.out.println("Disconnected from zookeeper, reconnecting");
+                break;
+            case EXPIRED:
+                System.out.println("Our zookeeper session expired, the session manager is recovering it");
+                break;
+            case CLOSED:
+                // when the session is closed for good
+                synchronized (this){
+                    System.out.println("Zookeeper session closed");
+                    sessionClosed = true;
+                    // wake up the main thread
+                    notifyAll();
                 }
                 break;
+            default:
+                break;
         }
     }
 }
@@ -0,0 +1,155 @@
+import cluster.management.ClusterEventExecutor;
+import cluster.management.EndpointMetadata;
+import cluster.management.LeaderElectionIntegrated;
+import cluster.management.OnElectionCAllback;
+import cluster.management.ServiceRegistryIntegrated;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Leader failover latency while the service registry churns, with the zookeeper work of the follower
+// on the zookeeper event thread ("inline") and on the lanes of a ClusterEventExecutor ("lanes").
+// The follower watches the registry with full refreshes (one exists() and one getData() per worker)
+// and runs for leadership on the same session, like ApplicationIntegrated. Its session goes through a
+// NetworkPartitionProxy adding ONE_WAY_LATENCY_MILLIS, so a refresh of WORKERS workers takes a while.
+// Meanwhile another session replaces one registered worker every CHURN_INTERVAL_MILLIS.
+// The failover time runs from the moment the leader closes its session until the follower's onElectedToBeLeader().
+// The zookeeper server runs in this JVM (EmbeddedZooKeeper).
+public class ChurnFailoverBenchmark {
+    private static final String ELECTION_NAMESPACE = "/election";
+    private static final String REGISTRY_ZNODE = "/service_registry";
+    private static final int WORKERS = 100;
+    private static final long CHURN_INTERVAL_MILLIS = 20;
+    private static final long ONE_WAY_LATENCY_MILLIS = 1;
+    private static final int ROUNDS = 20;
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final int EVENT_QUEUE_CAPACITY = 64;
+    private static final long FAILOVER_TIMEOUT_MILLIS = 30_000;
+
+    // the follower's election callback
+    private static class Follower implements OnElectionCAllback {
+        private final CountDownLatch worker = new CountDownLatch(1);
+        private final CountDownLatch elected = new CountDownLatch(1);
+        private volatile long electedAtNanos;
+
+        @Override
+        public void onElectedToBeLeader() {
+            electedAtNanos = System.nanoTime();
+            elected.countDown();
+        }
+
+        @Override
+        public void onWorker() {
+            worker.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> results = new ArrayList<>();
+
+        try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper();
+             NetworkPartitionProxy proxy = new NetworkPartitionProxy(embeddedZooKeeper.getPort())) {
+            proxy.setLatencyMillis(ONE_WAY_LATENCY_MILLIS);
+
+            ZooKeeperSessionManager churnSession = ZooKeeperSessionManager.openConnected(embeddedZooKeeper.getConnectString(), SESSION_TIMEOUT);
+            ZooKeeper churnZooKeeper = churnSession.getZooKeeper();
+            churnZooKeeper.create(ELECTION_NAMESPACE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            churnZooKeeper.create(REGISTRY_ZNODE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+            Deque<String> registered = new ArrayDeque<>();
+            for (int i = 0; i < WORKERS; i++) {
+                registered.add(register(churnZooKeeper, i));
+            }
+            Thread churn = new Thread(() -> {
+                int next = WORKERS;
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        churnZooKeeper.delete(registered.poll(), -1);
+                        registered.add(register(churnZooKeeper, next++));
+                        Thread.sleep(CHURN_INTERVAL_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    // the benchmark is over
+                } catch (KeeperException e) {
+                    e.printStackTrace();
+                }
+            });
+            churn.start();
+
+            results.add(measure(embeddedZooKeeper.getConnectString(), proxy.getConnectString(), false));
+            results.add(measure(embeddedZooKeeper.getConnectString(), proxy.getConnectString(), true));
+
+            churn.interrupt();
+            churn.join();
+            churnSession.close();
+        }
+
+        System.out.println();
+        System.out.println("workers, churn interval (ms), one way latency (ms), zookeeper work, rounds, p50 (ms), p90 (ms), max (ms)");
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private static String measure(String connectString, String proxiedConnectString, boolean lanes)
+            throws IOException, InterruptedException, KeeperException {
+        double[] failoverMillis = new double[ROUNDS];
+
+        for (int round = 0; round < ROUNDS; round++) {
+            // the leader volunteers first, so the follower is next in line
+            ZooKeeperSessionManager leaderSession = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT);
+            LeaderElectionIntegrated leaderElection = new LeaderElectionIntegrated(leaderSession.getZooKeeper(), new Follower());
+            leaderElection.volunteerForLeadership();
+            leaderElection.reelectLeader();
+
+            ZooKeeperSessionManager followerSession = ZooKeeperSessionManager.openConnected(proxiedConnectString, SESSION_TIMEOUT);
+            ZooKeeper zooKeeper = followerSession.getZooKeeper();
+            ClusterEventExecutor eventExecutor = lanes ? new ClusterEventExecutor(EVENT_QUEUE_CAPACITY) : null;
+            ServiceRegistryIntegrated serviceRegistry = new ServiceRegistryIntegrated(zooKeeper, eventExecutor);
+            serviceRegistry.setBatchedRefresh(false);
+            serviceRegistry.registerForUpdates();
+
+            Follower follower = new Follower();
+            LeaderElectionIntegrated followerElection = new LeaderElectionIntegrated(zooKeeper, follower, eventExecutor);
+            followerElection.volunteerForLeadership();
+            followerElection.reelectLeader();
+            follower.worker.await();
+            while (serviceRegistry.getSnapshotVersion() == 0) {
+                Thread.sleep(10);
+            }
+            // the refreshes triggered by the churn are under way
+            Thread.sleep(500);
+
+            long startNanos = System.nanoTime();
+            leaderSession.close();
+            if (!follower.elected.await(FAILOVER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("no new leader within " + FAILOVER_TIMEOUT_MILLIS + " ms");
+            }
+            failoverMillis[round] = (follower.electedAtNanos - startNanos) / 1e6;
+
+            serviceRegistry.close();
+            followerSession.close();
+            if (eventExecutor != null) {
+                eventExecutor.shutdown();
+            }
+        }
+
+        Arrays.sort(failoverMillis);
+        return String.format("%d, %d, %d, %s, %d, %.1f, %.1f, %.1f", WORKERS, CHURN_INTERVAL_MILLIS, ONE_WAY_LATENCY_MILLIS,
+                lanes ? "lanes" : "inline", ROUNDS, failoverMillis[ROUNDS / 2], failoverMillis[ROUNDS * 9 / 10],
+                failoverMillis[ROUNDS - 1]);
+    }
+
+    private static String register(ZooKeeper zooKeeper, int worker) throws KeeperException, InterruptedException {
+        byte[] metaData = EndpointMetadata.encode("http://127.0.0.1:" + (8080 + worker), 1, "", 1, 1, System.currentTimeMillis());
+        return zooKeeper.create(REGISTRY_ZNODE + "/n_", metaData, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+    }
+}
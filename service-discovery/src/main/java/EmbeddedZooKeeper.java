@@ -0,0 +1,99 @@
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A standalone zookeeper server running inside the benchmark's own JVM, on a free loopback port
+// and a temporary data directory, so the benchmarks need nothing but this machine.
+// It also counts the requests the clients send (pings excluded), to report zookeeper operations per scenario,
+// and the pings on their own.
+public class EmbeddedZooKeeper implements AutoCloseable {
+    // a short tick so session expiry is detected with a 50ms granularity
+    private static final int TICK_TIME = 50;
+    private static final int MAX_SESSION_TIMEOUT = 60_000;
+    private static final int MAX_CLIENT_CONNECTIONS = 1000;
+
+    private static class RequestCountingServer extends ZooKeeperServer {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong pings = new AtomicLong();
+
+        RequestCountingServer(File dataDirectory) throws IOException {
+            super(dataDirectory, dataDirectory, TICK_TIME);
+        }
+
+        @Override
+        public void submitRequest(Request request) {
+            if (request.type != ZooDefs.OpCode.ping) {
+                requests.incrementAndGet();
+            } else {
+                pings.incrementAndGet();
+            }
+            super.submitRequest(request);
+        }
+    }
+
+    private final File dataDirectory;
+    private final RequestCountingServer server;
+    private final ServerCnxnFactory connectionFactory;
+
+    public EmbeddedZooKeeper() throws IOException, InterruptedException {
+        this.dataDirectory = Files.createTempDirectory("embedded-zookeeper").toFile();
+        this.server = new RequestCountingServer(dataDirectory);
+        server.setMinSessionTimeout(2 * TICK_TIME);
+        server.setMaxSessionTimeout(MAX_SESSION_TIMEOUT);
+
+        this.connectionFactory = ServerCnxnFactory.createFactory(
+                new InetSocketAddress("127.0.0.1", 0), MAX_CLIENT_CONNECTIONS);
+        connectionFactory.startup(server);
+    }
+
+    public String getConnectString() {
+        return "127.0.0.1:" + getPort();
+    }
+
+    public int getPort() {
+        return connectionFactory.getLocalPort();
+    }
+
+    // requests received since the server started, pings excluded
+    public long getRequestCount() {
+        return server.requests.get();
+    }
+
+    // the heartbeats of all the sessions, each client pings every third of its session timeout when idle
+    public long getPingCount() {
+        return server.pings.get();
+    }
+
+    public long getSessionCount() {
+        return server.getZKDatabase().getSessionCount();
+    }
+
+    // watches the server keeps for its clients, one per path and session whatever the number of watchers in a client
+    public int getWatchCount() {
+        return server.getZKDatabase().getDataTree().getWatchCount();
+    }
+
+    @Override
+    public void close() {
+        connectionFactory.shutdown();
+        server.shutdown();
+        deleteRecursively(dataDirectory);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
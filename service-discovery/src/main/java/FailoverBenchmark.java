@@ -0,0 +1,168 @@
+import cluster.management.LeaderElectionIntegrated;
+import cluster.management.OnElectionCAllback;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// How long it takes LeaderElectionIntegrated to hand leadership over after the leader dies,
+// against the number of candidates and the session timeout.
+// The leader is killed three ways:
+//   HANDOFF - a planned stop, the leader hands over with LeaderElectionIntegrated.handOffLeadership() then closes
+//   CLOSE   - the process shuts down cleanly, its session is closed and its candidate znode removed right away
+//   EXPIRY  - the process crashes, nothing is sent to zookeeper and the znode only goes away when the session expires
+// The failover time runs from the moment the old leader stops until the new leader's onElectedToBeLeader().
+// Every participant has its own session, like the real applications, and the zookeeper server runs
+// in this JVM (EmbeddedZooKeeper), so no external service is needed.
+// The client socket implementation matters for CLOSE: compare with -Dzookeeper.clientCnxnSocket=org.apache.zookeeper.ClientCnxnSocketNetty
+public class FailoverBenchmark {
+    private static final String ELECTION_NAMESPACE = "/election";
+    private static final int[] PARTICIPANT_COUNTS = {3, 10, 50};
+    // 3000 is what the applications use
+    private static final int[] SESSION_TIMEOUTS = {1000, 3000};
+    private static final int CLOSE_ROUNDS = 20;
+    private static final int EXPIRY_ROUNDS = 5;
+    // what the outgoing leader ships to its successor in HANDOFF
+    private static final int HANDOFF_STATE_BYTES = 1024;
+    private static final long FAILOVER_TIMEOUT_MILLIS = 30_000;
+
+    private enum KillMode {
+        HANDOFF,
+        CLOSE,
+        EXPIRY
+    }
+
+    // one election participant with its own zookeeper session
+    private static class Participant implements OnElectionCAllback {
+        private final BlockingQueue<Participant> electedLeaders;
+        private final ZooKeeperSessionManager session;
+        private final ZooKeeper zooKeeper;
+        private final LeaderElectionIntegrated leaderElection;
+        private volatile long electedAtNanos;
+
+        Participant(String connectString, int sessionTimeout, BlockingQueue<Participant> electedLeaders)
+                throws IOException, InterruptedException, KeeperException {
+            this.electedLeaders = electedLeaders;
+            this.session = ZooKeeperSessionManager.openConnected(connectString, sessionTimeout);
+            this.zooKeeper = session.getZooKeeper();
+
+            this.leaderElection = new LeaderElectionIntegrated(zooKeeper, this);
+            leaderElection.volunteerForLeadership();
+            leaderElection.reelectLeader();
+        }
+
+        @Override
+        public void onElectedToBeLeader() {
+            electedAtNanos = System.nanoTime();
+            electedLeaders.offer(this);
+        }
+
+        @Override
+        public void onWorker() {
+        }
+
+        void kill(KillMode killMode) throws InterruptedException, KeeperException {
+            if (killMode == KillMode.HANDOFF) {
+                if (!leaderElection.handOffLeadership(new byte[HANDOFF_STATE_BYTES], FAILOVER_TIMEOUT_MILLIS)) {
+                    throw new IllegalStateException("the handoff was not confirmed");
+                }
+                session.close();
+            } else if (killMode == KillMode.CLOSE) {
+                session.close();
+            } else {
+                // the client stops talking to the server without closing its session, like a crashed process
+                zooKeeper.getTestable().injectSessionExpiration();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        List<String> results = new ArrayList<>();
+
+        try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+            createElectionNamespace(embeddedZooKeeper.getConnectString());
+
+            for (int participantCount : PARTICIPANT_COUNTS) {
+                for (int sessionTimeout : SESSION_TIMEOUTS) {
+                    for (KillMode killMode : KillMode.values()) {
+                        int rounds = killMode == KillMode.EXPIRY ? EXPIRY_ROUNDS : CLOSE_ROUNDS;
+                        results.add(runScenario(embeddedZooKeeper, participantCount, sessionTimeout, killMode, rounds));
+                    }
+                }
+            }
+        }
+
+        // the participants are chatty, so the table comes at the very end
+        System.out.println();
+        System.out.println("participants, session timeout (ms), kill, rounds, p50 (ms), p90 (ms), p99 (ms), max (ms), zookeeper requests per failover");
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private static String runScenario(EmbeddedZooKeeper embeddedZooKeeper, int participantCount, int sessionTimeout,
+                                      KillMode killMode, int rounds) throws IOException, InterruptedException, KeeperException {
+        String connectString = embeddedZooKeeper.getConnectString();
+        BlockingQueue<Participant> electedLeaders = new LinkedBlockingQueue<>();
+        List<Participant> participants = new ArrayList<>();
+        for (int i = 0; i < participantCount; i++) {
+            participants.add(new Participant(connectString, sessionTimeout, electedLeaders));
+        }
+        Participant leader = electedLeaders.take();
+
+        double[] failoverMillis = new double[rounds];
+        long totalRequests = 0;
+        for (int round = 0; round < rounds; round++) {
+            long requestsBefore = embeddedZooKeeper.getRequestCount();
+            long start = System.nanoTime();
+
+            leader.kill(killMode);
+            Participant newLeader = electedLeaders.poll(FAILOVER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (newLeader == null) {
+                throw new IllegalStateException("no new leader within " + FAILOVER_TIMEOUT_MILLIS + " ms");
+            }
+
+            failoverMillis[round] = (newLeader.electedAtNanos - start) / 1e6;
+            totalRequests += embeddedZooKeeper.getRequestCount() - requestsBefore;
+
+            // release the client threads of the crashed leader, its session is already gone
+            leader.session.close();
+            participants.remove(leader);
+            leader = newLeader;
+
+            // keep the number of candidates constant, the replacement joins at the end of the line
+            participants.add(new Participant(connectString, sessionTimeout, electedLeaders));
+        }
+
+        for (Participant participant : participants) {
+            participant.session.close();
+        }
+
+        Arrays.sort(failoverMillis);
+        return String.format("%d, %d, %s, %d, %.1f, %.1f, %.1f, %.1f, %.1f",
+                participantCount, sessionTimeout, killMode, rounds,
+                percentile(failoverMillis, 0.50),
+                percentile(failoverMillis, 0.90),
+                percentile(failoverMillis, 0.99),
+                failoverMillis[rounds - 1],
+                (double) totalRequests / rounds);
+    }
+
+    // nearest rank percentile of sorted samples
+    private static double percentile(double[] sortedSamples, double fraction) {
+        int rank = (int) Math.ceil(fraction * sortedSamples.length);
+        return sortedSamples[Math.max(0, rank - 1)];
+    }
+
+    private static void createElectionNamespace(String connectString) throws IOException, InterruptedException, KeeperException {
+        try (ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUTS[0])) {
+            session.getZooKeeper().create(ELECTION_NAMESPACE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+    }
+}
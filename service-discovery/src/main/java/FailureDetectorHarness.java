@@ -0,0 +1,196 @@
+import cluster.management.EndpointMetadata;
+import cluster.management.HeartbeatMonitor;
+import cluster.management.HeartbeatResponder;
+import cluster.management.OnRegistryUpdateCallback;
+import cluster.management.RegistrySnapshot;
+import cluster.management.ServiceRegistryIntegrated;
+import cluster.management.ZooKeeperSessionManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// How much sooner the leader stops routing to a crashed worker with the heartbeats (HeartbeatMonitor) than with
+// zookeeper alone, and how often the heartbeats wrongly eject a healthy worker.
+// The workers are real processes (this class started with "worker <connect string> <port>"), they register in the
+// service registry with the applications' session timeout and answer the pings with a HeartbeatResponder.
+// This process plays the leader: incremental registry plus HeartbeatMonitor, the zookeeper server runs in it too.
+// First every worker stays healthy for HEALTHY_MILLIS, every suspicion then is a false positive.
+// Then the workers are SIGKILLed one by one, and for each we measure the time until it leaves the routing view
+// (the heartbeats) and until its registry znode goes away (zookeeper's session expiry).
+// Exits with status 1 if a crash was not detected by the heartbeats before zookeeper.
+public class FailureDetectorHarness {
+    private static final int WORKERS = 5;
+    private static final int KILLS = 3;
+    // what the applications use
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 100;
+    private static final double PHI_THRESHOLD = HeartbeatMonitor.DEFAULT_PHI_THRESHOLD;
+    private static final long HEALTHY_MILLIS = 20_000;
+    private static final long DETECTION_TIMEOUT_MILLIS = 30_000;
+
+    // when a worker left the routing view, and when its znode left the registry
+    private static final Map<String, Long> ejectedAtNanos = new ConcurrentHashMap<>();
+    private static final Map<String, Long> removedAtNanos = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals("worker")) {
+            runWorker(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+
+        List<Process> workers = new ArrayList<>();
+        // a failed run must not leave its workers behind
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> workers.forEach(Process::destroyForcibly)));
+
+        boolean passed = true;
+        List<String> results = new ArrayList<>();
+        try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+            String connectString = embeddedZooKeeper.getConnectString();
+            ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT);
+
+            ServiceRegistryIntegrated serviceRegistry = new ServiceRegistryIntegrated(session.getZooKeeper());
+            serviceRegistry.addRegistryListener(new ViewTracker(serviceRegistry));
+            serviceRegistry.registerForIncrementalUpdates();
+            HeartbeatMonitor heartbeatMonitor = new HeartbeatMonitor(serviceRegistry, HEARTBEAT_INTERVAL_MILLIS, PHI_THRESHOLD);
+            serviceRegistry.addRegistryListener(heartbeatMonitor);
+
+            for (int i = 0; i < WORKERS; i++) {
+                workers.add(startWorker(connectString, freePort()));
+            }
+            awaitMembers(serviceRegistry, WORKERS);
+            // until every worker answered once, phi has nothing to say about it
+            Thread.sleep(1000);
+
+            long suspicionsBefore = heartbeatMonitor.getSuspicions();
+            Thread.sleep(HEALTHY_MILLIS);
+            long falsePositives = heartbeatMonitor.getSuspicions() - suspicionsBefore;
+            double endpointHours = WORKERS * HEALTHY_MILLIS / 3_600_000.0;
+            results.add(String.format("healthy period: %d workers for %d ms, %d pings, %d answers, %d suspicions (%.1f per endpoint-hour)",
+                    WORKERS, HEALTHY_MILLIS, heartbeatMonitor.getPingsSent(), heartbeatMonitor.getAnswersReceived(),
+                    falsePositives, falsePositives / endpointHours));
+
+            results.add("kill, heartbeat ejection (ms), znode removal (ms), detected first by");
+            for (int kill = 0; kill < KILLS; kill++) {
+                Set<String> before = new HashSet<>(serviceRegistry.getMembers().keySet());
+                Process victim = workers.get(kill);
+                long killedAtNanos = System.nanoTime();
+                victim.destroyForcibly();
+
+                String name = awaitRemoval(before);
+                if (name == null) {
+                    passed = false;
+                    results.add(String.format("%d, -, -, NOT REMOVED", kill + 1));
+                    continue;
+                }
+                Long ejected = ejectedAtNanos.get(name);
+                Long removed = removedAtNanos.get(name);
+                boolean heartbeatsFirst = ejected != null && ejected < removed;
+                passed &= heartbeatsFirst;
+                results.add(String.format("%d, %s, %.1f, %s", kill + 1,
+                        ejected == null ? "-" : String.format("%.1f", (ejected - killedAtNanos) / 1e6),
+                        (removed - killedAtNanos) / 1e6, heartbeatsFirst ? "heartbeats" : "ZOOKEEPER"));
+            }
+            results.add(heartbeatMonitor.toString());
+
+            heartbeatMonitor.close();
+            session.close();
+        } finally {
+            workers.forEach(Process::destroyForcibly);
+        }
+
+        System.out.println();
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.out.println(passed ? "PASS" : "FAIL: see the rows above");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // records when a worker leaves the routing view and when it leaves the registry
+    private static class ViewTracker implements OnRegistryUpdateCallback {
+        private final ServiceRegistryIntegrated serviceRegistry;
+        private Set<String> routed = new HashSet<>();
+        private Set<String> members = new HashSet<>();
+
+        ViewTracker(ServiceRegistryIntegrated serviceRegistry) {
+            this.serviceRegistry = serviceRegistry;
+        }
+
+        @Override
+        public synchronized void onRegistryUpdated(RegistrySnapshot snapshot) {
+            long now = System.nanoTime();
+            Set<String> currentRouted = snapshot.getMetadata().keySet();
+            for (String name : routed) {
+                if (!currentRouted.contains(name)) {
+                    ejectedAtNanos.putIfAbsent(name, now);
+                }
+            }
+            Set<String> currentMembers = serviceRegistry.getMembers().keySet();
+            for (String name : members) {
+                if (!currentMembers.contains(name)) {
+                    removedAtNanos.putIfAbsent(name, now);
+                }
+            }
+            routed = new HashSet<>(currentRouted);
+            members = new HashSet<>(currentMembers);
+        }
+    }
+
+    // waits until one of the given members is gone from zookeeper and returns it, null on timeout
+    private static String awaitRemoval(Set<String> members) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DETECTION_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            for (String name : members) {
+                if (removedAtNanos.containsKey(name)) {
+                    return name;
+                }
+            }
+            Thread.sleep(1);
+        }
+        return null;
+    }
+
+    private static void awaitMembers(ServiceRegistryIntegrated serviceRegistry, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DETECTION_TIMEOUT_MILLIS;
+        while (serviceRegistry.getMembers().size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("the workers did not register");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static Process startWorker(String connectString, int port) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                FailureDetectorHarness.class.getName(), "worker", connectString, Integer.toString(port)))
+                .inheritIO()
+                .start();
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // the worker process: registers, answers the pings, and waits to be killed
+    private static void runWorker(String connectString, int port) throws Exception {
+        HeartbeatResponder heartbeatResponder = new HeartbeatResponder(port);
+        ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT);
+        ServiceRegistryIntegrated serviceRegistry = new ServiceRegistryIntegrated(session.getZooKeeper());
+        serviceRegistry.registerToCluster(EndpointMetadata.encode("http://127.0.0.1:" + heartbeatResponder.getPort(),
+                1, "", 1, 1, System.currentTimeMillis()));
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
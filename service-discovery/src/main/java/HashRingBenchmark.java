@@ -0,0 +1,95 @@
+import cluster.management.ConsistentHashRing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Lookup throughput of the consistent hash ring, and the fraction of keys that move to another worker
+// when one worker joins or leaves, compared with hash(key) % size.
+// Runs in memory, no zookeeper server needed.
+public class HashRingBenchmark {
+    private static final int[] CLUSTER_SIZES = {10, 100, 1000};
+    private static final int KEYS = 100_000;
+    private static final int LOOKUPS = 20_000_000;
+
+    public static void main(String[] args) {
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key-" + i;
+        }
+
+        System.out.println("workers, lookups/s, moved on join (ring), moved on leave (ring), moved on join (modulo)");
+        for (int clusterSize : CLUSTER_SIZES) {
+            List<String> workers = new ArrayList<>();
+            for (int i = 0; i < clusterSize; i++) {
+                workers.add("http://worker-" + i + ":8080");
+            }
+
+            ConsistentHashRing ring = new ConsistentHashRing();
+            ring.updateMembers(workers);
+
+            double lookupsPerSecond = lookupsPerSecond(ring, keys);
+
+            String[] before = assign(ring, keys);
+            workers.add("http://worker-" + clusterSize + ":8080");
+            ring.updateMembers(workers);
+            String[] afterJoin = assign(ring, keys);
+
+            workers.remove(0);
+            ring.updateMembers(workers);
+            String[] afterLeave = assign(ring, keys);
+
+            int movedModulo = 0;
+            for (String key : keys) {
+                long hash = ConsistentHashRing.hash(key);
+                if (Math.floorMod(hash, clusterSize) != Math.floorMod(hash, clusterSize + 1)) {
+                    movedModulo++;
+                }
+            }
+
+            System.out.println(String.format("%d, %,.0f, %.2f%%, %.2f%%, %.2f%%",
+                    clusterSize,
+                    lookupsPerSecond,
+                    100.0 * moved(before, afterJoin) / KEYS,
+                    100.0 * moved(afterJoin, afterLeave) / KEYS,
+                    100.0 * movedModulo / KEYS));
+        }
+    }
+
+    private static double lookupsPerSecond(ConsistentHashRing ring, String[] keys) {
+        // warm up
+        int checksum = 0;
+        for (int i = 0; i < LOOKUPS / 10; i++) {
+            checksum += ring.lookup(keys[i % keys.length]).length();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            checksum += ring.lookup(keys[i % keys.length]).length();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // keep the JIT from dropping the lookups
+        if (checksum == 42) {
+            System.out.println();
+        }
+        return LOOKUPS * 1e9 / elapsed;
+    }
+
+    private static String[] assign(ConsistentHashRing ring, String[] keys) {
+        String[] owners = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            owners[i] = ring.lookup(keys[i]);
+        }
+        return owners;
+    }
+
+    private static int moved(String[] before, String[] after) {
+        int moved = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (!before[i].equals(after[i])) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,190 @@
+import cluster.management.FencingTokenValidator;
+import cluster.management.LeaderElectionIntegrated;
+import cluster.management.LeaderLease;
+import cluster.management.OnElectionCAllback;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Checks and measures the leader lease (LeaderLease):
+//  - the cost of a local isLeader() against a zookeeper round trip
+//  - the renewal latency, in steady state
+//  - safety: the leader is cut off by a network partition (NetworkPartitionProxy), its lease has to run out
+//    before anybody else gets elected, and the followers have to reject its commands once the new leader's
+//    fencing token was seen
+// Runs against an in-process zookeeper server (EmbeddedZooKeeper), no external service needed.
+// Exits with status 1 if any of the safety checks failed.
+public class LeaseBenchmark {
+    private static final String ELECTION_NAMESPACE = "/election";
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final int PARTICIPANTS = 3;
+    private static final int ROUNDS = 5;
+    private static final int IS_LEADER_CALLS = 100_000_000;
+    private static final int ROUND_TRIPS = 2000;
+    private static final long FAILOVER_TIMEOUT_MILLIS = 30_000;
+    private static final long RENEWAL_PERIOD_MILLIS = 5 * SESSION_TIMEOUT;
+
+    // one election participant with its own zookeeper session, connected through its own proxy
+    private static class Participant implements OnElectionCAllback {
+        private final BlockingQueue<Participant> electedLeaders;
+        private final NetworkPartitionProxy proxy;
+        private final ZooKeeperSessionManager session;
+        private final ZooKeeper zooKeeper;
+        private final LeaderElectionIntegrated leaderElection;
+        private final LeaderLease lease;
+        private volatile long electedAtNanos;
+
+        Participant(EmbeddedZooKeeper embeddedZooKeeper, BlockingQueue<Participant> electedLeaders)
+                throws IOException, InterruptedException, KeeperException {
+            this.electedLeaders = electedLeaders;
+            this.proxy = new NetworkPartitionProxy(embeddedZooKeeper.getPort());
+            this.session = ZooKeeperSessionManager.openConnected(proxy.getConnectString(), SESSION_TIMEOUT);
+            this.zooKeeper = session.getZooKeeper();
+
+            this.leaderElection = new LeaderElectionIntegrated(zooKeeper, this);
+            this.lease = leaderElection.enableLease();
+            leaderElection.volunteerForLeadership();
+            leaderElection.reelectLeader();
+        }
+
+        @Override
+        public void onElectedToBeLeader() {
+            electedAtNanos = System.nanoTime();
+            electedLeaders.offer(this);
+        }
+
+        @Override
+        public void onWorker() {
+        }
+
+        void close() throws IOException {
+            lease.shutdown();
+            // reconnecting lets close() find out right away that the session is gone
+            proxy.heal();
+            session.close();
+            proxy.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        boolean safe = true;
+
+        try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+            createElectionNamespace(embeddedZooKeeper.getConnectString());
+
+            BlockingQueue<Participant> electedLeaders = new LinkedBlockingQueue<>();
+            List<Participant> participants = new ArrayList<>();
+            for (int i = 0; i < PARTICIPANTS; i++) {
+                participants.add(new Participant(embeddedZooKeeper, electedLeaders));
+            }
+            Participant leader = electedLeaders.take();
+
+            measureLocalCheck(leader);
+
+            // a few renewals in steady state, one every third of the session timeout
+            Thread.sleep(RENEWAL_PERIOD_MILLIS);
+            System.out.println(leader.lease);
+
+            // the followers' side: every command the leader sends carries its fencing token
+            FencingTokenValidator validator = new FencingTokenValidator();
+
+            System.out.println("round, lease lapsed after (ms), new leader after (ms), margin (ms), stale command rejected");
+            List<String> rounds = new ArrayList<>();
+            for (int round = 0; round < ROUNDS; round++) {
+                validator.validate(leader.lease.getFencingToken());
+
+                long start = System.nanoTime();
+                leader.proxy.partition();
+
+                // the old leader keeps believing it leads until its lease runs out, find out when that happens
+                long lapsedAtNanos;
+                while (true) {
+                    long now = System.nanoTime();
+                    if (!leader.lease.isLeader()) {
+                        lapsedAtNanos = now;
+                        break;
+                    }
+                }
+
+                Participant newLeader = electedLeaders.poll(FAILOVER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (newLeader == null) {
+                    throw new IllegalStateException("no new leader within " + FAILOVER_TIMEOUT_MILLIS + " ms");
+                }
+
+                // the new leader's first command, then a late command from the old one
+                validator.validate(newLeader.lease.getFencingToken());
+                boolean staleRejected = !validator.validate(leader.lease.getFencingToken());
+
+                double marginMillis = (newLeader.electedAtNanos - lapsedAtNanos) / 1e6;
+                safe &= marginMillis > 0 && staleRejected;
+                rounds.add(String.format("%d, %.1f, %.1f, %.1f, %s",
+                        round,
+                        (lapsedAtNanos - start) / 1e6,
+                        (newLeader.electedAtNanos - start) / 1e6,
+                        marginMillis,
+                        staleRejected ? "yes" : "NO"));
+
+                leader.close();
+                participants.remove(leader);
+                leader = newLeader;
+                participants.add(new Participant(embeddedZooKeeper, electedLeaders));
+            }
+
+            for (String round : rounds) {
+                System.out.println(round);
+            }
+            System.out.println(leader.lease);
+            System.out.println(validator);
+
+            for (Participant participant : participants) {
+                participant.close();
+            }
+        }
+
+        System.out.println(safe ? "PASS: no overlapping leases, every stale command rejected" : "FAIL: see the rounds above");
+        if (!safe) {
+            System.exit(1);
+        }
+    }
+
+    private static void measureLocalCheck(Participant leader) throws KeeperException, InterruptedException {
+        LeaderLease lease = leader.lease;
+        int leading = 0;
+        // warm up
+        for (int i = 0; i < IS_LEADER_CALLS / 10; i++) {
+            leading += lease.isLeader() ? 1 : 0;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < IS_LEADER_CALLS; i++) {
+            leading += lease.isLeader() ? 1 : 0;
+        }
+        double localNanos = (double) (System.nanoTime() - start) / IS_LEADER_CALLS;
+
+        // what checking the leadership costs without a lease: a read of our own candidate znode
+        String candidatePath = ELECTION_NAMESPACE + "/" + leader.leaderElection.getCandidateIndex().first();
+        start = System.nanoTime();
+        for (int i = 0; i < ROUND_TRIPS; i++) {
+            leading += leader.zooKeeper.exists(candidatePath, false) != null ? 1 : 0;
+        }
+        double roundTripNanos = (double) (System.nanoTime() - start) / ROUND_TRIPS;
+
+        // keep the JIT from dropping the calls
+        if (leading == 42) {
+            System.out.println();
+        }
+        System.out.println(String.format("isLeader() from the lease: %.1f ns, exists() round trip: %.1f us",
+                localNanos, roundTripNanos / 1000));
+    }
+
+    private static void createElectionNamespace(String connectString) throws IOException, InterruptedException, KeeperException {
+        try (ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT)) {
+            session.getZooKeeper().create(ELECTION_NAMESPACE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import cluster.management.EndpointMetadata;
+import cluster.management.LoadBalancer;
+import cluster.management.ServiceRegistryIntegrated;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// How the LoadBalancer strategies spread traffic over workers of different speeds, and what the requests' latency is.
+// The workers are simulated in this JVM: SERVICE_TIMES_MILLIS[i] is how long worker i takes to answer,
+// and each of them answers WORKER_CONCURRENCY requests at a time, the others queue, like a real worker's thread pool.
+// CLIENTS threads send requests back to back for MEASURE_MILLIS, through a LoadBalancer that follows a real
+// service registry (incremental updates, the zookeeper server runs in this JVM too).
+// Then, with power of two choices, a hung worker joins: it accepts requests and never answers, the clients give up
+// after REQUEST_TIMEOUT_MILLIS. We count the requests it swallows and the throughput of the others meanwhile.
+public class LoadBalancerBenchmark {
+    private static final long[] SERVICE_TIMES_MILLIS = {1, 2, 4, 8, 16};
+    private static final int WORKER_CONCURRENCY = 2;
+    private static final int CLIENTS = 16;
+    private static final long WARM_UP_MILLIS = 1000;
+    private static final long MEASURE_MILLIS = 5000;
+    private static final long REQUEST_TIMEOUT_MILLIS = 1000;
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final String REGISTRY_ZNODE = "/service_registry";
+    private static final String HUNG_ADDRESS = "http://127.0.0.1:9999";
+
+    // address -> the threads of the simulated worker
+    private static final Map<String, ExecutorService> workers = new HashMap<>();
+    private static final Map<String, Long> serviceTimes = new HashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        List<String> results = new ArrayList<>();
+
+        try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+            ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(embeddedZooKeeper.getConnectString(), SESSION_TIMEOUT);
+            ZooKeeper zooKeeper = session.getZooKeeper();
+
+            ServiceRegistryIntegrated serviceRegistry = new ServiceRegistryIntegrated(zooKeeper);
+            for (int i = 0; i < SERVICE_TIMES_MILLIS.length; i++) {
+                String address = "http://127.0.0.1:" + (8080 + i);
+                register(zooKeeper, address);
+                workers.put(address, Executors.newFixedThreadPool(WORKER_CONCURRENCY));
+                serviceTimes.put(address, SERVICE_TIMES_MILLIS[i]);
+            }
+            serviceRegistry.registerForIncrementalUpdates();
+
+            for (LoadBalancer.Strategy strategy : LoadBalancer.Strategy.values()) {
+                LoadBalancer loadBalancer = new LoadBalancer(strategy);
+                serviceRegistry.addRegistryListener(loadBalancer);
+                awaitEndpoints(loadBalancer, SERVICE_TIMES_MILLIS.length);
+                results.add(measureSteadyState(loadBalancer));
+                serviceRegistry.removeRegistryListener(loadBalancer);
+            }
+
+            LoadBalancer loadBalancer = new LoadBalancer(LoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+            serviceRegistry.addRegistryListener(loadBalancer);
+            awaitEndpoints(loadBalancer, SERVICE_TIMES_MILLIS.length);
+            results.add(measureHungWorker(zooKeeper, loadBalancer));
+
+            serviceRegistry.close();
+            session.close();
+        } finally {
+            workers.values().forEach(ExecutorService::shutdownNow);
+        }
+
+        System.out.println();
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private static String measureSteadyState(LoadBalancer loadBalancer) throws InterruptedException {
+        // warm up, the EWMAs settle
+        runClients(loadBalancer, WARM_UP_MILLIS, null);
+
+        Map<String, AtomicLong> requests = new HashMap<>();
+        for (LoadBalancer.Endpoint endpoint : loadBalancer.getEndpoints()) {
+            requests.put(endpoint.getAddress(), new AtomicLong());
+        }
+        List<long[]> latencies = runClients(loadBalancer, MEASURE_MILLIS, requests);
+
+        long total = requests.values().stream().mapToLong(AtomicLong::get).sum();
+        StringBuilder shares = new StringBuilder();
+        for (int i = 0; i < SERVICE_TIMES_MILLIS.length; i++) {
+            long count = requests.get("http://127.0.0.1:" + (8080 + i)).get();
+            shares.append(String.format(" %d ms: %.1f%%", SERVICE_TIMES_MILLIS[i], 100.0 * count / total));
+        }
+        double[] millis = sortedMillis(latencies);
+        return String.format("%s: %d requests (%.0f/s), share by service time:%s, p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                loadBalancer.getStrategy(), total, total * 1000.0 / MEASURE_MILLIS, shares,
+                percentile(millis, 0.5), percentile(millis, 0.99), millis[millis.length - 1]);
+    }
+
+    // a worker that never answers joins the registry while the clients are running
+    private static String measureHungWorker(ZooKeeper zooKeeper, LoadBalancer loadBalancer)
+            throws InterruptedException, KeeperException {
+        runClients(loadBalancer, WARM_UP_MILLIS, null);
+
+        workers.put(HUNG_ADDRESS, Executors.newCachedThreadPool());
+        serviceTimes.put(HUNG_ADDRESS, Long.MAX_VALUE);
+
+        Map<String, AtomicLong> requests = new HashMap<>();
+        for (LoadBalancer.Endpoint endpoint : loadBalancer.getEndpoints()) {
+            requests.put(endpoint.getAddress(), new AtomicLong());
+        }
+        requests.put(HUNG_ADDRESS, new AtomicLong());
+
+        Thread joiner = new Thread(() -> {
+            try {
+                register(zooKeeper, HUNG_ADDRESS);
+            } catch (KeeperException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        joiner.start();
+        // the first REQUEST_TIMEOUT_MILLIS after the join, before the hung worker's first timeout gives it a latency
+        runClients(loadBalancer, REQUEST_TIMEOUT_MILLIS, requests);
+        joiner.join();
+
+        long others = requests.values().stream().mapToLong(AtomicLong::get).sum() - requests.get(HUNG_ADDRESS).get();
+        return String.format("POWER_OF_TWO_CHOICES, hung worker joins: %d requests sent to it in the first %d ms "
+                        + "(%d clients), %d requests answered by the others meanwhile (%.0f/s)",
+                requests.get(HUNG_ADDRESS).get(), REQUEST_TIMEOUT_MILLIS, CLIENTS, others,
+                others * 1000.0 / REQUEST_TIMEOUT_MILLIS);
+    }
+
+    // CLIENTS threads send requests back to back for durationMillis, counting them per address if requests is not null.
+    // Returns the latencies of every client, in nanoseconds
+    private static List<long[]> runClients(LoadBalancer loadBalancer, long durationMillis, Map<String, AtomicLong> requests)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long[][] latencies = new long[CLIENTS][];
+        Thread[] clients = new Thread[CLIENTS];
+
+        for (int i = 0; i < CLIENTS; i++) {
+            int client = i;
+            clients[i] = new Thread(() -> {
+                long[] samples = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    LoadBalancer.Endpoint endpoint = loadBalancer.select();
+                    if (requests != null) {
+                        AtomicLong counter = requests.get(endpoint.getAddress());
+                        if (counter != null) {
+                            counter.incrementAndGet();
+                        }
+                    }
+                    if (count == samples.length) {
+                        samples = Arrays.copyOf(samples, count * 2);
+                    }
+                    samples[count++] = send(endpoint);
+                }
+                latencies[client] = Arrays.copyOf(samples, count);
+            });
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        return Arrays.asList(latencies);
+    }
+
+    // one request to the simulated worker, the way a client would time it for the load balancer
+    private static long send(LoadBalancer.Endpoint endpoint) {
+        ExecutorService worker = workers.get(endpoint.getAddress());
+        long serviceTime = serviceTimes.get(endpoint.getAddress());
+
+        endpoint.onRequestStart();
+        long startNanos = System.nanoTime();
+        try {
+            worker.submit(() -> {
+                Thread.sleep(serviceTime);
+                return null;
+            }).get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // a timeout counts as a request that took REQUEST_TIMEOUT_MILLIS
+        }
+        long latencyNanos = System.nanoTime() - startNanos;
+        endpoint.onRequestComplete(latencyNanos);
+        return latencyNanos;
+    }
+
+    private static void register(ZooKeeper zooKeeper, String address) throws KeeperException, InterruptedException {
+        byte[] metaData = EndpointMetadata.encode(address, 1, "", 1, 1, System.currentTimeMillis());
+        zooKeeper.create(REGISTRY_ZNODE + "/n_", metaData, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+    }
+
+    private static void awaitEndpoints(LoadBalancer loadBalancer, int endpoints) throws InterruptedException {
+        while (loadBalancer.size() != endpoints) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static double[] sortedMillis(List<long[]> latencies) {
+        double[] millis = latencies.stream().flatMapToLong(Arrays::stream).mapToDouble(nanos -> nanos / 1e6).toArray();
+        Arrays.sort(millis);
+        return millis;
+    }
+
+    private static double percentile(double[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// A TCP proxy between one zookeeper client and the server, used by the benchmarks to simulate a network partition.
+// While partitioned the connections stay open but every byte is dropped in both directions, like a black hole,
+// so neither side notices anything until its own timeouts fire.
+// It can also delay every byte by a fixed one way latency, to count round trips on a loopback connection:
+// the bytes are queued with their due time, so pipelined requests still overlap like on a real network.
+public class NetworkPartitionProxy implements AutoCloseable {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InetAddress loopback = InetAddress.getLoopbackAddress();
+    private final int targetPort;
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private volatile boolean partitioned = false;
+    private volatile long latencyNanos = 0;
+
+    // a chunk of bytes read from one side, written to the other once due
+    private static final class Chunk {
+        private final byte[] bytes;
+        private final long dueNanos;
+
+        Chunk(byte[] bytes, long dueNanos) {
+            this.bytes = bytes;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    public NetworkPartitionProxy(int targetPort) throws IOException {
+        this.targetPort = targetPort;
+        this.serverSocket = new ServerSocket(0, 50, loopback);
+
+        Thread acceptor = new Thread(this::acceptConnections, "partition-proxy-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getConnectString() {
+        return loopback.getHostAddress() + ":" + serverSocket.getLocalPort();
+    }
+
+    // applies to the bytes read from now on, in both directions
+    public void setLatencyMillis(long oneWayLatencyMillis) {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(oneWayLatencyMillis);
+    }
+
+    public void partition() {
+        partitioned = true;
+    }
+
+    // the bytes dropped during the partition broke the open connections, so we close them and the client reconnects
+    public void heal() {
+        partitioned = false;
+        closeConnections();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        closeConnections();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket(loopback, targetPort);
+                // like the zookeeper client and server, or pipelined requests wait for delayed acks
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                startPump(client, server);
+                startPump(server, client);
+            } catch (IOException e) {
+                // the proxy was closed
+            }
+        }
+    }
+
+    private void startPump(Socket from, Socket to) {
+        BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try {
+                InputStream input = from.getInputStream();
+                int read;
+                while ((read = input.read(buffer)) >= 0) {
+                    if (!partitioned) {
+                        chunks.add(new Chunk(Arrays.copyOf(buffer, read), System.nanoTime() + latencyNanos));
+                    }
+                }
+            } catch (IOException e) {
+                // one of the sides went away
+            }
+            closeQuietly(from);
+            closeQuietly(to);
+        }, "partition-proxy-pump");
+        reader.setDaemon(true);
+        reader.start();
+
+        Thread writer = new Thread(() -> {
+            try {
+                OutputStream output = to.getOutputStream();
+                while (!to.isClosed()) {
+                    Chunk chunk = chunks.poll(100, TimeUnit.MILLISECONDS);
+                    if (chunk == null) {
+                        continue;
+                    }
+                    long delayNanos = chunk.dueNanos - System.nanoTime();
+                    if (delayNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delayNanos);
+                    }
+                    output.write(chunk.bytes);
+                    output.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // one of the sides went away
+            }
+            closeQuietly(from);
+            closeQuietly(to);
+        }, "partition-proxy-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void closeConnections() {
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+        sockets.clear();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
@@ -1,42 +1,194 @@
+import cluster.management.EndpointMetadata;
+import cluster.management.HeartbeatMonitor;
+import cluster.management.HeartbeatResponder;
+import cluster.management.LeaderCheckpoint;
+import cluster.management.LoadBalancer;
 import cluster.management.OnElectionCAllback;
+import cluster.management.OnRegistryUpdateCallback;
+import cluster.management.RegistrySnapshot;
 import cluster.management.ServiceRegistryIntegrated;
 import org.apache.zookeeper.KeeperException;
 
 import java.net.InetAddress;
+import java.net.SocketException;
 import java.net.UnknownHostException;
 
 public class OnElectionAction implements OnElectionCAllback {
+    // the version of the protocol this worker speaks, advertised in its registry metadata
+    private static final int PROTOCOL_VERSION = 1;
+
+    // how the leader batches its checkpoint writes, see LeaderCheckpoint
+    private static final long CHECKPOINT_WINDOW_MILLIS = 100;
+    private static final long CHECKPOINT_MAX_DELAY_MILLIS = 1000;
 
     private final ServiceRegistryIntegrated serviceRegistry;
     private final int port;
+    private final long startTimestamp;
+    // both optional: without a checkpoint a new leader rebuilds its view from the registry znodes,
+    // without a load balancer we don't report when the new leader could make its first decision
+    private final LeaderCheckpoint checkpoint;
+    private final LoadBalancer loadBalancer;
+
+    private volatile double lastTakeoverMillis = -1;
+    private String serverAddress;
+
+    // see enableHeartbeats(), 0 when the failure detection is left to zookeeper's session timeout
+    private volatile long heartbeatIntervalMillis = 0;
+    private volatile double phiThreshold = HeartbeatMonitor.DEFAULT_PHI_THRESHOLD;
+    private HeartbeatResponder heartbeatResponder;
+    private HeartbeatMonitor heartbeatMonitor;
 
     public OnElectionAction(ServiceRegistryIntegrated serviceRegistry, int port) {
+        this(serviceRegistry, port, null, null);
+    }
+
+    public OnElectionAction(ServiceRegistryIntegrated serviceRegistry, int port,
+                            LeaderCheckpoint checkpoint, LoadBalancer loadBalancer) {
         this.serviceRegistry = serviceRegistry;
         this.port = port;
+        this.startTimestamp = System.currentTimeMillis();
+        this.checkpoint = checkpoint;
+        this.loadBalancer = loadBalancer;
     }
 
     @Override
     public void onElectedToBeLeader() {
+        long electedNanos = System.nanoTime();
+        if (checkpoint != null) {
+            // start from the view we tailed as a follower, the live read below replaces it
+            RegistrySnapshot warmSnapshot = checkpoint.stopTailing();
+            if (warmSnapshot != null) {
+                serviceRegistry.publishProvisionalSnapshot(warmSnapshot);
+            }
+        }
+        reportFirstDecision(electedNanos);
+
+        // we don't wait for the delete: the requests below are sent on the same session, after it
+        serviceRegistry.unregisterFromClusterAsync();
+        // apply per-worker deltas instead of re-reading the whole registry on every membership change
+        serviceRegistry.registerForIncrementalUpdates();
+        startHeartbeatMonitor();
+
+        if (checkpoint != null) {
+            try {
+                checkpoint.startWriting(serviceRegistry, CHECKPOINT_WINDOW_MILLIS, CHECKPOINT_MAX_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (KeeperException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // the first useful decision of a new leader is the first worker it can route to
+    private void reportFirstDecision(long electedNanos) {
+        if (loadBalancer == null) {
+            return;
+        }
+        OnRegistryUpdateCallback firstDecision = new OnRegistryUpdateCallback() {
+            private boolean reported = false;
+
+            @Override
+            public synchronized void onRegistryUpdated(RegistrySnapshot snapshot) {
+                if (reported || loadBalancer.select() == null) {
+                    return;
+                }
+                reported = true;
+                lastTakeoverMillis = (System.nanoTime() - electedNanos) / 1e6;
+                System.out.println(String.format("First routing decision %.1f ms after the takeover (%s registry view)",
+                        lastTakeoverMillis, snapshot.isProvisional() ? "warm" : "live"));
+                serviceRegistry.removeRegistryListener(this);
+            }
+        };
+        serviceRegistry.addRegistryListener(firstDecision);
+    }
+
+    // The leader pings the workers every intervalMillis and ejects the ones whose phi reaches phiThreshold
+    // from the routing view, long before zookeeper expires their session. Call it before the election starts
+    public void enableHeartbeats(long intervalMillis, double phiThreshold) {
+        this.heartbeatIntervalMillis = intervalMillis;
+        this.phiThreshold = phiThreshold;
+    }
+
+    private synchronized void startHeartbeatMonitor() {
+        if (heartbeatIntervalMillis <= 0 || heartbeatMonitor != null) {
+            return;
+        }
         try {
-            serviceRegistry.unregisterFromCluster();
-        } catch (InterruptedException e) {
+            heartbeatMonitor = new HeartbeatMonitor(serviceRegistry, heartbeatIntervalMillis, phiThreshold);
+            serviceRegistry.addRegistryListener(heartbeatMonitor);
+        } catch (SocketException e) {
             e.printStackTrace();
-        } catch (KeeperException e) {
+        }
+    }
+
+    private synchronized void stopHeartbeatMonitor() {
+        if (heartbeatMonitor != null) {
+            serviceRegistry.removeRegistryListener(heartbeatMonitor);
+            heartbeatMonitor.close();
+            heartbeatMonitor = null;
+        }
+    }
+
+    // a worker keeps answering for as long as it runs, even after a step down and a re-election
+    private synchronized void startHeartbeatResponder() {
+        if (heartbeatIntervalMillis <= 0 || heartbeatResponder != null) {
+            return;
+        }
+        try {
+            heartbeatResponder = new HeartbeatResponder(port);
+        } catch (SocketException e) {
             e.printStackTrace();
         }
-        serviceRegistry.registerForUpdates();
+    }
+
+    // null unless we are the leader with heartbeats enabled
+    public synchronized HeartbeatMonitor getHeartbeatMonitor() {
+        return heartbeatMonitor;
+    }
+
+    // -1 until we were elected and could route
+    public double getLastTakeoverMillis() {
+        return lastTakeoverMillis;
+    }
+
+    // resolved once, the canonical host name can cost a reverse DNS lookup on every transition
+    private synchronized String getServerAddress() throws UnknownHostException {
+        if (serverAddress == null) {
+            serverAddress = String.format("http://%s:%d", InetAddress.getLocalHost().getCanonicalHostName(), port);
+        }
+        return serverAddress;
     }
 
     @Override
     public void onWorker() {
+        stopHeartbeatMonitor();
+        startHeartbeatResponder();
+        if (checkpoint != null) {
+            try {
+                // a weighted election can make a leader step down, it then follows the new leader's checkpoints
+                checkpoint.stopWriting();
+                checkpoint.startTailing();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (KeeperException e) {
+                e.printStackTrace();
+            }
+        }
+        if (serviceRegistry.isRegistered()) {
+            // a worker is told it is a worker again every time its predecessor leaves
+            return;
+        }
         try {
 
-            String currentServerAddress = String.format("http://%s:%d",
-                    InetAddress.getLocalHost().getCanonicalHostName(),
-                    port
-            );
+            String currentServerAddress = getServerAddress();
+
+            // the weight and capacity follow the number of cores, the zone comes from -Dcluster.zone
+            int cores = Runtime.getRuntime().availableProcessors();
+            byte[] metaData = EndpointMetadata.encode(currentServerAddress, cores,
+                    System.getProperty("cluster.zone", ""), cores, PROTOCOL_VERSION, startTimestamp);
 
-            serviceRegistry.registerToCluster(currentServerAddress);
+            serviceRegistry.registerToCluster(metaData);
 
         } catch (UnknownHostException e) {
             e.printStackTrace();
@@ -0,0 +1,193 @@
+import cluster.management.CandidateIndex;
+import cluster.management.LeaderElectionIntegrated;
+import cluster.management.OnElectionCAllback;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Time to find the leader and our predecessor after the predecessor left, against the number of candidates:
+// listing, sorting and binary searching every candidate (what reelectLeader() used to do on every deletion)
+// versus the skip list CandidateIndex.
+// Runs in memory, no zookeeper server needed, so the cost of the getChildren() response itself
+// (which grows with the number of candidates too) is not even included for the old way.
+//
+// The index is fed by a persistent recursive watch every candidate keeps on the election znode,
+// so every join and leave notifies every candidate: N notifications per membership change.
+// The second table counts them on an embedded server, one session per candidate like one candidate per JVM.
+// Thousands of real sessions don't fit in one process, so it stops well below the in-memory candidate counts.
+public class ReelectionBenchmark {
+    private static final int[] CANDIDATE_COUNTS = {100, 1_000, 10_000, 100_000};
+    // fewer rounds for the big elections, sorting 100 000 names takes a while
+    private static final int SORTED_NAMES_PER_RUN = 20_000_000;
+
+    private static final String ELECTION_NAMESPACE = "/election";
+    private static final int[] WATCHING_CANDIDATE_COUNTS = {10, 100, 500};
+    private static final int MEMBERSHIP_CHANGES = 20;
+    private static final int SESSION_TIMEOUT = 30000;
+    // how long we wait for every candidate to hear about a change
+    private static final long NOTIFICATION_TIMEOUT_MILLIS = 5000;
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        System.out.println("candidates, sort + binary search (us), candidate index (us), speedup");
+        for (int candidateCount : CANDIDATE_COUNTS) {
+            int reelections = Math.max(20, SORTED_NAMES_PER_RUN / candidateCount);
+            // the names are created up front so the rounds only measure the lookups
+            String[] names = new String[candidateCount + reelections];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = String.format("c_%010d", i);
+            }
+
+            // warm up
+            sortAndSearch(names, candidateCount, reelections / 4);
+            indexLookup(names, candidateCount, reelections / 4);
+
+            double sortMicros = sortAndSearch(names, candidateCount, reelections);
+            double indexMicros = indexLookup(names, candidateCount, reelections);
+            System.out.println(String.format("%d, %.2f, %.3f, %.0fx",
+                    candidateCount, sortMicros, indexMicros, sortMicros / indexMicros));
+        }
+
+        System.out.println();
+        System.out.println("candidates, server watches, notifications per join, notifications per leave");
+        for (int candidateCount : WATCHING_CANDIDATE_COUNTS) {
+            countNotifications(candidateCount);
+        }
+    }
+
+    // candidateCount candidates following the election, then another node joins and leaves MEMBERSHIP_CHANGES times
+    private static void countNotifications(int candidateCount) throws IOException, InterruptedException, KeeperException {
+        try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+            String connectString = embeddedZooKeeper.getConnectString();
+            List<ZooKeeperSessionManager> sessions = new ArrayList<>();
+            AtomicLong notifications = new AtomicLong();
+            try {
+                ZooKeeperSessionManager churnSession = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT);
+                sessions.add(churnSession);
+                churnSession.getZooKeeper().create(ELECTION_NAMESPACE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+                for (int i = 0; i < candidateCount; i++) {
+                    ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT);
+                    sessions.add(session);
+                    LeaderElectionIntegrated leaderElection = new LeaderElectionIntegrated(session, new Bystander(), null);
+                    leaderElection.volunteerForLeadership();
+                    leaderElection.reelectLeader();
+                    // gets what the candidate watch delivers to this session, without setting a watch of its own
+                    session.addSubtreeWatcher(ELECTION_NAMESPACE, event -> {
+                        if (event.getType() != Watcher.Event.EventType.None) {
+                            notifications.incrementAndGet();
+                        }
+                    });
+                }
+                int serverWatches = embeddedZooKeeper.getWatchCount();
+
+                // the newest candidate joins and leaves, nobody's predecessor changes so no re-election gets in the way
+                long joinNotifications = 0;
+                long leaveNotifications = 0;
+                for (int i = 0; i < MEMBERSHIP_CHANGES; i++) {
+                    long before = notifications.get();
+                    String znode = churnSession.getZooKeeper().create(ELECTION_NAMESPACE + "/c_", new byte[]{},
+                            ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+                    joinNotifications += awaitNotifications(notifications, before + candidateCount) - before;
+
+                    before = notifications.get();
+                    churnSession.getZooKeeper().delete(znode, -1);
+                    leaveNotifications += awaitNotifications(notifications, before + candidateCount) - before;
+                }
+
+                System.out.println(String.format("%d, %d, %.1f, %.1f", candidateCount, serverWatches,
+                        (double) joinNotifications / MEMBERSHIP_CHANGES, (double) leaveNotifications / MEMBERSHIP_CHANGES));
+            } finally {
+                for (ZooKeeperSessionManager session : sessions) {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    // returns the count once it reached expected, or whatever it is after NOTIFICATION_TIMEOUT_MILLIS
+    private static long awaitNotifications(AtomicLong notifications, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NOTIFICATION_TIMEOUT_MILLIS);
+        while (notifications.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        return notifications.get();
+    }
+
+    private static class Bystander implements OnElectionCAllback {
+        @Override
+        public void onElectedToBeLeader() {
+        }
+
+        @Override
+        public void onWorker() {
+        }
+    }
+
+    // Every round the predecessor of the newest candidate leaves and the newest candidate re-elects,
+    // then a new candidate joins, so the election always has candidateCount members.
+    private static double sortAndSearch(String[] names, int candidateCount, int reelections) {
+        // a linked list so the churn itself stays cheap, only the per round copy and sort are measured
+        List<String> candidates = new LinkedList<>();
+        for (int i = 0; i < candidateCount; i++) {
+            candidates.add(names[i]);
+        }
+        // zookeeper returns the children in no particular order
+        Collections.shuffle(candidates);
+        String currentZnodeName = names[candidateCount - 1];
+        int nextSequence = candidateCount;
+        int checksum = 0;
+
+        long start = System.nanoTime();
+        for (int round = 0; round < reelections; round++) {
+            List<String> children = new ArrayList<>(candidates);
+            Collections.sort(children);
+            int predecessorIndex = Collections.binarySearch(children, currentZnodeName) - 1;
+            String predecessor = children.get(predecessorIndex);
+            checksum += children.get(0).length() + predecessor.length();
+
+            candidates.remove(predecessor);
+            currentZnodeName = names[nextSequence++];
+            candidates.add(currentZnodeName);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // keep the JIT from dropping the work
+        if (checksum == 42) {
+            System.out.println();
+        }
+        return elapsed / 1000.0 / reelections;
+    }
+
+    private static double indexLookup(String[] names, int candidateCount, int reelections) {
+        CandidateIndex index = new CandidateIndex();
+        for (int i = 0; i < candidateCount; i++) {
+            index.add(names[i]);
+        }
+        String currentZnodeName = names[candidateCount - 1];
+        int nextSequence = candidateCount;
+        int checksum = 0;
+
+        long start = System.nanoTime();
+        for (int round = 0; round < reelections; round++) {
+            String predecessor = index.predecessorOf(currentZnodeName);
+            checksum += index.first().length() + predecessor.length();
+
+            index.remove(predecessor);
+            currentZnodeName = names[nextSequence++];
+            index.add(currentZnodeName);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (checksum == 42) {
+            System.out.println();
+        }
+        return elapsed / 1000.0 / reelections;
+    }
+}
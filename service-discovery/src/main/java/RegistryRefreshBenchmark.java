@@ -0,0 +1,60 @@
+import cluster.management.EndpointMetadata;
+import cluster.management.ServiceRegistryIntegrated;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.Map;
+
+// Measures how long a full refresh of the service registry takes against the cluster size,
+// once with the old exists() + getData() per child and once with the batched multi-read.
+// Only the zookeeper reads are timed, publishing prints every address and would mostly measure the console.
+// A refresh that throws fails the run.
+// Expects a zookeeper server at ZOOKEEPER_ADDRESS, just like the applications.
+public class RegistryRefreshBenchmark {
+    private static final String ZOOKEEPER_ADDRESS = "localhost:2181";
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final String REGISTRY_ZNODE = "/service_registry";
+    private static final int[] CLUSTER_SIZES = {10, 100, 500, 1000, 2000};
+    private static final int ITERATIONS = 20;
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        System.out.println("workers, one-by-one avg (ms), batched avg (ms)");
+
+        for (int clusterSize : CLUSTER_SIZES) {
+            // the session that owns the fake workers, closing it removes all of them
+            ZooKeeperSessionManager workersSession = ZooKeeperSessionManager.openConnected(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+            ZooKeeperSessionManager registrySession = ZooKeeperSessionManager.openConnected(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+
+            ServiceRegistryIntegrated serviceRegistry = new ServiceRegistryIntegrated(registrySession.getZooKeeper());
+            for (int i = 0; i < clusterSize; i++) {
+                workersSession.getZooKeeper().create(REGISTRY_ZNODE + "/n_", ("http://worker-" + i + ":8080").getBytes(),
+                        ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+            }
+
+            double oneByOne = averageRefreshMillis(serviceRegistry, false, clusterSize);
+            double batched = averageRefreshMillis(serviceRegistry, true, clusterSize);
+            System.out.println(String.format("%d, %.2f, %.2f", clusterSize, oneByOne, batched));
+
+            registrySession.close();
+            workersSession.close();
+        }
+    }
+
+    private static double averageRefreshMillis(ServiceRegistryIntegrated serviceRegistry, boolean batched, int clusterSize)
+            throws InterruptedException, KeeperException {
+        serviceRegistry.setBatchedRefresh(batched);
+
+        // warm up, and make sure we read what we think we read
+        Map<String, EndpointMetadata> endpoints = serviceRegistry.readRegistry();
+        if (endpoints.size() != clusterSize) {
+            throw new IllegalStateException("read " + endpoints.size() + " workers instead of " + clusterSize);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            serviceRegistry.readRegistry();
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+}
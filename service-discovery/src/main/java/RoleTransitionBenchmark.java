@@ -0,0 +1,141 @@
+import cluster.management.EndpointMetadata;
+import cluster.management.ServiceRegistryIntegrated;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The registry side of a role change, with the zookeeper calls the registry used to make ("before")
+// and the ones it makes now ("after"):
+// - leave: a worker becoming the leader leaves the registry,
+//   before exists() then delete(), after a single delete(), or the asynchronous delete OnElectionAction now uses
+// - leave then read: the same, followed by the new leader's first read of the registry (getChildren()),
+//   which the asynchronous delete lets overlap with the delete
+// - join, registry znode missing: the worker's create() fails with NoNode,
+//   before exists(), create() of the parent, create() of the worker, after one multi() creating both
+// The client talks to the server through a NetworkPartitionProxy adding a one way latency, so the round trips
+// show up as they would on a network. The zookeeper server runs in this JVM (EmbeddedZooKeeper).
+public class RoleTransitionBenchmark {
+    private static final long[] ONE_WAY_LATENCIES_MILLIS = {0, 1, 5};
+    private static final int ROUNDS = 50;
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final String REGISTRY_ZNODE = "/service_registry";
+
+    private interface Transition {
+        void run() throws KeeperException, InterruptedException;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        List<String> results = new ArrayList<>();
+        byte[] metaData = EndpointMetadata.encode("http://127.0.0.1:8080", 1, "", 1, 1, System.currentTimeMillis());
+
+        try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper();
+             NetworkPartitionProxy proxy = new NetworkPartitionProxy(embeddedZooKeeper.getPort())) {
+            ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(proxy.getConnectString(), SESSION_TIMEOUT);
+            ZooKeeper zooKeeper = session.getZooKeeper();
+            ServiceRegistryIntegrated serviceRegistry = new ServiceRegistryIntegrated(zooKeeper);
+
+            for (long latency : ONE_WAY_LATENCIES_MILLIS) {
+                proxy.setLatencyMillis(latency);
+
+                // a registration we leave the old way
+                String[] legacyZnode = new String[1];
+                results.add(measure(latency, "leave", "before",
+                        () -> legacyZnode[0] = zooKeeper.create(REGISTRY_ZNODE + "/n_", metaData,
+                                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL),
+                        () -> legacyUnregister(zooKeeper, legacyZnode[0])));
+                results.add(measure(latency, "leave", "after",
+                        () -> serviceRegistry.registerToCluster(metaData),
+                        serviceRegistry::unregisterFromCluster));
+                results.add(measure(latency, "leave", "after, async",
+                        () -> serviceRegistry.registerToCluster(metaData),
+                        serviceRegistry::unregisterFromClusterAsync));
+
+                results.add(measure(latency, "leave then read", "before",
+                        () -> legacyZnode[0] = zooKeeper.create(REGISTRY_ZNODE + "/n_", metaData,
+                                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL),
+                        () -> {
+                            legacyUnregister(zooKeeper, legacyZnode[0]);
+                            expectNoChildren(zooKeeper);
+                        }));
+                results.add(measure(latency, "leave then read", "after, async",
+                        () -> serviceRegistry.registerToCluster(metaData),
+                        () -> {
+                            serviceRegistry.unregisterFromClusterAsync();
+                            expectNoChildren(zooKeeper);
+                        }));
+
+                // the registry znode is deleted before every round, so the worker's first create() fails
+                Transition deleteRegistry = () -> {
+                    serviceRegistry.unregisterFromCluster();
+                    deleteChildren(zooKeeper);
+                    zooKeeper.delete(REGISTRY_ZNODE, -1);
+                };
+                results.add(measure(latency, "join, registry znode missing", "before",
+                        deleteRegistry, () -> legacyRegister(zooKeeper, metaData)));
+                results.add(measure(latency, "join, registry znode missing", "after",
+                        deleteRegistry, () -> serviceRegistry.registerToCluster(metaData)));
+                serviceRegistry.unregisterFromCluster();
+                deleteChildren(zooKeeper);
+            }
+            session.close();
+        }
+
+        System.out.println();
+        System.out.println("one way latency (ms), transition, calls, p50 (ms), p90 (ms), max (ms)");
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    // runs prepare then the timed transition ROUNDS times
+    private static String measure(long latency, String transition, String calls, Transition prepare, Transition timed)
+            throws KeeperException, InterruptedException {
+        double[] millis = new double[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            prepare.run();
+            long startNanos = System.nanoTime();
+            timed.run();
+            millis[round] = (System.nanoTime() - startNanos) / 1e6;
+        }
+        Arrays.sort(millis);
+        return String.format("%d, %s, %s, %.2f, %.2f, %.2f", latency, transition, calls,
+                millis[ROUNDS / 2], millis[ROUNDS * 9 / 10], millis[ROUNDS - 1]);
+    }
+
+    // what unregisterFromCluster() used to do
+    private static void legacyUnregister(ZooKeeper zooKeeper, String znode) throws KeeperException, InterruptedException {
+        if (zooKeeper.exists(znode, false) != null) {
+            zooKeeper.delete(znode, -1);
+        }
+    }
+
+    // what registerToCluster() and createServiceRegistryZnode() used to do
+    private static void legacyRegister(ZooKeeper zooKeeper, byte[] metaData) throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.create(REGISTRY_ZNODE + "/n_", metaData, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        } catch (KeeperException.NoNodeException e) {
+            if (zooKeeper.exists(REGISTRY_ZNODE, false) == null) {
+                zooKeeper.create(REGISTRY_ZNODE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+            zooKeeper.create(REGISTRY_ZNODE + "/n_", metaData, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        }
+    }
+
+    private static void deleteChildren(ZooKeeper zooKeeper) throws KeeperException, InterruptedException {
+        for (String child : zooKeeper.getChildren(REGISTRY_ZNODE, false)) {
+            zooKeeper.delete(REGISTRY_ZNODE + "/" + child, -1);
+        }
+    }
+
+    // the new leader's first read, which must not see itself anymore
+    private static void expectNoChildren(ZooKeeper zooKeeper) throws KeeperException, InterruptedException {
+        List<String> children = zooKeeper.getChildren(REGISTRY_ZNODE, false);
+        if (!children.isEmpty()) {
+            throw new IllegalStateException("the leader still sees itself in the registry : " + children);
+        }
+    }
+}
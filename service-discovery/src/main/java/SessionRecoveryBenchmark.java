@@ -0,0 +1,236 @@
+import cluster.management.LeaderElectionIntegrated;
+import cluster.management.OnElectionCAllback;
+import cluster.management.ServiceRegistryIntegrated;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// How long a node takes to rejoin the cluster after its session expired, now that ZooKeeperSessionManager
+// recovers the session instead of the application shutting down.
+// NODES nodes run the applications' election and registry (LeaderElectionIntegrated, ServiceRegistryIntegrated
+// and OnElectionAction), each with its own session. We expire one node's session the way a long GC pause or a
+// partition would: another client attaches to the same session and closes it, so the server ends the session and the
+// node is told it expired the next time it talks to the server.
+// The node has rejoined once its session is recovered, a leader is elected, the leader's registry lists every
+// worker again and the expired node went through the election callbacks again.
+// We expire a worker, then the leader, which has to come back as a worker. At the end every node must have
+// exactly one candidate znode and every worker exactly one registry znode.
+// The zookeeper server runs in this JVM (EmbeddedZooKeeper). Exits with status 1 on a failed check.
+public class SessionRecoveryBenchmark {
+    private static final int NODES = 3;
+    private static final int ROUNDS = 10;
+    // what the applications use
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final long RECOVERY_INITIAL_BACKOFF_MILLIS = 100;
+    private static final long RECOVERY_MAX_BACKOFF_MILLIS = 5000;
+    private static final long REJOIN_TIMEOUT_MILLIS = 30_000;
+    private static final int FIRST_PORT = 9400;
+
+    // one application: its own recoverable session, the election and the registry
+    private static class Node implements OnElectionCAllback {
+        private final ZooKeeperSessionManager session;
+        private final ServiceRegistryIntegrated serviceRegistry;
+        private final LeaderElectionIntegrated leaderElection;
+        private final OnElectionAction onElectionAction;
+        private volatile long callbacks = 0;
+        private volatile long expiredAtNanos = 0;
+
+        Node(String connectString, int port) throws IOException, InterruptedException, KeeperException {
+            this.session = ZooKeeperSessionManager.open(connectString, SESSION_TIMEOUT);
+            session.enableRecovery(RECOVERY_INITIAL_BACKOFF_MILLIS, RECOVERY_MAX_BACKOFF_MILLIS);
+            // when the node learns about the expiry, the client only notices after its connection was dropped
+            session.addSessionStateListener((previousState, newState) -> {
+                if (newState == ZooKeeperSessionManager.State.EXPIRED) {
+                    expiredAtNanos = System.nanoTime();
+                }
+            });
+            if (!session.awaitConnected(SESSION_TIMEOUT)) {
+                throw new IllegalStateException("could not connect to " + connectString);
+            }
+            this.serviceRegistry = new ServiceRegistryIntegrated(session, null);
+            this.onElectionAction = new OnElectionAction(serviceRegistry, port);
+            this.leaderElection = new LeaderElectionIntegrated(session, this, null);
+            session.addRecoverableComponent(serviceRegistry);
+            session.addRecoverableComponent(leaderElection);
+            leaderElection.volunteerForLeadership();
+            leaderElection.reelectLeader();
+        }
+
+        @Override
+        public void onElectedToBeLeader() {
+            onElectionAction.onElectedToBeLeader();
+            callbacks++;
+        }
+
+        @Override
+        public void onWorker() {
+            onElectionAction.onWorker();
+            callbacks++;
+        }
+
+        // another client takes over our session and closes it, the server then expires it for us
+        void expire(String connectString) throws IOException, InterruptedException {
+            ZooKeeper zooKeeper = session.getZooKeeper();
+            CountDownLatch connected = new CountDownLatch(1);
+            ZooKeeper intruder = new ZooKeeper(connectString, SESSION_TIMEOUT, event -> {
+                if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+            }, zooKeeper.getSessionId(), zooKeeper.getSessionPasswd());
+            connected.await(SESSION_TIMEOUT, TimeUnit.MILLISECONDS);
+            intruder.close();
+        }
+
+        void close() {
+            session.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        boolean passed = true;
+        List<String> results = new ArrayList<>();
+
+        try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+            String connectString = embeddedZooKeeper.getConnectString();
+            createNamespaces(connectString);
+
+            List<Node> nodes = new ArrayList<>();
+            for (int i = 0; i < NODES; i++) {
+                nodes.add(new Node(connectString, FIRST_PORT + i));
+            }
+            if (!awaitRejoined(nodes, null, 0)) {
+                throw new IllegalStateException("the cluster did not form");
+            }
+
+            for (boolean expireLeader : new boolean[]{false, true}) {
+                double[] rejoinMillis = new double[ROUNDS];
+                double[] noticedMillis = new double[ROUNDS];
+                double[] rejoinAfterNoticeMillis = new double[ROUNDS];
+                double[] recoveryMillis = new double[ROUNDS];
+                long requestsBefore = embeddedZooKeeper.getRequestCount();
+                long failedAttemptsBefore = failedAttempts(nodes);
+                int rejoined = 0;
+                int leaderChanges = 0;
+                for (int round = 0; round < ROUNDS; round++) {
+                    Node victim = null;
+                    for (Node node : nodes) {
+                        if (node.leaderElection.isLeader() == expireLeader) {
+                            victim = node;
+                            break;
+                        }
+                    }
+                    long callbacksBefore = victim.callbacks;
+                    long recoveriesBefore = victim.session.getRecoveries();
+
+                    long startNanos = System.nanoTime();
+                    victim.expire(connectString);
+                    boolean ok = awaitRejoined(nodes, victim, callbacksBefore)
+                            && victim.session.getRecoveries() == recoveriesBefore + 1;
+                    long rejoinedNanos = System.nanoTime();
+                    rejoinMillis[round] = (rejoinedNanos - startNanos) / 1e6;
+                    noticedMillis[round] = (victim.expiredAtNanos - startNanos) / 1e6;
+                    rejoinAfterNoticeMillis[round] = (rejoinedNanos - victim.expiredAtNanos) / 1e6;
+                    recoveryMillis[round] = victim.session.getLastRecoveryMillis();
+                    if (ok) {
+                        rejoined++;
+                    }
+                    if (expireLeader && !victim.leaderElection.isLeader()) {
+                        leaderChanges++;
+                    }
+                }
+                boolean allRejoined = rejoined == ROUNDS;
+                passed &= allRejoined;
+                Arrays.sort(rejoinMillis);
+                Arrays.sort(noticedMillis);
+                Arrays.sort(rejoinAfterNoticeMillis);
+                Arrays.sort(recoveryMillis);
+                results.add(String.format("%s, %d/%d, %.1f, %.1f, %.1f, %.1f, %.1f, %.1f, %d, %d, %.1f",
+                        expireLeader ? "leader" : "worker", rejoined, ROUNDS,
+                        rejoinMillis[ROUNDS / 2], rejoinMillis[ROUNDS - 1], noticedMillis[ROUNDS / 2],
+                        rejoinAfterNoticeMillis[ROUNDS / 2], rejoinAfterNoticeMillis[ROUNDS - 1], recoveryMillis[ROUNDS / 2],
+                        failedAttempts(nodes) - failedAttemptsBefore, leaderChanges,
+                        (embeddedZooKeeper.getRequestCount() - requestsBefore) / (double) ROUNDS));
+            }
+
+            ZooKeeper checker = nodes.get(0).session.getZooKeeper();
+            int candidates = checker.getChildren("/election", false).size();
+            int registrations = checker.getChildren("/service_registry", false).size();
+            boolean noDuplicates = candidates == NODES && registrations == NODES - 1;
+            passed &= noDuplicates;
+            results.add(String.format("znodes at the end: %d candidates for %d nodes, %d registrations for %d workers%s",
+                    candidates, NODES, registrations, NODES - 1, noDuplicates ? "" : " WRONG"));
+
+            for (Node node : nodes) {
+                node.close();
+            }
+        }
+
+        System.out.println();
+        System.out.println("expired node, rejoined, rejoin p50 (ms), rejoin max (ms), expiry noticed p50 (ms), "
+                + "rejoin after the notice p50 (ms), max (ms), session recovery p50 (ms), failed recovery attempts, "
+                + "leadership moved, zookeeper requests per expiry");
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.out.println(passed ? "PASS" : "FAIL: see the rows above");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // one leader, whose registry lists every other node, every session connected,
+    // and the expired node (if any) went through the election callbacks again
+    private static boolean awaitRejoined(List<Node> nodes, Node victim, long callbacksBefore) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + REJOIN_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (isRejoined(nodes, victim, callbacksBefore)) {
+                return true;
+            }
+            Thread.sleep(1);
+        }
+        return false;
+    }
+
+    private static boolean isRejoined(List<Node> nodes, Node victim, long callbacksBefore) {
+        if (victim != null && (victim.callbacks == callbacksBefore
+                || victim.session.getState() != ZooKeeperSessionManager.State.CONNECTED)) {
+            return false;
+        }
+        Node leader = null;
+        for (Node node : nodes) {
+            if (node.session.getState() != ZooKeeperSessionManager.State.CONNECTED) {
+                return false;
+            }
+            if (node.leaderElection.isLeader()) {
+                if (leader != null) {
+                    return false;
+                }
+                leader = node;
+            } else if (!node.serviceRegistry.isRegistered()) {
+                return false;
+            }
+        }
+        return leader != null && leader.serviceRegistry.isLiveSynced()
+                && leader.serviceRegistry.getMembers().size() == nodes.size() - 1;
+    }
+
+    private static long failedAttempts(List<Node> nodes) {
+        long failedAttempts = 0;
+        for (Node node : nodes) {
+            failedAttempts += node.session.getFailedRecoveryAttempts();
+        }
+        return failedAttempts;
+    }
+
+    private static void createNamespaces(String connectString) throws IOException, InterruptedException, KeeperException {
+        try (ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT)) {
+            session.getZooKeeper().create("/election", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+    }
+}
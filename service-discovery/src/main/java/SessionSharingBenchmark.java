@@ -0,0 +1,143 @@
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// What sharing one session (ZooKeeperSessionManager) saves when several coordination roles run in one JVM,
+// against every role connecting on its own like the applications used to.
+// Each role registers an ephemeral znode and watches a common config znode, which is what the election,
+// the registry and the checkpoint do at startup. We measure:
+// - the time until all the roles are started, median over ROUNDS fresh starts
+// - the sessions, and the watches the server keeps for the roles
+// - the pings the ensemble receives over an idle IDLE_MILLIS
+// - that one change of the config znode still reaches every role (through the per path dispatch when shared)
+// The zookeeper server runs in this JVM (EmbeddedZooKeeper).
+public class SessionSharingBenchmark {
+    private static final int[] ROLE_COUNTS = {1, 4, 8};
+    private static final int ROUNDS = 10;
+    // what the applications use
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final long IDLE_MILLIS = 5000;
+    private static final String ROLES_ZNODE = "/roles";
+    private static final String CONFIG_ZNODE = "/config";
+
+    // the roles of one start, stopped together
+    private interface Roles {
+        void stop();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        List<String> results = new ArrayList<>();
+        boolean passed = true;
+
+        for (int roles : ROLE_COUNTS) {
+            for (boolean shared : new boolean[]{false, true}) {
+                try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+                    String connectString = embeddedZooKeeper.getConnectString();
+                    createParents(connectString);
+
+                    double[] startupMillis = new double[ROUNDS];
+                    for (int round = 0; round < ROUNDS; round++) {
+                        AtomicLong notifications = new AtomicLong();
+                        long startNanos = System.nanoTime();
+                        Roles started = shared ? startShared(connectString, roles, notifications)
+                                : startSeparate(connectString, roles, notifications);
+                        startupMillis[round] = (System.nanoTime() - startNanos) / 1e6;
+
+                        if (round == ROUNDS - 1) {
+                            long sessions = embeddedZooKeeper.getSessionCount();
+                            int watches = embeddedZooKeeper.getWatchCount();
+                            long pingsBefore = embeddedZooKeeper.getPingCount();
+                            Thread.sleep(IDLE_MILLIS);
+                            long pings = embeddedZooKeeper.getPingCount() - pingsBefore;
+
+                            boolean delivered = changeConfig(connectString, notifications, roles);
+                            passed &= delivered;
+
+                            Arrays.sort(startupMillis);
+                            results.add(String.format("%d, %s, %.1f, %d, %d, %d, %s", roles, shared ? "shared" : "separate",
+                                    startupMillis[ROUNDS / 2], sessions, watches, pings, delivered ? "yes" : "NO"));
+                        }
+                        started.stop();
+                    }
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println("roles, sessions mode, startup p50 (ms), sessions, server watches, pings in " + IDLE_MILLIS
+                + " ms idle, config change reached every role");
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.out.println(passed ? "PASS" : "FAIL: a role missed the config change");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // every role opens its own session, waits for it and sets its own watch
+    private static Roles startSeparate(String connectString, int roles, AtomicLong notifications)
+            throws IOException, InterruptedException, KeeperException {
+        List<ZooKeeperSessionManager> sessions = new ArrayList<>();
+        for (int i = 0; i < roles; i++) {
+            ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT);
+            sessions.add(session);
+            ZooKeeper zooKeeper = session.getZooKeeper();
+            zooKeeper.create(ROLES_ZNODE + "/r_", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+            zooKeeper.exists(CONFIG_ZNODE, event -> notifications.incrementAndGet());
+        }
+        return () -> {
+            for (ZooKeeperSessionManager session : sessions) {
+                session.close();
+            }
+        };
+    }
+
+    // every role acquires the shared session and subscribes to the config znode through the dispatch table,
+    // the default watcher's watch is set once for all of them
+    private static Roles startShared(String connectString, int roles, AtomicLong notifications)
+            throws IOException, InterruptedException, KeeperException {
+        List<ZooKeeperSessionManager> sessions = new ArrayList<>();
+        for (int i = 0; i < roles; i++) {
+            ZooKeeperSessionManager session = ZooKeeperSessionManager.acquire(connectString, SESSION_TIMEOUT);
+            sessions.add(session);
+            if (!session.awaitConnected(SESSION_TIMEOUT)) {
+                throw new IllegalStateException("could not connect to " + connectString);
+            }
+            ZooKeeper zooKeeper = session.getZooKeeper();
+            zooKeeper.create(ROLES_ZNODE + "/r_", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+            session.addPathWatcher(CONFIG_ZNODE, event -> notifications.incrementAndGet());
+            zooKeeper.exists(CONFIG_ZNODE, true);
+        }
+        return () -> {
+            for (ZooKeeperSessionManager session : sessions) {
+                session.release();
+            }
+        };
+    }
+
+    private static boolean changeConfig(String connectString, AtomicLong notifications, int roles)
+            throws IOException, InterruptedException, KeeperException {
+        try (ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT)) {
+            session.getZooKeeper().setData(CONFIG_ZNODE, new byte[]{1}, -1);
+            long deadline = System.currentTimeMillis() + SESSION_TIMEOUT;
+            while (notifications.get() < roles && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            return notifications.get() == roles;
+        }
+    }
+
+    private static void createParents(String connectString) throws IOException, InterruptedException, KeeperException {
+        try (ZooKeeperSessionManager session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT)) {
+            ZooKeeper zooKeeper = session.getZooKeeper();
+            zooKeeper.create(ROLES_ZNODE, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            zooKeeper.create(CONFIG_ZNODE, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import cluster.management.OnShardElectionCallback;
+import cluster.management.ShardedLeaderElection;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Checks and measures ShardedLeaderElection: how long it takes until every shard has exactly one leader and the
+// shards are spread evenly (at most one shard of difference between two nodes), and what it costs in zookeeper
+// requests and leadership moves, when the nodes start, when one joins, when one's session expires and is recovered,
+// and when one fails.
+// A last scenario caps the shards per node below what the cluster needs: the extra shards must stay leaderless
+// without the nodes passing them around forever.
+// Every node has its own session, the zookeeper server runs in this JVM (EmbeddedZooKeeper).
+// Exits with status 1 if a shard ever had two leaders or a scenario didn't converge.
+public class ShardBenchmark {
+    private static final int SHARDS = 32;
+    private static final int NODES = 4;
+    private static final int CAPPED_SHARDS_PER_NODE = 4;
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final long CONVERGENCE_TIMEOUT_MILLIS = 30_000;
+    // how long we watch a capped cluster for leadership moves
+    private static final long CHURN_WINDOW_MILLIS = 2000;
+    private static final long RECOVERY_BACKOFF_MILLIS = 100;
+
+    // the shard -> leader view of the whole cluster, as reported by the callbacks
+    private static final Map<Integer, Node> owners = new ConcurrentHashMap<>();
+    private static final AtomicLong overlaps = new AtomicLong();
+    private static final AtomicLong moves = new AtomicLong();
+
+    // one node with its own zookeeper session
+    private static class Node implements OnShardElectionCallback {
+        private final ZooKeeperSessionManager session;
+        private final ShardedLeaderElection election;
+        private volatile boolean closed = false;
+
+        Node(String connectString, int maxShardsPerNode) throws IOException, InterruptedException, KeeperException {
+            this.session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT);
+            session.enableRecovery(RECOVERY_BACKOFF_MILLIS, RECOVERY_BACKOFF_MILLIS);
+            this.election = new ShardedLeaderElection(session.getZooKeeper(), this, SHARDS, maxShardsPerNode);
+            session.addRecoverableComponent(election);
+            election.volunteerForLeadership();
+            election.reelectLeader();
+        }
+
+        @Override
+        public void onShardAssigned(int shard) {
+            if (closed) {
+                return;
+            }
+            moves.incrementAndGet();
+            if (owners.putIfAbsent(shard, this) != null) {
+                overlaps.incrementAndGet();
+                System.out.println("Shard " + shard + " has two leaders");
+            }
+        }
+
+        @Override
+        public void onShardRevoked(int shard) {
+            owners.remove(shard, this);
+        }
+
+        @Override
+        public void onElectedToBeLeader() {
+        }
+
+        @Override
+        public void onWorker() {
+        }
+
+        // the session expires as far as this client can tell, the server only drops it after the session timeout:
+        // we must give our shards up right away, the others take them over once the server expired the session
+        void expire() {
+            session.getZooKeeper().getTestable().injectSessionExpiration();
+        }
+
+        // a crash as far as the others can tell, but without waiting for the session timeout.
+        // We stop counting as a leader first, the others can only take over once the session is closed
+        void close() {
+            closed = true;
+            owners.values().removeIf(owner -> owner == this);
+            session.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        boolean passed = true;
+        List<String> results = new ArrayList<>();
+
+        try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+            String connectString = embeddedZooKeeper.getConnectString();
+            List<Node> nodes = new ArrayList<>();
+
+            Scenario start = new Scenario("start " + NODES + " nodes", embeddedZooKeeper);
+            for (int i = 0; i < NODES; i++) {
+                nodes.add(new Node(connectString, SHARDS));
+            }
+            passed &= start.awaitBalanced(nodes, SHARDS, results);
+
+            Scenario join = new Scenario("1 node joins", embeddedZooKeeper);
+            nodes.add(new Node(connectString, SHARDS));
+            passed &= join.awaitBalanced(nodes, SHARDS, results);
+
+            Scenario expiry = new Scenario("1 node's session expires and is recovered", embeddedZooKeeper);
+            nodes.get(0).expire();
+            // the balance only holds again once the expired node led its share again
+            do {
+                Thread.sleep(1);
+            } while (nodes.get(0).session.getRecoveries() == 0);
+            passed &= expiry.awaitBalanced(nodes, SHARDS, results);
+
+            Scenario failure = new Scenario("1 node fails", embeddedZooKeeper);
+            Node failed = nodes.remove(0);
+            failed.close();
+            passed &= failure.awaitBalanced(nodes, SHARDS, results);
+
+            for (Node node : nodes) {
+                node.close();
+            }
+            nodes.clear();
+        }
+
+        owners.clear();
+        try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+            String connectString = embeddedZooKeeper.getConnectString();
+            List<Node> nodes = new ArrayList<>();
+
+            Scenario capped = new Scenario(String.format("start %d nodes capped at %d shards", NODES, CAPPED_SHARDS_PER_NODE),
+                    embeddedZooKeeper);
+            for (int i = 0; i < NODES; i++) {
+                nodes.add(new Node(connectString, CAPPED_SHARDS_PER_NODE));
+            }
+            passed &= capped.awaitBalanced(nodes, NODES * CAPPED_SHARDS_PER_NODE, results);
+
+            long movesBefore = moves.get();
+            long requestsBefore = embeddedZooKeeper.getRequestCount();
+            Thread.sleep(CHURN_WINDOW_MILLIS);
+            long churnMoves = moves.get() - movesBefore;
+            long churnRequests = embeddedZooKeeper.getRequestCount() - requestsBefore;
+            passed &= churnMoves == 0;
+            results.add(String.format("capped cluster idle for %d ms, -, %d, %d, %s",
+                    CHURN_WINDOW_MILLIS, churnRequests, churnMoves, churnMoves == 0 ? "yes" : "NO"));
+
+            for (Node node : nodes) {
+                node.close();
+            }
+        }
+
+        passed &= overlaps.get() == 0;
+        System.out.println();
+        System.out.println("scenario, converged after (ms), zookeeper requests, leadership moves, balanced");
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.out.println("shards that had two leaders at once: " + overlaps.get());
+        System.out.println(passed ? "PASS" : "FAIL: see the rows above");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static class Scenario {
+        private final String name;
+        private final EmbeddedZooKeeper embeddedZooKeeper;
+        private final long startNanos = System.nanoTime();
+        private final long requestsBefore;
+        private final long movesBefore = moves.get();
+
+        Scenario(String name, EmbeddedZooKeeper embeddedZooKeeper) {
+            this.name = name;
+            this.embeddedZooKeeper = embeddedZooKeeper;
+            this.requestsBefore = embeddedZooKeeper.getRequestCount();
+        }
+
+        // waits until the given number of shards have a leader, spread with at most one shard of difference
+        boolean awaitBalanced(List<Node> nodes, int ownedShards, List<String> results) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT_MILLIS;
+            boolean balanced = false;
+            while (!balanced && System.currentTimeMillis() < deadline) {
+                balanced = isBalanced(nodes, ownedShards);
+                if (!balanced) {
+                    Thread.sleep(1);
+                }
+            }
+            long convergedNanos = System.nanoTime();
+            results.add(String.format("%s, %.1f, %d, %d, %s", name, (convergedNanos - startNanos) / 1e6,
+                    embeddedZooKeeper.getRequestCount() - requestsBefore, moves.get() - movesBefore,
+                    balanced ? "yes" : "NO"));
+            return balanced;
+        }
+
+        private static boolean isBalanced(List<Node> nodes, int ownedShards) {
+            if (owners.size() != ownedShards) {
+                return false;
+            }
+            int min = Integer.MAX_VALUE;
+            int max = 0;
+            for (Node node : nodes) {
+                int lead = node.election.getLeadShards().size();
+                min = Math.min(min, lead);
+                max = Math.max(max, lead);
+            }
+            return max - min <= 1;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import cluster.management.ServiceRegistryIntegrated;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Read throughput of getAllServiceAddresses() from many threads while another thread refreshes the registry
+// back to back (a refresh storm).
+// The "locked" run takes the registry monitor around every read, which is what the old synchronized getter did,
+// the "snapshot" run reads the published snapshot directly.
+// Expects a zookeeper server at ZOOKEEPER_ADDRESS, just like the applications.
+public class SnapshotReadBenchmark {
+    private static final String ZOOKEEPER_ADDRESS = "localhost:2181";
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final String REGISTRY_ZNODE = "/service_registry";
+    private static final int CLUSTER_SIZE = 500;
+    private static final int READER_THREADS = 16;
+    private static final long RUN_MILLIS = 5000;
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        ZooKeeperSessionManager workersSession = ZooKeeperSessionManager.openConnected(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        ZooKeeperSessionManager registrySession = ZooKeeperSessionManager.openConnected(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+
+        ServiceRegistryIntegrated serviceRegistry = new ServiceRegistryIntegrated(registrySession.getZooKeeper());
+        for (int i = 0; i < CLUSTER_SIZE; i++) {
+            workersSession.getZooKeeper().create(REGISTRY_ZNODE + "/n_", ("http://worker-" + i + ":8080").getBytes(),
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        }
+        serviceRegistry.registerForUpdates();
+
+        long locked = run(serviceRegistry, true);
+        long snapshot = run(serviceRegistry, false);
+
+        System.out.println(String.format("%d readers, %d workers", READER_THREADS, CLUSTER_SIZE));
+        System.out.println(String.format("locked reads   : %,d reads/s", locked * 1000 / RUN_MILLIS));
+        System.out.println(String.format("snapshot reads : %,d reads/s", snapshot * 1000 / RUN_MILLIS));
+        System.out.println(String.format("snapshot version after the storm : %d", serviceRegistry.getSnapshotVersion()));
+
+        registrySession.close();
+        workersSession.close();
+    }
+
+    private static long run(ServiceRegistryIntegrated serviceRegistry, boolean locked) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder reads = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+
+        Thread refresher = new Thread(() -> {
+            while (running.get()) {
+                serviceRegistry.registerForUpdates();
+            }
+        });
+        threads.add(refresher);
+
+        for (int i = 0; i < READER_THREADS; i++) {
+            threads.add(new Thread(() -> {
+                long count = 0;
+                try {
+                    while (running.get()) {
+                        if (locked) {
+                            synchronized (serviceRegistry) {
+                                serviceRegistry.getAllServiceAddresses();
+                            }
+                        } else {
+                            serviceRegistry.getAllServiceAddresses();
+                        }
+                        count++;
+                    }
+                } catch (InterruptedException | KeeperException e) {
+                    e.printStackTrace();
+                }
+                reads.add(count);
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return reads.sum();
+    }
+}
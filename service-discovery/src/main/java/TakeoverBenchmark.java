@@ -0,0 +1,152 @@
+import cluster.management.ClusterEventExecutor;
+import cluster.management.EndpointMetadata;
+import cluster.management.LeaderCheckpoint;
+import cluster.management.LeaderElectionIntegrated;
+import cluster.management.LoadBalancer;
+import cluster.management.ServiceRegistryIntegrated;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+// Measures how long a newly elected leader takes to make its first useful decision (routing to a worker),
+// with a cold takeover (rebuild the registry view from the worker znodes) and a warm one
+// (start from the LeaderCheckpoint the followers tailed, the live read catches up behind it).
+// The clock starts in onElectedToBeLeader(), the session expiry detection before it is the same for both.
+// Runs against an in-process zookeeper server (EmbeddedZooKeeper), no external service needed.
+public class TakeoverBenchmark {
+    private static final String ELECTION_NAMESPACE = "/election";
+    private static final String REGISTRY_ZNODE = "/service_registry";
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final int PARTICIPANTS = 3;
+    private static final int ROUNDS = 5;
+    private static final int[] WORKER_COUNTS = {1000, 5000, 20000};
+    // same coalescing as ApplicationIntegrated
+    private static final long REFRESH_WINDOW_MILLIS = 50;
+    private static final long REFRESH_MAX_DELAY_MILLIS = 500;
+    private static final int EVENT_QUEUE_CAPACITY = 64;
+    // longer than the checkpoint writer's max delay, so the followers have the leader's view before we kill it
+    private static final long CHECKPOINT_SETTLE_MILLIS = 2000;
+    private static final long TAKEOVER_TIMEOUT_MILLIS = 30_000;
+
+    // one election participant with its own zookeeper session, running the application's OnElectionAction
+    private static class Participant {
+        private final ZooKeeperSessionManager session;
+        private final ClusterEventExecutor eventExecutor;
+        private final ServiceRegistryIntegrated serviceRegistry;
+        private final OnElectionAction onElectionAction;
+
+        Participant(String connectString, int port, boolean warm) throws IOException, InterruptedException, KeeperException {
+            this.session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT);
+            this.eventExecutor = new ClusterEventExecutor(EVENT_QUEUE_CAPACITY);
+            this.serviceRegistry = new ServiceRegistryIntegrated(session, eventExecutor);
+            serviceRegistry.enableCoalescing(REFRESH_WINDOW_MILLIS, REFRESH_MAX_DELAY_MILLIS);
+
+            LoadBalancer loadBalancer = new LoadBalancer(LoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+            serviceRegistry.addRegistryListener(loadBalancer);
+            LeaderCheckpoint checkpoint = warm ? new LeaderCheckpoint(session, eventExecutor) : null;
+            this.onElectionAction = new OnElectionAction(serviceRegistry, port, checkpoint, loadBalancer);
+
+            LeaderElectionIntegrated leaderElection = new LeaderElectionIntegrated(session, onElectionAction, eventExecutor);
+            leaderElection.volunteerForLeadership();
+            leaderElection.reelectLeader();
+        }
+
+        double getTakeoverMillis() {
+            return onElectionAction.getLastTakeoverMillis();
+        }
+
+        void close() {
+            session.close();
+            serviceRegistry.close();
+            eventExecutor.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        List<String> results = new ArrayList<>();
+
+        for (int workers : WORKER_COUNTS) {
+            for (boolean warm : new boolean[]{false, true}) {
+                try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+                    results.add(runScenario(embeddedZooKeeper, workers, warm));
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println("workers, takeover, rounds, p50 (ms), max (ms), all (ms)");
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private static String runScenario(EmbeddedZooKeeper embeddedZooKeeper, int workers, boolean warm)
+            throws IOException, InterruptedException, KeeperException {
+        String connectString = embeddedZooKeeper.getConnectString();
+        ZooKeeperSessionManager workerSession = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT);
+        workerSession.getZooKeeper().create(ELECTION_NAMESPACE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        registerWorkers(workerSession.getZooKeeper(), workers);
+
+        int port = 9000;
+        List<Participant> participants = new ArrayList<>();
+        for (int i = 0; i < PARTICIPANTS; i++) {
+            participants.add(new Participant(connectString, port++, warm));
+        }
+        Participant leader = awaitTakeover(participants, null);
+
+        double[] takeovers = new double[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            Thread.sleep(CHECKPOINT_SETTLE_MILLIS);
+
+            leader.close();
+            participants.remove(leader);
+            leader = awaitTakeover(participants, leader);
+            takeovers[round] = leader.getTakeoverMillis();
+
+            participants.add(new Participant(connectString, port++, warm));
+        }
+
+        for (Participant participant : participants) {
+            participant.close();
+        }
+        workerSession.close();
+
+        double[] sorted = takeovers.clone();
+        Arrays.sort(sorted);
+        return String.format("%d, %s, %d, %.1f, %.1f, %s", workers, warm ? "warm" : "cold", ROUNDS,
+                sorted[sorted.length / 2], sorted[sorted.length - 1], Arrays.toString(takeovers));
+    }
+
+    // the first participant, other than the one we killed, that made a routing decision as the leader
+    private static Participant awaitTakeover(List<Participant> participants, Participant previousLeader)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TAKEOVER_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            for (Participant participant : participants) {
+                if (participant != previousLeader && participant.getTakeoverMillis() >= 0) {
+                    return participant;
+                }
+            }
+            Thread.sleep(1);
+        }
+        throw new IllegalStateException("no takeover within " + TAKEOVER_TIMEOUT_MILLIS + " ms");
+    }
+
+    // the fake workers all live in one session, created asynchronously so the setup doesn't take minutes
+    private static void registerWorkers(ZooKeeper workerSession, int workers) throws KeeperException, InterruptedException {
+        workerSession.create(REGISTRY_ZNODE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        CountDownLatch created = new CountDownLatch(workers);
+        for (int i = 0; i < workers; i++) {
+            byte[] metaData = EndpointMetadata.encode(String.format("http://10.0.%d.%d:8080", i / 250, i % 250),
+                    4, "zone-" + (i % 3), 4, 1, System.currentTimeMillis());
+            workerSession.create(REGISTRY_ZNODE + "/n_", metaData, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL, (resultCode, path, context, name) -> created.countDown(), null);
+        }
+        created.await();
+    }
+}
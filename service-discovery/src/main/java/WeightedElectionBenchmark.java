@@ -0,0 +1,161 @@
+import cluster.management.OnElectionCAllback;
+import cluster.management.WeightedLeaderElection;
+import cluster.management.ZooKeeperSessionManager;
+import org.apache.zookeeper.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Checks and measures WeightedLeaderElection, for a growing number of candidates with random priorities:
+//  - election:   every candidate volunteers, then runs the election, the best one has to win
+//  - failover:   the leader's session is closed, the best remaining candidate has to win, and the number of
+//                zookeeper requests must not grow with the number of candidates (no herd effect)
+//  - preemption: a candidate slightly better than the leader joins (within the margin), nothing may change,
+//                then a much better one joins, the leader has to step down exactly once after its minimum tenure
+// Runs against an in-process zookeeper server (EmbeddedZooKeeper), no external service needed.
+// Exits with status 1 if any of the checks failed.
+public class WeightedElectionBenchmark {
+    private static final int[] CANDIDATE_COUNTS = {5, 20, 50};
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final double PREEMPTION_MARGIN = WeightedLeaderElection.DEFAULT_PREEMPTION_MARGIN;
+    // short, so the benchmark doesn't wait for the default 30 seconds
+    private static final long MIN_TENURE_MILLIS = 1000;
+    private static final int MAX_INITIAL_PRIORITY = 1000;
+    private static final long ELECTION_TIMEOUT_MILLIS = 30_000;
+
+    // one candidate with its own zookeeper session
+    private static class Candidate implements OnElectionCAllback {
+        private final BlockingQueue<Candidate> electedLeaders;
+        private final ZooKeeperSessionManager session;
+        private final WeightedLeaderElection election;
+        private volatile long electedAtNanos;
+        private volatile long steppedDownAtNanos;
+
+        Candidate(String connectString, int priority, BlockingQueue<Candidate> electedLeaders)
+                throws IOException, InterruptedException, KeeperException {
+            this.electedLeaders = electedLeaders;
+            this.session = ZooKeeperSessionManager.openConnected(connectString, SESSION_TIMEOUT);
+
+            this.election = new WeightedLeaderElection(session.getZooKeeper(), this, priority, PREEMPTION_MARGIN, MIN_TENURE_MILLIS, null);
+            election.volunteerForLeadership();
+        }
+
+        @Override
+        public void onElectedToBeLeader() {
+            electedAtNanos = System.nanoTime();
+            electedLeaders.offer(this);
+        }
+
+        @Override
+        public void onWorker() {
+            if (electedAtNanos != 0) {
+                steppedDownAtNanos = System.nanoTime();
+            }
+        }
+
+        int priority() {
+            return election.getPriority();
+        }
+
+        void close() {
+            election.shutdown();
+            session.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        boolean passed = true;
+        List<String> results = new ArrayList<>();
+        Random random = new Random(42);
+
+        for (int candidateCount : CANDIDATE_COUNTS) {
+            try (EmbeddedZooKeeper embeddedZooKeeper = new EmbeddedZooKeeper()) {
+                String connectString = embeddedZooKeeper.getConnectString();
+                BlockingQueue<Candidate> electedLeaders = new LinkedBlockingQueue<>();
+
+                List<Candidate> candidates = new ArrayList<>();
+                for (int i = 0; i < candidateCount; i++) {
+                    candidates.add(new Candidate(connectString, 1 + random.nextInt(MAX_INITIAL_PRIORITY), electedLeaders));
+                }
+
+                // election: everybody runs it at once, the best candidate has to win
+                long requestsBefore = embeddedZooKeeper.getRequestCount();
+                for (Candidate candidate : candidates) {
+                    candidate.election.reelectLeader();
+                }
+                Candidate leader = awaitLeader(electedLeaders);
+                long electionRequests = embeddedZooKeeper.getRequestCount() - requestsBefore;
+                boolean bestElected = leader == best(candidates);
+
+                // failover: the best remaining candidate has to win, with a constant number of requests
+                requestsBefore = embeddedZooKeeper.getRequestCount();
+                long killedAtNanos = System.nanoTime();
+                candidates.remove(leader);
+                leader.close();
+                leader = awaitLeader(electedLeaders);
+                double failoverMillis = (leader.electedAtNanos - killedAtNanos) / 1e6;
+                long failoverRequests = embeddedZooKeeper.getRequestCount() - requestsBefore;
+                boolean bestTookOver = leader == best(candidates);
+
+                // preemption: within the margin nothing changes, beyond it the leader steps down once
+                Thread.sleep(MIN_TENURE_MILLIS);
+                Candidate close = new Candidate(connectString, (int) (leader.priority() * (1 + PREEMPTION_MARGIN / 2)), electedLeaders);
+                close.election.reelectLeader();
+                candidates.add(close);
+                boolean noFlapping = electedLeaders.poll(2 * MIN_TENURE_MILLIS, TimeUnit.MILLISECONDS) == null;
+
+                Candidate strong = new Candidate(connectString, leader.priority() * 2, electedLeaders);
+                long joinedAtNanos = System.nanoTime();
+                strong.election.reelectLeader();
+                candidates.add(strong);
+                Candidate preemptor = awaitLeader(electedLeaders);
+                double preemptionMillis = (preemptor.electedAtNanos - joinedAtNanos) / 1e6;
+                double leaderlessMillis = (preemptor.electedAtNanos - leader.steppedDownAtNanos) / 1e6;
+                boolean preempted = preemptor == strong && leader.election.getStepDowns() == 1
+                        && electedLeaders.poll(2 * MIN_TENURE_MILLIS, TimeUnit.MILLISECONDS) == null;
+
+                boolean ok = bestElected && bestTookOver && noFlapping && preempted;
+                passed &= ok;
+                results.add(String.format("%d, %d, %d, %.1f, %.1f, %.1f, %s",
+                        candidateCount, electionRequests, failoverRequests, failoverMillis,
+                        preemptionMillis, leaderlessMillis, ok ? "yes" : "NO"));
+
+                for (Candidate candidate : candidates) {
+                    candidate.close();
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println("candidates, election requests, failover requests, failover (ms), "
+                + "preemption after join (ms), leaderless during preemption (ms), checks passed");
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.out.println(passed ? "PASS" : "FAIL: see the rows above");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // the highest priority, the earliest candidate among equals
+    private static Candidate best(List<Candidate> candidates) {
+        return Collections.max(candidates, Comparator.comparingInt(Candidate::priority)
+                .thenComparing(candidate -> -candidates.indexOf(candidate)));
+    }
+
+    private static Candidate awaitLeader(BlockingQueue<Candidate> electedLeaders) throws InterruptedException {
+        Candidate leader = electedLeaders.poll(ELECTION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (leader == null) {
+            throw new IllegalStateException("no leader within " + ELECTION_TIMEOUT_MILLIS + " ms");
+        }
+        return leader;
+    }
+}
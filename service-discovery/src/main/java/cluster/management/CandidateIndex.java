@@ -0,0 +1,148 @@
+package cluster.management;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.ToLongFunction;
+
+// The election candidates, sorted by the sequence number zookeeper appended to their znode name.
+// It is kept up to date from the child events of the election znode, so finding the leader and our predecessor
+// is an O(log n) skip list lookup instead of a getChildren() of every candidate followed by a sort.
+//
+// By default candidates are ordered by their sequence number alone, WeightedLeaderElection orders them by priority first.
+//
+// The index may briefly lag behind zookeeper, so whatever it returns has to be confirmed
+// (LeaderElectionIntegrated does that with exists()) and removed when it turns out to be gone.
+//
+// The lookups never lock: they read whatever map is current, reset() builds a new one and swaps it in.
+// add() and remove() come from the zookeeper event thread and take a short lock, see reset().
+public class CandidateIndex {
+
+    // lists the candidates as zookeeper sees them, usually a getChildren() of the election znode
+    public interface Listing {
+        Collection<String> list() throws KeeperException, InterruptedException;
+    }
+
+    // ordering key -> znode name, replaced as a whole by reset()
+    private volatile ConcurrentSkipListMap<Long, String> candidates = new ConcurrentSkipListMap<>();
+    // the add() / remove() calls made while a reset is listing, true for an add, guarded by this
+    private List<Map.Entry<String, Boolean>> changesDuringReset = null;
+    // maps a znode name to its position, a negative key means the name is not a candidate
+    private final ToLongFunction<String> keyFunction;
+
+    public CandidateIndex() {
+        this(CandidateIndex::sequenceOf);
+    }
+
+    CandidateIndex(ToLongFunction<String> keyFunction) {
+        this.keyFunction = keyFunction;
+    }
+
+    // Replaces the whole content with a new listing, used for the initial listing and after a reconnect.
+    // The changes reported while the listing runs may or may not be in it, so they are recorded
+    // and applied again, in order, on top of the listing before the new map is swapped in:
+    // for every candidate the latest change wins, and one that came before the listing agrees with it anyway.
+    // If the listing fails the index stays as it was.
+    public void reset(Listing listing) throws KeeperException, InterruptedException {
+        List<Map.Entry<String, Boolean>> changes = new ArrayList<>();
+        synchronized (this) {
+            changesDuringReset = changes;
+        }
+
+        Collection<String> znodeNames;
+        try {
+            znodeNames = listing.list();
+        } catch (KeeperException | InterruptedException | RuntimeException e) {
+            synchronized (this) {
+                changesDuringReset = null;
+            }
+            throw e;
+        }
+
+        ConcurrentSkipListMap<Long, String> freshCandidates = new ConcurrentSkipListMap<>();
+        for (String znodeName : znodeNames) {
+            apply(freshCandidates, znodeName, true);
+        }
+        // no change can come in between the replay and the swap
+        synchronized (this) {
+            changesDuringReset = null;
+            for (Map.Entry<String, Boolean> change : changes) {
+                apply(freshCandidates, change.getKey(), change.getValue());
+            }
+            candidates = freshCandidates;
+        }
+    }
+
+    public synchronized void add(String znodeName) {
+        record(znodeName, true);
+        apply(candidates, znodeName, true);
+    }
+
+    public synchronized void remove(String znodeName) {
+        record(znodeName, false);
+        apply(candidates, znodeName, false);
+    }
+
+    private void record(String znodeName, boolean added) {
+        if (changesDuringReset != null) {
+            changesDuringReset.add(new AbstractMap.SimpleImmutableEntry<>(znodeName, added));
+        }
+    }
+
+    private void apply(ConcurrentSkipListMap<Long, String> candidates, String znodeName, boolean added) {
+        long key = keyFunction.applyAsLong(znodeName);
+        if (key < 0) {
+            return;
+        }
+        if (added) {
+            candidates.put(key, znodeName);
+        } else {
+            candidates.remove(key, znodeName);
+        }
+    }
+
+    // the candidate that comes first, or null when there is none
+    public String first() {
+        Map.Entry<Long, String> first = candidates.firstEntry();
+        return first == null ? null : first.getValue();
+    }
+
+    // the candidate right before the given one, or null when the given one comes first
+    public String predecessorOf(String znodeName) {
+        Map.Entry<Long, String> predecessor = candidates.lowerEntry(keyFunction.applyAsLong(znodeName));
+        return predecessor == null ? null : predecessor.getValue();
+    }
+
+    // the candidate right after the given one, or null when the given one comes last
+    public String successorOf(String znodeName) {
+        Map.Entry<Long, String> successor = candidates.higherEntry(keyFunction.applyAsLong(znodeName));
+        return successor == null ? null : successor.getValue();
+    }
+
+    public int size() {
+        return candidates.size();
+    }
+
+    // the 10 digit counter zookeeper appends to sequential znodes, or -1 if the name doesn't end with one
+    static long sequenceOf(String znodeName) {
+        int length = znodeName.length();
+        if (length < 10) {
+            return -1;
+        }
+
+        long sequence = 0;
+        for (int i = length - 10; i < length; i++) {
+            char digit = znodeName.charAt(i);
+            if (digit < '0' || digit > '9') {
+                return -1;
+            }
+            sequence = sequence * 10 + (digit - '0');
+        }
+        return sequence;
+    }
+}
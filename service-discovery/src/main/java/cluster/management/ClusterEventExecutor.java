@@ -0,0 +1,170 @@
+package cluster.management;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Zookeeper delivers every watch event of a session on one single event thread,
+// so a watcher that makes synchronous zookeeper calls inside process() delays every other watcher of that session.
+// With this executor the watchers only enqueue their work, which then runs on one serial lane per concern:
+// a slow registry refresh can't hold back a leader failover notification and the other way around.
+// Every lane has its own thread and a bounded queue.
+public class ClusterEventExecutor {
+    // see submitRetrying()
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 100;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5000;
+
+    public enum Lane {
+        ELECTION,
+        REGISTRY
+    }
+
+    public interface ClusterTask {
+        void run() throws KeeperException, InterruptedException;
+    }
+
+    private final Map<Lane, ThreadPoolExecutor> executors = new EnumMap<>(Lane.class);
+    private final Map<Lane, AtomicLong> submittedTasks = new EnumMap<>(Lane.class);
+    private final Map<Lane, AtomicLong> rejectedTasks = new EnumMap<>(Lane.class);
+    private final AtomicLong retriedTasks = new AtomicLong();
+
+    // only waits out the retry delays, the retried tasks themselves run on their lane
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ClusterEventExecutor(int queueCapacity) {
+        for (Lane lane : Lane.values()) {
+            String threadName = "cluster-" + lane.name().toLowerCase();
+            executors.put(lane, new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    new ThreadPoolExecutor.AbortPolicy()));
+            submittedTasks.put(lane, new AtomicLong());
+            rejectedTasks.put(lane, new AtomicLong());
+        }
+    }
+
+    // returns false if the lane's queue is full and the task was dropped
+    public boolean submit(Lane lane, String description, ClusterTask task) {
+        try {
+            executors.get(lane).execute(() -> {
+                try {
+                    task.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (KeeperException e) {
+                    System.out.println(description + " failed : " + e);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            });
+            submittedTasks.get(lane).incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedTasks.get(lane).incrementAndGet();
+            System.out.println("Dropped " + description + ", the " + lane + " lane is full");
+            return false;
+        }
+    }
+
+    // For idempotent "re-read the current state" tasks (re-election, registry refresh):
+    // while one such task is still waiting in the queue, submitting it again is a no-op because the queued one
+    // will see the latest state anyway. This keeps a storm of events from filling up the lane.
+    // The queued flag is owned by the caller, one per kind of task.
+    public boolean submitCoalesced(Lane lane, AtomicBoolean queued, String description, ClusterTask task) {
+        if (!queued.compareAndSet(false, true)) {
+            return true;
+        }
+
+        boolean accepted = submit(lane, description, () -> {
+            queued.set(false);
+            task.run();
+        });
+        if (!accepted) {
+            queued.set(false);
+        }
+        return accepted;
+    }
+
+    // For the coalesced tasks that must not be lost (the initial read of the registry, the resync after a reconnect):
+    // a task the full lane rejects, or that fails with a KeeperException, is submitted again after a delay,
+    // INITIAL_RETRY_DELAY_MILLIS then twice as long every time up to MAX_RETRY_DELAY_MILLIS.
+    // An expired session is not retried, whoever recovers the session starts its components over.
+    public boolean submitRetrying(Lane lane, AtomicBoolean queued, String description, ClusterTask task) {
+        return submitRetrying(lane, queued, description, task, INITIAL_RETRY_DELAY_MILLIS);
+    }
+
+    private boolean submitRetrying(Lane lane, AtomicBoolean queued, String description, ClusterTask task, long retryDelayMillis) {
+        boolean accepted = submitCoalesced(lane, queued, description, () -> {
+            try {
+                task.run();
+            } catch (KeeperException.SessionExpiredException e) {
+                throw e;
+            } catch (KeeperException e) {
+                System.out.println(description + " failed : " + e + ", retrying in " + retryDelayMillis + " ms");
+                retryLater(lane, queued, description, task, retryDelayMillis);
+            }
+        });
+        if (!accepted) {
+            retryLater(lane, queued, description, task, retryDelayMillis);
+        }
+        return accepted;
+    }
+
+    private void retryLater(Lane lane, AtomicBoolean queued, String description, ClusterTask task, long retryDelayMillis) {
+        long nextRetryDelayMillis = Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+        try {
+            retryScheduler.schedule(() -> {
+                retriedTasks.incrementAndGet();
+                submitRetrying(lane, queued, description, task, nextRetryDelayMillis);
+            }, retryDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    public long getSubmittedTasks(Lane lane) {
+        return submittedTasks.get(lane).get();
+    }
+
+    public long getRejectedTasks(Lane lane) {
+        return rejectedTasks.get(lane).get();
+    }
+
+    public long getRetriedTasks() {
+        return retriedTasks.get();
+    }
+
+    public int getQueueSize(Lane lane) {
+        return executors.get(lane).getQueue().size();
+    }
+
+    public void shutdown() {
+        retryScheduler.shutdownNow();
+        for (ThreadPoolExecutor executor : executors.values()) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder("cluster event executor:");
+        for (Lane lane : Lane.values()) {
+            stringBuilder.append(String.format(" %s submitted = %d rejected = %d;",
+                    lane, getSubmittedTasks(lane), getRejectedTasks(lane)));
+        }
+        stringBuilder.append(" retried = ").append(getRetriedTasks());
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,147 @@
+package cluster.management;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Collapses a burst of change events into a single refresh.
+// Every trigger() (re)starts a quiet window, the refresh runs once no new event arrived for windowMillis,
+// but never later than maxDelayMillis after the first event that is still waiting for it, so the view stays fresh
+// even under a continuous stream of events.
+// The refresh runs on its own thread: at most one refresh is in flight and at most one more is pending,
+// events that arrive while a refresh is running are folded into that single pending one.
+// A failed refresh is retried with the same backoff as ClusterEventExecutor.submitRetrying(), since the refresh
+// is usually what re-arms the one-shot watch and nothing else would ever trigger it again.
+public class CoalescingRefresher {
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 100;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5000;
+
+    public interface RefreshTask {
+        void refresh() throws Exception;
+    }
+
+    private final String name;
+    private final RefreshTask refreshTask;
+    private final long windowNanos;
+    private final long maxDelayNanos;
+    private final ScheduledExecutorService scheduler;
+
+    // guarded by this
+    private ScheduledFuture<?> pendingRefresh = null;
+    private long firstPendingEventNanos;
+    private long retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+
+    private final AtomicLong eventsReceived = new AtomicLong();
+    private final AtomicLong refreshesExecuted = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private final AtomicLong refreshRetries = new AtomicLong();
+
+    public CoalescingRefresher(String name, RefreshTask refreshTask, long windowMillis, long maxDelayMillis) {
+        if (windowMillis < 0 || maxDelayMillis < windowMillis) {
+            throw new IllegalArgumentException("expected 0 <= windowMillis <= maxDelayMillis");
+        }
+        this.name = name;
+        this.refreshTask = refreshTask;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // called for every change event, never blocks
+    public synchronized void trigger() {
+        eventsReceived.incrementAndGet();
+        long now = System.nanoTime();
+
+        if (pendingRefresh == null) {
+            firstPendingEventNanos = now;
+            pendingRefresh = scheduler.schedule(this::runRefresh, windowNanos, TimeUnit.NANOSECONDS);
+            return;
+        }
+
+        // push the pending refresh out to the end of the new window, bounded by the max delay.
+        // If the cancel fails the refresh has already started and is just waiting for our monitor
+        // to mark itself as running, it will read the state after this event anyway.
+        long delay = Math.min(windowNanos, firstPendingEventNanos + maxDelayNanos - now);
+        if (pendingRefresh.cancel(false)) {
+            pendingRefresh = scheduler.schedule(this::runRefresh, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void runRefresh() {
+        synchronized (this) {
+            // from now on new events start a new pending refresh, which the single scheduler thread
+            // can only start once this one is done
+            pendingRefresh = null;
+        }
+
+        try {
+            refreshTask.refresh();
+            refreshesExecuted.incrementAndGet();
+            synchronized (this) {
+                retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (KeeperException.SessionExpiredException e) {
+            // retrying on a dead session can never succeed, the session recovery re-registers and refreshes
+            refreshFailures.incrementAndGet();
+            System.out.println(name + " refresh failed : " + e);
+        } catch (Exception e) {
+            refreshFailures.incrementAndGet();
+            retryLater(e);
+        }
+    }
+
+    private synchronized void retryLater(Exception failure) {
+        long delayMillis = retryDelayMillis;
+        retryDelayMillis = Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+
+        if (pendingRefresh != null) {
+            // an event arrived while we were failing, its refresh is already on the way
+            System.out.println(name + " refresh failed : " + failure + ", a new refresh is already pending");
+            return;
+        }
+
+        System.out.println(name + " refresh failed : " + failure + ", retrying in " + delayMillis + " ms");
+        try {
+            firstPendingEventNanos = System.nanoTime();
+            pendingRefresh = scheduler.schedule(this::runRefresh, delayMillis, TimeUnit.MILLISECONDS);
+            refreshRetries.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public long getEventsReceived() {
+        return eventsReceived.get();
+    }
+
+    public long getRefreshesExecuted() {
+        return refreshesExecuted.get();
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures.get();
+    }
+
+    public long getRefreshRetries() {
+        return refreshRetries.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " refresher: events received = " + getEventsReceived()
+                + ", refreshes executed = " + getRefreshesExecuted()
+                + ", refresh failures = " + getRefreshFailures()
+                + ", refresh retries = " + getRefreshRetries();
+    }
+}
@@ -0,0 +1,167 @@
+package cluster.management;
+
+import java.util.*;
+
+// Maps keys to workers so that a membership change only moves the keys of the worker that joined or left.
+// With a plain hash(key) % size almost every key moves whenever the autohealer replaces a worker,
+// with the ring only about 1/size of the keys do.
+//
+// Every worker is placed on the ring at virtualNodes pseudo random points, a key belongs to the first point
+// at or after its own hash (wrapping around). The points live in one sorted long[] with a parallel owner array,
+// so a lookup is a binary search: O(log(size * virtualNodes)) and no allocation.
+// Register it with ServiceRegistryIntegrated.addRegistryListener() to follow the cluster membership.
+public class ConsistentHashRing implements OnRegistryUpdateCallback {
+    private static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    // immutable, replaced as a whole on every membership change
+    private static final class Ring {
+        private static final Ring EMPTY = new Ring(new long[0], new String[0], Collections.<String>emptySet());
+
+        private final long[] points;
+        private final String[] owners;
+        private final Set<String> members;
+
+        private Ring(long[] points, String[] owners, Set<String> members) {
+            this.points = points;
+            this.owners = owners;
+            this.members = members;
+        }
+    }
+
+    private final int virtualNodes;
+    private volatile Ring ring = Ring.EMPTY;
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be at least 1");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    // returns the address of the worker owning the key, or null when the ring is empty
+    public String lookup(String key) {
+        return lookup(hash(key));
+    }
+
+    public String lookup(long keyHash) {
+        Ring currentRing = this.ring;
+        long[] points = currentRing.points;
+        if (points.length == 0) {
+            return null;
+        }
+
+        // first point >= keyHash, wrapping around to the first point of the ring
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (points[middle] < keyHash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return currentRing.owners[low == points.length ? 0 : low];
+    }
+
+    @Override
+    public void onRegistryUpdated(RegistrySnapshot snapshot) {
+        updateMembers(snapshot.getEndpoints().values());
+    }
+
+    // Incremental update: the points of the workers that stayed are kept as they are,
+    // the ones of the workers that left are filtered out and only the workers that joined are hashed,
+    // then the two sorted runs are merged.
+    public synchronized void updateMembers(Collection<String> addresses) {
+        Ring currentRing = this.ring;
+        Set<String> newMembers = new HashSet<>(addresses);
+        if (newMembers.equals(currentRing.members)) {
+            return;
+        }
+
+        int keptPoints = 0;
+        for (String owner : currentRing.owners) {
+            if (newMembers.contains(owner)) {
+                keptPoints++;
+            }
+        }
+
+        long[] oldPoints = new long[keptPoints];
+        String[] oldOwners = new String[keptPoints];
+        int index = 0;
+        for (int i = 0; i < currentRing.points.length; i++) {
+            if (newMembers.contains(currentRing.owners[i])) {
+                oldPoints[index] = currentRing.points[i];
+                oldOwners[index] = currentRing.owners[i];
+                index++;
+            }
+        }
+
+        List<String> joined = new ArrayList<>();
+        for (String member : newMembers) {
+            if (!currentRing.members.contains(member)) {
+                joined.add(member);
+            }
+        }
+        long[][] addedPoints = new long[joined.size() * virtualNodes][];
+        index = 0;
+        for (int memberIndex = 0; memberIndex < joined.size(); memberIndex++) {
+            for (int replica = 0; replica < virtualNodes; replica++) {
+                // {point, index of the owner in joined}
+                addedPoints[index++] = new long[]{hash(joined.get(memberIndex) + "#" + replica), memberIndex};
+            }
+        }
+        Arrays.sort(addedPoints, (first, second) -> Long.compare(first[0], second[0]));
+
+        long[] points = new long[oldPoints.length + addedPoints.length];
+        String[] owners = new String[points.length];
+        int oldIndex = 0;
+        int addedIndex = 0;
+        for (int i = 0; i < points.length; i++) {
+            if (addedIndex == addedPoints.length
+                    || (oldIndex < oldPoints.length && oldPoints[oldIndex] <= addedPoints[addedIndex][0])) {
+                points[i] = oldPoints[oldIndex];
+                owners[i] = oldOwners[oldIndex];
+                oldIndex++;
+            } else {
+                points[i] = addedPoints[addedIndex][0];
+                owners[i] = joined.get((int) addedPoints[addedIndex][1]);
+                addedIndex++;
+            }
+        }
+
+        this.ring = new Ring(points, owners, Collections.unmodifiableSet(newMembers));
+    }
+
+    public Set<String> getMembers() {
+        return ring.members;
+    }
+
+    public int size() {
+        return ring.members.size();
+    }
+
+    // 64 bit FNV-1a over the UTF-16 chars followed by the murmur3 finalizer to spread the bits,
+    // it walks the string in place so hashing a key doesn't allocate
+    public static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
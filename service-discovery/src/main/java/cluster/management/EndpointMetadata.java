@@ -0,0 +1,184 @@
+package cluster.management;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// The data a worker stores in its service registry znode.
+//
+// Workers used to store a plain "http://host:port" string, which is still accepted: any payload that doesn't
+// start with the MAGIC byte is a legacy payload whose whole content is the address.
+// The binary form (MAGIC can't start a valid UTF-8 string, so the two can't be confused), all big endian:
+//   byte MAGIC, byte format version, int weight, int capacity, short protocol version, long start timestamp,
+//   unsigned short address length, address (UTF-8), unsigned short zone length, zone (UTF-8)
+// Newer format versions may only append fields, so older readers keep decoding the fields they know.
+//
+// Decoding is lazy and works directly on the znode's byte[] without copying it: the numeric fields are read
+// from their offsets on every call, the address and zone Strings are only created the first time they are asked for.
+public final class EndpointMetadata {
+    static final byte MAGIC = (byte) 0xFE;
+    static final byte FORMAT_VERSION = 1;
+
+    private static final int WEIGHT_OFFSET = 2;
+    private static final int CAPACITY_OFFSET = 6;
+    private static final int PROTOCOL_VERSION_OFFSET = 10;
+    private static final int START_TIMESTAMP_OFFSET = 12;
+    private static final int ADDRESS_OFFSET = 20;
+
+    private static final int DEFAULT_WEIGHT = 1;
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private final byte[] payload;
+    private final boolean legacy;
+
+    // decoded on first use, racy but harmless: every thread would decode the same String
+    private String address;
+    private String zone;
+
+    // a znode created without data comes back as null, it is an empty legacy payload
+    public EndpointMetadata(byte[] payload) {
+        this.payload = payload == null ? EMPTY_PAYLOAD : payload;
+        this.legacy = !isWellFormedBinary(this.payload);
+    }
+
+    // a payload that starts with MAGIC but whose lengths don't add up is treated like a legacy one
+    private static boolean isWellFormedBinary(byte[] payload) {
+        if (payload.length < ADDRESS_OFFSET + 4 || payload[0] != MAGIC) {
+            return false;
+        }
+        int zoneOffset = ADDRESS_OFFSET + 2 + readUnsignedShort(payload, ADDRESS_OFFSET);
+        return zoneOffset + 2 <= payload.length
+                && zoneOffset + 2 + readUnsignedShort(payload, zoneOffset) <= payload.length;
+    }
+
+    public static EndpointMetadata forAddress(String address) {
+        return new EndpointMetadata(address.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static byte[] encode(String address, int weight, String zone, int capacity,
+                                int protocolVersion, long startTimestamp) {
+        byte[] addressBytes = address.getBytes(StandardCharsets.UTF_8);
+        byte[] zoneBytes = zone.getBytes(StandardCharsets.UTF_8);
+        if (addressBytes.length > 0xFFFF || zoneBytes.length > 0xFFFF || protocolVersion < 0 || protocolVersion > 0xFFFF) {
+            throw new IllegalArgumentException("endpoint metadata field out of range");
+        }
+
+        byte[] payload = new byte[ADDRESS_OFFSET + 2 + addressBytes.length + 2 + zoneBytes.length];
+        payload[0] = MAGIC;
+        payload[1] = FORMAT_VERSION;
+        writeInt(payload, WEIGHT_OFFSET, weight);
+        writeInt(payload, CAPACITY_OFFSET, capacity);
+        writeShort(payload, PROTOCOL_VERSION_OFFSET, protocolVersion);
+        writeLong(payload, START_TIMESTAMP_OFFSET, startTimestamp);
+
+        int offset = ADDRESS_OFFSET;
+        writeShort(payload, offset, addressBytes.length);
+        System.arraycopy(addressBytes, 0, payload, offset + 2, addressBytes.length);
+        offset += 2 + addressBytes.length;
+        writeShort(payload, offset, zoneBytes.length);
+        System.arraycopy(zoneBytes, 0, payload, offset + 2, zoneBytes.length);
+        return payload;
+    }
+
+    // the raw znode data, not a copy, so don't modify it
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    public int getFormatVersion() {
+        return legacy ? 0 : payload[1];
+    }
+
+    public String getAddress() {
+        String decoded = address;
+        if (decoded == null) {
+            decoded = legacy
+                    ? new String(payload, StandardCharsets.UTF_8)
+                    : new String(payload, ADDRESS_OFFSET + 2, readUnsignedShort(payload, ADDRESS_OFFSET), StandardCharsets.UTF_8);
+            address = decoded;
+        }
+        return decoded;
+    }
+
+    public int getWeight() {
+        return legacy ? DEFAULT_WEIGHT : readInt(payload, WEIGHT_OFFSET);
+    }
+
+    // 0 when unknown
+    public int getCapacity() {
+        return legacy ? 0 : readInt(payload, CAPACITY_OFFSET);
+    }
+
+    // 0 when unknown
+    public int getProtocolVersion() {
+        return legacy ? 0 : readUnsignedShort(payload, PROTOCOL_VERSION_OFFSET);
+    }
+
+    // 0 when unknown
+    public long getStartTimestamp() {
+        return legacy ? 0 : readLong(payload, START_TIMESTAMP_OFFSET);
+    }
+
+    // empty when unknown
+    public String getZone() {
+        String decoded = zone;
+        if (decoded == null) {
+            if (legacy) {
+                decoded = "";
+            } else {
+                int zoneOffset = ADDRESS_OFFSET + 2 + readUnsignedShort(payload, ADDRESS_OFFSET);
+                decoded = new String(payload, zoneOffset + 2, readUnsignedShort(payload, zoneOffset), StandardCharsets.UTF_8);
+            }
+            zone = decoded;
+        }
+        return decoded;
+    }
+
+    public boolean samePayload(EndpointMetadata other) {
+        return other != null && Arrays.equals(payload, other.payload);
+    }
+
+    @Override
+    public String toString() {
+        if (legacy) {
+            return getAddress();
+        }
+        return getAddress() + " (weight " + getWeight() + ", zone " + getZone() + ", capacity " + getCapacity()
+                + ", protocol " + getProtocolVersion() + ", started " + getStartTimestamp() + ")";
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24)
+                | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static void writeShort(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + 4, (int) value);
+    }
+}
@@ -0,0 +1,46 @@
+package cluster.management;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Used by followers to reject commands from a deposed leader.
+// Every command carries the fencing token of the leader that sent it (LeaderLease.getFencingToken()),
+// once we accepted a token we reject everything that carries an older one.
+public class FencingTokenValidator {
+    private final AtomicLong highestToken = new AtomicLong(-1);
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    // true if the command may be executed, lock free
+    public boolean validate(long fencingToken) {
+        while (true) {
+            long highest = highestToken.get();
+            if (fencingToken < highest) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (fencingToken == highest || highestToken.compareAndSet(highest, fencingToken)) {
+                accepted.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public long getHighestToken() {
+        return highestToken.get();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FencingTokenValidator{highest=" + getHighestToken() + ", accepted=" + getAccepted()
+                + ", rejected=" + getRejected() + "}";
+    }
+}
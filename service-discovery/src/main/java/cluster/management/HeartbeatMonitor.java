@@ -0,0 +1,229 @@
+package cluster.management;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The leader's side of the heartbeats: finds out that a worker died well before zookeeper expires its session.
+// Every intervalMillis we send a UDP ping to every worker of the registry (to the port of its advertised address,
+// where its HeartbeatResponder answers), and feed the answers to a PhiAccrualFailureDetector.
+// A worker whose phi reaches the threshold is suspected: the registry ejects it from the routing view
+// (ServiceRegistryIntegrated.suspectEndpoint()) until it answers again or its znode goes away.
+// A worker that never answered is never suspected, it may simply not run a responder.
+//
+// Ping data: int id we gave the worker, so the answer is matched whatever address it comes back from,
+//            int sequence number, an answer echoing an older one than the last we accepted from that worker
+//            was late or duplicated on the way and is ignored
+public class HeartbeatMonitor implements OnRegistryUpdateCallback, AutoCloseable {
+    public static final double DEFAULT_PHI_THRESHOLD = 8.0;
+    static final int PING_SIZE = 8;
+
+    private final ServiceRegistryIntegrated serviceRegistry;
+    private final PhiAccrualFailureDetector failureDetector;
+    private final double phiThreshold;
+    private final DatagramSocket socket;
+    private final ScheduledExecutorService scheduler;
+
+    // znode name -> where we ping it, and the id we ping it with -> znode name
+    private final Map<String, InetSocketAddress> targets = new ConcurrentHashMap<>();
+    private final Map<String, Integer> targetIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> namesById = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Set<String> suspected = ConcurrentHashMap.newKeySet();
+    // znode name -> the sequence number of the last answer we accepted from it, only the receiver thread adds to it
+    private final Map<String, Integer> lastSequences = new ConcurrentHashMap<>();
+    private int sequence = 0;
+
+    private final AtomicLong pingsSent = new AtomicLong();
+    private final AtomicLong answersReceived = new AtomicLong();
+    private final AtomicLong suspicions = new AtomicLong();
+    private final AtomicLong recoveries = new AtomicLong();
+
+    public HeartbeatMonitor(ServiceRegistryIntegrated serviceRegistry, long intervalMillis, double phiThreshold)
+            throws SocketException {
+        this.serviceRegistry = serviceRegistry;
+        this.failureDetector = new PhiAccrualFailureDetector(intervalMillis);
+        this.phiThreshold = phiThreshold;
+        this.socket = new DatagramSocket();
+
+        Thread receiver = new Thread(this::receiveAnswers, "heartbeat-monitor-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // follows the registry's members, including the ones it currently ejects
+    @Override
+    public void onRegistryUpdated(RegistrySnapshot snapshot) {
+        if (snapshot.isProvisional()) {
+            return;
+        }
+        Map<String, EndpointMetadata> members = serviceRegistry.getMembers();
+        for (Map.Entry<String, EndpointMetadata> member : members.entrySet()) {
+            if (!targets.containsKey(member.getKey())) {
+                InetSocketAddress target = heartbeatAddress(member.getValue().getAddress());
+                if (target != null) {
+                    int id = nextId.getAndIncrement();
+                    namesById.put(id, member.getKey());
+                    targetIds.put(member.getKey(), id);
+                    targets.put(member.getKey(), target);
+                }
+            }
+        }
+        for (String name : targets.keySet()) {
+            if (!members.containsKey(name)) {
+                // zookeeper caught up with it, the registry doesn't need our suspicion anymore
+                targets.remove(name);
+                Integer id = targetIds.remove(name);
+                if (id != null) {
+                    namesById.remove(id);
+                }
+                suspected.remove(name);
+                lastSequences.remove(name);
+                failureDetector.remove(name);
+            }
+        }
+    }
+
+    // the UDP port has the number of the advertised address' port, null if the address has none
+    private static InetSocketAddress heartbeatAddress(String address) {
+        try {
+            URI uri = URI.create(address);
+            if (uri.getHost() == null || uri.getPort() < 0) {
+                return null;
+            }
+            return new InetSocketAddress(uri.getHost(), uri.getPort());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // on the scheduler thread, an exception would cancel every later tick so it only costs this one
+    private void tick() {
+        try {
+            pingAndSuspect();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // ping everybody, then suspect whoever stayed silent for too long
+    private void pingAndSuspect() {
+        sequence++;
+        byte[] ping = new byte[PING_SIZE];
+        for (Map.Entry<String, InetSocketAddress> target : targets.entrySet()) {
+            Integer id = targetIds.get(target.getKey());
+            if (id == null) {
+                continue;
+            }
+            ByteBuffer.wrap(ping).putInt(id).putInt(sequence);
+            try {
+                socket.send(new DatagramPacket(ping, ping.length, target.getValue()));
+                pingsSent.incrementAndGet();
+            } catch (IOException e) {
+                // unreachable right now, its silence will tell
+            }
+        }
+
+        long now = System.nanoTime();
+        for (String name : targets.keySet()) {
+            double phi = failureDetector.phi(name, now);
+            if (phi >= phiThreshold && suspected.add(name)) {
+                suspicions.incrementAndGet();
+                System.out.println(String.format("Suspecting %s (phi %.1f), ejecting it from the routing view", name, phi));
+                serviceRegistry.suspectEndpoint(name);
+            }
+        }
+    }
+
+    private void receiveAnswers() {
+        byte[] buffer = new byte[PING_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                continue;
+            }
+            long now = System.nanoTime();
+            if (packet.getLength() != PING_SIZE) {
+                continue;
+            }
+            ByteBuffer answer = ByteBuffer.wrap(buffer);
+            String name = namesById.get(answer.getInt());
+            int answeredSequence = answer.getInt();
+            if (name == null) {
+                continue;
+            }
+            Integer lastSequence = lastSequences.get(name);
+            if (lastSequence != null && answeredSequence <= lastSequence) {
+                continue;
+            }
+            lastSequences.put(name, answeredSequence);
+
+            answersReceived.incrementAndGet();
+            failureDetector.heartbeat(name, now);
+            if (suspected.remove(name)) {
+                recoveries.incrementAndGet();
+                System.out.println("Heard from " + name + " again, back in the routing view");
+                serviceRegistry.clearSuspicion(name);
+            }
+        }
+    }
+
+    public double getPhi(String name) {
+        return failureDetector.phi(name, System.nanoTime());
+    }
+
+    public Set<String> getSuspected() {
+        return suspected;
+    }
+
+    public long getPingsSent() {
+        return pingsSent.get();
+    }
+
+    public long getAnswersReceived() {
+        return answersReceived.get();
+    }
+
+    public long getSuspicions() {
+        return suspicions.get();
+    }
+
+    public long getRecoveries() {
+        return recoveries.get();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        socket.close();
+    }
+
+    @Override
+    public String toString() {
+        return "HeartbeatMonitor{targets=" + targets.size() + ", suspected=" + suspected + ", pings=" + getPingsSent()
+                + ", answers=" + getAnswersReceived() + ", suspicions=" + getSuspicions()
+                + ", recoveries=" + getRecoveries() + "}";
+    }
+}
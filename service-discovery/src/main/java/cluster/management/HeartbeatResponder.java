@@ -0,0 +1,46 @@
+package cluster.management;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+// The worker's side of the heartbeats: answers every ping of the leader's HeartbeatMonitor with the same datagram.
+// It listens on UDP on the same port number as the worker's advertised address, so the leader finds it
+// from the registry alone.
+public class HeartbeatResponder implements AutoCloseable {
+    private final DatagramSocket socket;
+
+    public HeartbeatResponder(int port) throws SocketException {
+        this.socket = new DatagramSocket(new InetSocketAddress(port));
+
+        Thread responder = new Thread(this::respond, "heartbeat-responder-" + port);
+        responder.setDaemon(true);
+        responder.start();
+    }
+
+    private void respond() {
+        byte[] buffer = new byte[HeartbeatMonitor.PING_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                // the packet still holds the sender's address, we send the same bytes back
+                socket.send(packet);
+            } catch (IOException e) {
+                // closed, or the leader went away: nothing to answer
+            }
+        }
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
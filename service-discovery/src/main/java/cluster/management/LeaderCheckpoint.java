@@ -0,0 +1,524 @@
+package cluster.management;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Checkpoints of the leader's view of the registry, so a follower that gets promoted starts from warm state
+// instead of rebuilding the whole view from the registry znodes first.
+//
+// The leader writes them (startWriting()): the checkpoint znode holds a full base, every change after it is
+// a small sequential delta child holding only the endpoints that were added, changed or removed.
+// Once MAX_DELTAS deltas piled up, a new base replaces them in one multi(), so the deltas never grow unbounded.
+// Followers tail them (startTailing()) through a persistent recursive watch and keep the same view in memory,
+// stopTailing() hands it over as a provisional RegistrySnapshot when they get elected.
+//
+// The writes are fenced with the version of the checkpoint znode: the base is written with a setData() and the deltas
+// with a check() in the same multi(), both conditional on the version we last read or wrote.
+// A new leader's first base claims the checkpoint, the previous leader, if it is still writing, then fails with
+// BadVersion and stops instead of overwriting its successor's checkpoints.
+// The new base doesn't fence a delta the previous leader created between our getChildren() and our multi(),
+// that delta survives the base with a higher sequence number. So every delta also carries the version of the base
+// it was written against, and followers skip the deltas of an older base.
+//
+// The base is deflated: addresses and metadata compress well, and a znode can't hold more than jute.maxbuffer (1 MB).
+// A registry whose base still doesn't fit is not checkpointed, a new leader then starts cold.
+//
+// Base data:  long registry version, long sequence of the last delta folded into it, int count,
+//             then for every endpoint: int name length, name (UTF-8), int payload length, payload
+// Delta data: int version of the checkpoint znode it follows, long registry version, int count,
+//             then for every endpoint: int name length, name (UTF-8), int payload length (-1 if the endpoint was removed), payload
+public class LeaderCheckpoint implements Watcher, RecoverableComponent {
+    static final String CHECKPOINT_ZNODE = "/leader_checkpoint";
+    private static final String DELTA_PREFIX = CHECKPOINT_ZNODE + "/d_";
+    private static final int MAX_DELTAS = 32;
+    // below the default jute.maxbuffer, leaving room for the rest of the multi() request
+    private static final int MAX_BASE_BYTES = 1000 * 1024;
+
+    // replaced by rebind() when the session expired and was recovered
+    private volatile ZooKeeper zooKeeper;
+    // when not null, our watch is set through its dispatch, see ZooKeeperSessionManager.watchSubtree()
+    private final ZooKeeperSessionManager session;
+    // when not null, the catch ups triggered by the watch run on its REGISTRY lane
+    private final ClusterEventExecutor eventExecutor;
+    private final AtomicBoolean catchUpQueued = new AtomicBoolean(false);
+
+    // the view we tail or write, guarded by this
+    private final Map<String, EndpointMetadata> endpoints = new LinkedHashMap<>();
+    private long registryVersion = 0;
+    private long lastAppliedDelta = -1;
+    // version of the checkpoint znode we last read the base from
+    private int baseVersion = -1;
+    // false until we read or wrote a base
+    private boolean hasView = false;
+
+    // guarded by this
+    private boolean tailing = false;
+    private boolean watchAdded = false;
+    private CoalescingRefresher writer = null;
+    private ServiceRegistryIntegrated writtenRegistry = null;
+    private OnRegistryUpdateCallback writeTrigger = null;
+    private int deltasSinceBase = 0;
+    // version of the checkpoint znode our next write is conditional on, and whether one of our bases made it
+    private int writtenVersion = -1;
+    private boolean claimed = false;
+
+    private final AtomicLong basesWritten = new AtomicLong();
+    private final AtomicLong deltasWritten = new AtomicLong();
+    private final AtomicLong deltasApplied = new AtomicLong();
+    private final AtomicLong fencedWrites = new AtomicLong();
+    private final AtomicLong staleDeltas = new AtomicLong();
+
+    public LeaderCheckpoint(ZooKeeper zooKeeper) {
+        this(zooKeeper, null);
+    }
+
+    public LeaderCheckpoint(ZooKeeper zooKeeper, ClusterEventExecutor eventExecutor) {
+        this(zooKeeper, null, eventExecutor);
+    }
+
+    public LeaderCheckpoint(ZooKeeperSessionManager session, ClusterEventExecutor eventExecutor) {
+        this(session.getZooKeeper(), session, eventExecutor);
+    }
+
+    private LeaderCheckpoint(ZooKeeper zooKeeper, ZooKeeperSessionManager session, ClusterEventExecutor eventExecutor) {
+        this.zooKeeper = zooKeeper;
+        this.session = session;
+        this.eventExecutor = eventExecutor;
+    }
+
+    // follower side: keep our copy of the leader's view up to date
+    public synchronized void startTailing() throws KeeperException, InterruptedException {
+        if (tailing) {
+            return;
+        }
+        createCheckpointZnode();
+        if (!watchAdded) {
+            // the watch goes first, so no checkpoint written after the catch up below can be missed
+            if (session != null) {
+                session.watchSubtree(CHECKPOINT_ZNODE, this);
+            } else {
+                zooKeeper.addWatch(CHECKPOINT_ZNODE, this, AddWatchMode.PERSISTENT_RECURSIVE);
+            }
+            watchAdded = true;
+        }
+        tailing = true;
+        catchUp();
+    }
+
+    // Stops tailing and returns the view as a provisional snapshot, or null if no leader ever wrote one.
+    public synchronized RegistrySnapshot stopTailing() {
+        tailing = false;
+        if (!hasView) {
+            return null;
+        }
+        return new RegistrySnapshot(registryVersion, System.currentTimeMillis(), endpoints, true);
+    }
+
+    // leader side: checkpoint every new snapshot of the registry, a burst of registry changes
+    // is folded into a single delta written at most maxDelayMillis after the first change
+    public synchronized void startWriting(ServiceRegistryIntegrated serviceRegistry, long windowMillis, long maxDelayMillis)
+            throws KeeperException, InterruptedException {
+        if (writer != null) {
+            return;
+        }
+        tailing = false;
+        removeWatch();
+        createCheckpointZnode();
+        writtenVersion = readCheckpointVersion();
+        claimed = false;
+
+        // our first checkpoint is always a new base, whatever the previous leader left behind
+        deltasSinceBase = MAX_DELTAS;
+        writer = new CoalescingRefresher("checkpoint", this::writeCheckpoint, windowMillis, maxDelayMillis);
+        writtenRegistry = serviceRegistry;
+        CoalescingRefresher currentWriter = writer;
+        writeTrigger = snapshot -> currentWriter.trigger();
+        serviceRegistry.addRegistryListener(writeTrigger);
+    }
+
+    // the checkpoint znodes are persistent, nothing to re-create
+    @Override
+    public List<Op> recreateOperations() {
+        return Collections.emptyList();
+    }
+
+    // A follower sets its watch again on the new session and catches up with what it missed.
+    // A leader's next write is a new base, we don't know whether the last one made it before the expiry
+    @Override
+    public synchronized void rebind(ZooKeeper zooKeeper, List<OpResult> results) throws KeeperException, InterruptedException {
+        this.zooKeeper = zooKeeper;
+        watchAdded = false;
+        deltasSinceBase = MAX_DELTAS;
+        if (tailing) {
+            tailing = false;
+            startTailing();
+        }
+    }
+
+    public synchronized void stopWriting() {
+        if (writer == null) {
+            return;
+        }
+        writtenRegistry.removeRegistryListener(writeTrigger);
+        writer.shutdown();
+        writer = null;
+        writtenRegistry = null;
+        writeTrigger = null;
+    }
+
+    // run by the writer's thread
+    private synchronized void writeCheckpoint() throws KeeperException, InterruptedException {
+        if (writtenRegistry == null) {
+            return;
+        }
+        RegistrySnapshot snapshot = writtenRegistry.getSnapshot();
+        if (snapshot.isProvisional() || snapshot.getVersion() == 0) {
+            // only checkpoint what we read from zookeeper ourselves
+            return;
+        }
+
+        Map<String, EndpointMetadata> current = snapshot.getMetadata();
+        try {
+            if (deltasSinceBase >= MAX_DELTAS) {
+                writeBase(snapshot.getVersion(), current);
+            } else {
+                writeDelta(snapshot.getVersion(), current);
+            }
+        } catch (KeeperException.BadVersionException e) {
+            fencedWrites.incrementAndGet();
+            if (claimed) {
+                // a new leader wrote its base after ours, the checkpoint is its now
+                System.out.println("The checkpoint was taken over by another leader, no longer writing it");
+                writtenRegistry.removeRegistryListener(writeTrigger);
+                writtenRegistry = null;
+                return;
+            }
+            // the previous leader wrote once more before our first base, which claims the checkpoint on the next try.
+            // Nothing else may change in the registry for a while, so we don't wait for the next snapshot
+            writtenVersion = readCheckpointVersion();
+            deltasSinceBase = MAX_DELTAS;
+            writer.trigger();
+        }
+    }
+
+    private int readCheckpointVersion() throws KeeperException, InterruptedException {
+        Stat stat = zooKeeper.exists(CHECKPOINT_ZNODE, false);
+        if (stat == null) {
+            throw new KeeperException.NoNodeException(CHECKPOINT_ZNODE);
+        }
+        return stat.getVersion();
+    }
+
+    private void writeBase(long version, Map<String, EndpointMetadata> current) throws KeeperException, InterruptedException {
+        List<Op> operations = new ArrayList<>();
+        long lastDelta = lastAppliedDelta;
+        // the deltas are folded into the new base, followers see both changes at once
+        for (String delta : zooKeeper.getChildren(CHECKPOINT_ZNODE, false)) {
+            operations.add(Op.delete(CHECKPOINT_ZNODE + "/" + delta, -1));
+            lastDelta = Math.max(lastDelta, CandidateIndex.sequenceOf(delta));
+        }
+
+        byte[] base = deflate(encodeBase(version, lastDelta, current));
+        if (base.length > MAX_BASE_BYTES) {
+            // we try again with the next snapshot, the followers keep the last checkpoint they saw
+            System.out.println("The registry is too big to checkpoint : " + base.length + " bytes compressed");
+            return;
+        }
+        operations.add(0, Op.setData(CHECKPOINT_ZNODE, base, writtenVersion));
+        List<OpResult> results = zooKeeper.multi(operations);
+
+        writtenVersion = ((OpResult.SetDataResult) results.get(0)).getStat().getVersion();
+        claimed = true;
+        lastAppliedDelta = lastDelta;
+        replaceView(version, current);
+        deltasSinceBase = 0;
+        basesWritten.incrementAndGet();
+    }
+
+    private void writeDelta(long version, Map<String, EndpointMetadata> current) throws KeeperException, InterruptedException {
+        Map<String, EndpointMetadata> changes = new LinkedHashMap<>();
+        for (Map.Entry<String, EndpointMetadata> endpoint : current.entrySet()) {
+            if (!endpoint.getValue().samePayload(endpoints.get(endpoint.getKey()))) {
+                changes.put(endpoint.getKey(), endpoint.getValue());
+            }
+        }
+        for (String name : endpoints.keySet()) {
+            if (!current.containsKey(name)) {
+                changes.put(name, null);
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        // the check() fails if another leader wrote a base since ours
+        List<OpResult> results = zooKeeper.multi(Arrays.asList(
+                Op.check(CHECKPOINT_ZNODE, writtenVersion),
+                Op.create(DELTA_PREFIX, encodeDelta(writtenVersion, version, changes),
+                        ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL)));
+        String deltaPath = ((OpResult.CreateResult) results.get(1)).getPath();
+        lastAppliedDelta = CandidateIndex.sequenceOf(deltaPath);
+        replaceView(version, current);
+        deltasSinceBase++;
+        deltasWritten.incrementAndGet();
+    }
+
+    private void replaceView(long version, Map<String, EndpointMetadata> current) {
+        endpoints.clear();
+        endpoints.putAll(current);
+        registryVersion = version;
+        hasView = true;
+    }
+
+    // Brings our view up to date: re-reads the base only if it changed, then applies the deltas we haven't seen.
+    // If a delta we never saw was already folded into a new base, the new base covers it.
+    private synchronized void catchUp() throws KeeperException, InterruptedException {
+        if (!tailing) {
+            return;
+        }
+
+        Stat baseStat = new Stat();
+        byte[] base = zooKeeper.getData(CHECKPOINT_ZNODE, false, baseStat);
+        if (baseStat.getVersion() != baseVersion && base.length > 0) {
+            applyBase(base);
+            baseVersion = baseStat.getVersion();
+            hasView = true;
+        }
+
+        List<String> deltas = zooKeeper.getChildren(CHECKPOINT_ZNODE, false);
+        Collections.sort(deltas);
+        for (String delta : deltas) {
+            long sequence = CandidateIndex.sequenceOf(delta);
+            if (sequence <= lastAppliedDelta) {
+                continue;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(zooKeeper.getData(CHECKPOINT_ZNODE + "/" + delta, false, null));
+                int deltaBaseVersion = buffer.getInt();
+                if (deltaBaseVersion > baseVersion) {
+                    // written after a base we haven't read yet, the event of that base brings us back here
+                    return;
+                }
+                if (deltaBaseVersion == baseVersion) {
+                    applyDelta(buffer);
+                    deltasApplied.incrementAndGet();
+                } else {
+                    // a deposed leader's last delta, our base already replaced the view it was based on
+                    staleDeltas.incrementAndGet();
+                }
+                lastAppliedDelta = sequence;
+            } catch (KeeperException.NoNodeException e) {
+                // folded into a new base meanwhile, the event of that base brings us back here
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        switch (event.getType()) {
+            case None:
+                // we may have missed checkpoints while disconnected
+                if (event.getState() == Event.KeeperState.SyncConnected) {
+                    scheduleCatchUp();
+                }
+                break;
+
+            case NodeCreated:
+            case NodeDataChanged:
+                scheduleCatchUp();
+                break;
+        }
+    }
+
+    private void scheduleCatchUp() {
+        if (eventExecutor != null) {
+            eventExecutor.submitCoalesced(ClusterEventExecutor.Lane.REGISTRY, catchUpQueued,
+                    "checkpoint catch up", this::catchUp);
+            return;
+        }
+        try {
+            catchUp();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void createCheckpointZnode() throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.create(CHECKPOINT_ZNODE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // another node created it first
+        }
+    }
+
+    private void removeWatch() throws KeeperException, InterruptedException {
+        if (watchAdded) {
+            watchAdded = false;
+            if (session != null) {
+                session.unwatchSubtree(CHECKPOINT_ZNODE, this);
+            } else {
+                zooKeeper.removeWatches(CHECKPOINT_ZNODE, this, WatcherType.Any, true);
+            }
+        }
+    }
+
+    private void applyBase(byte[] base) throws KeeperException {
+        ByteBuffer buffer = ByteBuffer.wrap(inflate(base));
+        registryVersion = buffer.getLong();
+        lastAppliedDelta = buffer.getLong();
+        int count = buffer.getInt();
+
+        endpoints.clear();
+        for (int i = 0; i < count; i++) {
+            String name = new String(readBytes(buffer), StandardCharsets.UTF_8);
+            endpoints.put(name, new EndpointMetadata(readBytes(buffer)));
+        }
+    }
+
+    private void applyDelta(ByteBuffer buffer) {
+        registryVersion = buffer.getLong();
+        int count = buffer.getInt();
+
+        for (int i = 0; i < count; i++) {
+            String name = new String(readBytes(buffer), StandardCharsets.UTF_8);
+            byte[] payload = readBytes(buffer);
+            if (payload == null) {
+                endpoints.remove(name);
+            } else {
+                endpoints.put(name, new EndpointMetadata(payload));
+            }
+        }
+    }
+
+    private static byte[] encodeBase(long version, long lastDelta, Map<String, EndpointMetadata> current) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 8 + encodedSize(current));
+        buffer.putLong(version).putLong(lastDelta);
+        putEndpoints(buffer, current);
+        return buffer.array();
+    }
+
+    private static byte[] encodeDelta(int baseVersion, long version, Map<String, EndpointMetadata> changes) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + encodedSize(changes));
+        buffer.putInt(baseVersion);
+        buffer.putLong(version);
+        putEndpoints(buffer, changes);
+        return buffer.array();
+    }
+
+    private static int encodedSize(Map<String, EndpointMetadata> entries) {
+        int size = 4;
+        for (Map.Entry<String, EndpointMetadata> entry : entries.entrySet()) {
+            size += 4 + entry.getKey().getBytes(StandardCharsets.UTF_8).length + 4;
+            if (entry.getValue() != null) {
+                size += entry.getValue().getPayload().length;
+            }
+        }
+        return size;
+    }
+
+    // a null metadata is written as a -1 payload length, a removed endpoint
+    private static void putEndpoints(ByteBuffer buffer, Map<String, EndpointMetadata> entries) {
+        buffer.putInt(entries.size());
+        for (Map.Entry<String, EndpointMetadata> entry : entries.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(name.length).put(name);
+            if (entry.getValue() == null) {
+                buffer.putInt(-1);
+            } else {
+                byte[] payload = entry.getValue().getPayload();
+                buffer.putInt(payload.length).put(payload);
+            }
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 4 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return output.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data) throws KeeperException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new KeeperException.BadArgumentsException(CHECKPOINT_ZNODE + " holds a truncated base");
+                }
+                output.write(buffer, 0, inflated);
+            }
+        } catch (DataFormatException e) {
+            throw new KeeperException.BadArgumentsException(CHECKPOINT_ZNODE + " holds a corrupt base");
+        } finally {
+            inflater.end();
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return endpoints.size();
+    }
+
+    public long getBasesWritten() {
+        return basesWritten.get();
+    }
+
+    public long getDeltasWritten() {
+        return deltasWritten.get();
+    }
+
+    public long getDeltasApplied() {
+        return deltasApplied.get();
+    }
+
+    // writes that failed because another leader wrote the checkpoint in between
+    public long getFencedWrites() {
+        return fencedWrites.get();
+    }
+
+    // deltas a follower skipped because a newer base had already replaced the one they were written against
+    public long getStaleDeltas() {
+        return staleDeltas.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LeaderCheckpoint{endpoints=" + endpoints.size() + ", registry version=" + registryVersion
+                + ", bases written=" + getBasesWritten() + ", deltas written=" + getDeltasWritten()
+                + ", deltas applied=" + getDeltasApplied() + ", fenced writes=" + getFencedWrites()
+                + ", stale deltas=" + getStaleDeltas() + "}";
+    }
+}
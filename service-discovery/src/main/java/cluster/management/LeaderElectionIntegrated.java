@@ -3,18 +3,66 @@ package cluster.management;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class LeaderElectionIntegrated implements Watcher {
+public class LeaderElectionIntegrated implements Watcher, RecoverableComponent {
     private static final String ELECTION_NAMESPACE = "/election";
-    private ZooKeeper zooKeeper;
-    private String currentZnodeName;
+    // left by a leader that hands leadership over, see handOffLeadership()
+    private static final String HANDOFF_ZNODE = "/election_handoff";
+    // replaced by rebind() when the session expired and was recovered
+    private volatile ZooKeeper zooKeeper;
+    // when not null, the candidate watch is set through its dispatch, see ZooKeeperSessionManager.watchSubtree().
+    // The predecessor watch stays an explicit one, nobody else is interested in our predecessor
+    private final ZooKeeperSessionManager session;
+    private volatile String currentZnodeName;
     private final OnElectionCAllback onElectionCAllback;
 
+    // when not null, re-elections (and the callbacks they invoke) run on its ELECTION lane
+    // instead of the zookeeper event thread
+    private final ClusterEventExecutor eventExecutor;
+    private final AtomicBoolean reelectionQueued = new AtomicBoolean(false);
+
+    // the candidates sorted by sequence number, fed by a persistent recursive watch on the election znode
+    // so a re-election doesn't have to list and sort every candidate.
+    // The price is a herd: every candidate holds that watch, so each join or leave notifies all N of them
+    // (see ReelectionBenchmark), where the predecessor watch alone notifies one. Candidates sharing a
+    // ZooKeeperSessionManager share one watch
+    private final CandidateIndex candidateIndex = new CandidateIndex();
+    private final Watcher candidateWatcher = this::onCandidateEvent;
+    private volatile boolean candidateWatchAdded = false;
+    // set when the index may have missed events, the next re-election lists the candidates again
+    private volatile boolean candidateIndexStale = true;
+
+    private volatile boolean leader = false;
+
+    // when not null, the leader holds a lease it renews in the background, see enableLease()
+    private volatile LeaderLease lease;
+
     public LeaderElectionIntegrated(ZooKeeper zooKeeper,OnElectionCAllback onElectionCAllback) {
+        this(zooKeeper, onElectionCAllback, null);
+    }
+
+    public LeaderElectionIntegrated(ZooKeeper zooKeeper, OnElectionCAllback onElectionCAllback, ClusterEventExecutor eventExecutor) {
+        this(zooKeeper, null, onElectionCAllback, eventExecutor);
+    }
+
+    public LeaderElectionIntegrated(ZooKeeperSessionManager session, OnElectionCAllback onElectionCAllback, ClusterEventExecutor eventExecutor) {
+        this(session.getZooKeeper(), session, onElectionCAllback, eventExecutor);
+    }
+
+    private LeaderElectionIntegrated(ZooKeeper zooKeeper, ZooKeeperSessionManager session,
+                                     OnElectionCAllback onElectionCAllback, ClusterEventExecutor eventExecutor) {
         this.zooKeeper = zooKeeper;
+        this.session = session;
         this.onElectionCAllback = onElectionCAllback;
+        this.eventExecutor = eventExecutor;
     }
 
     public void volunteerForLeadership() throws KeeperException, InterruptedException {
@@ -26,38 +74,318 @@ public class LeaderElectionIntegrated implements Watcher {
 
         System.out.println("znode name " + znodeFullPath);
         this.currentZnodeName = znodeFullPath.replace(ELECTION_NAMESPACE + "/", "");
+        candidateIndex.add(currentZnodeName);
     }
 
     public void reelectLeader() throws KeeperException, InterruptedException {
+        if (currentZnodeName == null) {
+            // we handed leadership over and are not a candidate anymore
+            return;
+        }
+        if (candidateIndexStale) {
+            syncCandidateIndex();
+        }
+
         Stat predecessorStat = null;
         String predecessorZnodeName = "";
         while (predecessorStat == null) {
-            List<String> children = zooKeeper.getChildren(ELECTION_NAMESPACE, false);
+            predecessorZnodeName = candidateIndex.predecessorOf(currentZnodeName);
 
-            Collections.sort(children);
-            String smallestChild = children.get(0);
-
-            if (smallestChild.equals(currentZnodeName)) {
+            if (predecessorZnodeName == null) {
                 System.out.println("I am the leader");
-                this.onElectionCAllback.onElectedToBeLeader();
+                takeOverLeadership();
                 return;
             } else {
                 System.out.println("I am not the leader");
-                int predecessorIndex = Collections.binarySearch(children, currentZnodeName) - 1;
-                predecessorZnodeName = children.get(predecessorIndex);
                 predecessorStat = zooKeeper.exists(ELECTION_NAMESPACE + "/" + predecessorZnodeName, this);
+                if (predecessorStat == null) {
+                    // the index hasn't seen this deletion yet
+                    candidateIndex.remove(predecessorZnodeName);
+                }
             }
         }
 
+        if (lease != null) {
+            lease.revoke();
+        }
         this.onElectionCAllback.onWorker();
         System.out.println("Watching znode " + predecessorZnodeName);
         System.out.println();
     }
 
+    // Planned handoff, for a leader that shuts down cleanly (rolling deploys).
+    // Instead of the next candidate finding out through our session going away, we pick our successor,
+    // leave it the given state in the handoff znode and delete our candidate znode, both in one transaction,
+    // so the successor can't see us gone without also seeing the state.
+    // The successor deletes the handoff znode once it is the active leader, we wait for that up to timeoutMillis.
+    // The caller has to stop doing leader work before calling this, and can exit once it returns.
+    // Returns true if the successor confirmed, false if there was nobody to hand over to or it didn't confirm in time
+    // (whoever becomes the leader next still gets the state, as long as our session is alive).
+    public boolean handOffLeadership(byte[] state, long timeoutMillis) throws KeeperException, InterruptedException {
+        if (currentZnodeName == null) {
+            throw new IllegalStateException("only the current leader can hand leadership over");
+        }
+        // the index may be stale, the precondition is checked against the candidates as zookeeper sees them
+        if (candidateIndexStale) {
+            syncCandidateIndex();
+        }
+        String predecessorZnodeName = candidateIndex.predecessorOf(currentZnodeName);
+        while (predecessorZnodeName != null
+                && zooKeeper.exists(ELECTION_NAMESPACE + "/" + predecessorZnodeName, false) == null) {
+            candidateIndex.remove(predecessorZnodeName);
+            predecessorZnodeName = candidateIndex.predecessorOf(currentZnodeName);
+        }
+        if (predecessorZnodeName != null) {
+            throw new IllegalStateException("only the current leader can hand leadership over");
+        }
+
+        String successorZnodeName = candidateIndex.successorOf(currentZnodeName);
+        while (successorZnodeName != null
+                && zooKeeper.exists(ELECTION_NAMESPACE + "/" + successorZnodeName, false) == null) {
+            candidateIndex.remove(successorZnodeName);
+            successorZnodeName = candidateIndex.successorOf(currentZnodeName);
+        }
+        if (successorZnodeName == null) {
+            System.out.println("No candidate to hand leadership over to");
+            return false;
+        }
+
+        // we must not act as the leader anymore once the successor can see our candidate znode gone
+        leader = false;
+        if (lease != null) {
+            lease.revoke();
+        }
+
+        try {
+            writeHandoff(successorZnodeName, state);
+        } catch (KeeperException e) {
+            if (e.code() != KeeperException.Code.CONNECTIONLOSS) {
+                // the transaction was not applied, we are still the leader
+                if (lease != null) {
+                    lease.acquire(currentZnodeName);
+                }
+                leader = true;
+            }
+            throw e;
+        }
+        System.out.println("Handed leadership over to " + successorZnodeName);
+        currentZnodeName = null;
+        stopFollowingCandidates();
+
+        CountDownLatch confirmed = new CountDownLatch(1);
+        Stat handoffStat = zooKeeper.exists(HANDOFF_ZNODE, event -> {
+            if (event.getType() == Event.EventType.NodeDeleted) {
+                confirmed.countDown();
+            }
+        });
+        return handoffStat == null || confirmed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Creates the handoff znode and deletes our candidate znode in one transaction.
+    // A handoff znode that is still there is left over from an earlier handoff that was never confirmed:
+    // we are the leader now, so it is stale and goes in the same transaction. Its owner may delete it meanwhile,
+    // the transaction is then retried without it
+    private void writeHandoff(String successorZnodeName, byte[] state) throws KeeperException, InterruptedException {
+        while (true) {
+            Stat staleHandoffStat = zooKeeper.exists(HANDOFF_ZNODE, false);
+            List<Op> operations = new ArrayList<>(3);
+            if (staleHandoffStat != null) {
+                operations.add(Op.delete(HANDOFF_ZNODE, staleHandoffStat.getVersion()));
+            }
+            operations.add(Op.create(HANDOFF_ZNODE, encodeHandoff(successorZnodeName, state),
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL));
+            operations.add(Op.delete(ELECTION_NAMESPACE + "/" + currentZnodeName, -1));
+            try {
+                zooKeeper.multi(operations);
+                if (staleHandoffStat != null) {
+                    System.out.println("Replaced an unconfirmed handoff");
+                }
+                return;
+            } catch (KeeperException.NodeExistsException | KeeperException.NoNodeException
+                     | KeeperException.BadVersionException e) {
+                if (e instanceof KeeperException.NoNodeException
+                        && zooKeeper.exists(ELECTION_NAMESPACE + "/" + currentZnodeName, false) == null) {
+                    // it is our candidate znode that is gone, not the stale handoff
+                    throw e;
+                }
+                // the stale handoff znode came or went between the exists() and the multi()
+            }
+        }
+    }
+
+    // becomes the leader, first taking the state the previous leader left us if this is a handoff,
+    // then confirming the handoff by deleting its znode once we are active
+    private void takeOverLeadership() throws KeeperException, InterruptedException {
+        if (lease != null) {
+            lease.acquire(currentZnodeName);
+        }
+        leader = true;
+        byte[] handoff;
+        try {
+            handoff = zooKeeper.getData(HANDOFF_ZNODE, false, null);
+        } catch (KeeperException.NoNodeException e) {
+            // a regular election
+            this.onElectionCAllback.onElectedToBeLeader();
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(handoff);
+        byte[] successorZnodeName = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(successorZnodeName);
+        byte[] state = new byte[buffer.remaining()];
+        buffer.get(state);
+
+        String successor = new String(successorZnodeName, StandardCharsets.UTF_8);
+        if (!successor.equals(currentZnodeName)) {
+            // the chosen successor left before taking over, we are the next in line so the state is ours
+            System.out.println("Taking over the handoff meant for " + successor);
+        }
+
+        this.onElectionCAllback.onLeadershipHandedOver(state);
+        this.onElectionCAllback.onElectedToBeLeader();
+        try {
+            zooKeeper.delete(HANDOFF_ZNODE, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // the previous leader is gone already, nobody is waiting for the confirmation
+        }
+    }
+
+    private static byte[] encodeHandoff(String successorZnodeName, byte[] state) {
+        byte[] successor = successorZnodeName.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + successor.length + state.length)
+                .putShort((short) successor.length)
+                .put(successor)
+                .put(state)
+                .array();
+    }
+
+    private void stopFollowingCandidates() throws KeeperException, InterruptedException {
+        if (candidateWatchAdded) {
+            candidateWatchAdded = false;
+            candidateIndexStale = true;
+            if (session != null) {
+                session.unwatchSubtree(ELECTION_NAMESPACE, candidateWatcher);
+            } else {
+                zooKeeper.removeWatches(ELECTION_NAMESPACE, candidateWatcher, WatcherType.Any, true);
+            }
+        }
+    }
+
+    public boolean isLeader() {
+        return leader;
+    }
+
+    // a candidate again, at the end of the line: the expired session took our place with it
+    @Override
+    public List<Op> recreateOperations() {
+        if (currentZnodeName == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(Op.create(ELECTION_NAMESPACE + "/c_", new byte[]{},
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+    }
+
+    // Takes the new candidate znode and runs a re-election, which invokes onElectedToBeLeader() or onWorker()
+    // whatever we were before the expiry
+    @Override
+    public void rebind(ZooKeeper zooKeeper, List<OpResult> results) throws KeeperException, InterruptedException {
+        this.zooKeeper = zooKeeper;
+        // nobody can count on us leading anymore, the session our leadership was bound to is gone
+        leader = false;
+        if (lease != null) {
+            lease.rebind(zooKeeper);
+        }
+        candidateWatchAdded = false;
+        candidateIndexStale = true;
+        if (results.isEmpty()) {
+            return;
+        }
+        String znodeFullPath = ((OpResult.CreateResult) results.get(0)).getPath();
+        System.out.println("znode name " + znodeFullPath);
+        this.currentZnodeName = znodeFullPath.replace(ELECTION_NAMESPACE + "/", "");
+
+        if (eventExecutor != null) {
+            eventExecutor.submitRetrying(ClusterEventExecutor.Lane.ELECTION, reelectionQueued,
+                    "re-election", this::reelectLeader);
+            return;
+        }
+        reelectLeader();
+    }
+
+    // From now on the leader holds a lease, so it can check its leadership locally with LeaderLease.isLeader()
+    // and fence the commands it sends with LeaderLease.getFencingToken().
+    // Call it before the first reelectLeader().
+    public synchronized LeaderLease enableLease() {
+        return enableLease(LeaderLease.DEFAULT_LEASE_FRACTION);
+    }
+
+    public synchronized LeaderLease enableLease(double leaseFraction) {
+        if (lease == null) {
+            lease = new LeaderLease(zooKeeper, ELECTION_NAMESPACE, leaseFraction);
+        }
+        return lease;
+    }
+
+    public LeaderLease getLease() {
+        return lease;
+    }
+
+    public CandidateIndex getCandidateIndex() {
+        return candidateIndex;
+    }
+
+    // Lists the candidates once and from then on follows them through the persistent watch.
+    // The watch is added before the listing, so a candidate created in between is not missed.
+    // Every candidate older than ours already existed when we volunteered, so after this listing
+    // the index can only hold stale entries, which reelectLeader() drops, never miss a predecessor.
+    private void syncCandidateIndex() throws KeeperException, InterruptedException {
+        if (!candidateWatchAdded) {
+            if (session != null) {
+                session.watchSubtree(ELECTION_NAMESPACE, candidateWatcher);
+            } else {
+                zooKeeper.addWatch(ELECTION_NAMESPACE, candidateWatcher, AddWatchMode.PERSISTENT_RECURSIVE);
+            }
+            candidateWatchAdded = true;
+        }
+        candidateIndexStale = false;
+        candidateIndex.reset(() -> zooKeeper.getChildren(ELECTION_NAMESPACE, false));
+    }
+
+    // only touches the in-memory index, so it always runs directly on the zookeeper event thread
+    private void onCandidateEvent(WatchedEvent event) {
+        switch (event.getType()) {
+            case None:
+                if (event.getState() != Event.KeeperState.SyncConnected) {
+                    // events may be lost until we are connected again
+                    candidateIndexStale = true;
+                }
+                break;
+
+            case NodeCreated:
+                candidateIndex.add(childName(event.getPath()));
+                break;
+
+            case NodeDeleted:
+                candidateIndex.remove(childName(event.getPath()));
+                break;
+        }
+    }
+
+    private static String childName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
     @Override
     public void process(WatchedEvent event) {
         switch (event.getType()) {
             case NodeDeleted:
+                if (eventExecutor != null) {
+                    // a queued re-election reads the current candidates anyway, no need to queue a second one.
+                    // It is retried rather than dropped, until it succeeds nobody watches our predecessor
+                    eventExecutor.submitRetrying(ClusterEventExecutor.Lane.ELECTION, reelectionQueued,
+                            "re-election", this::reelectLeader);
+                    return;
+                }
                 try {
                     reelectLeader();
                 } catch (InterruptedException e) {
@@ -0,0 +1,203 @@
+package cluster.management;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lets the leader answer "am I still the leader?" from a local clock instead of a zookeeper round trip.
+// Enable it with LeaderElectionIntegrated.enableLease().
+//
+// Every renewal does a sync() followed by an exists() of our candidate znode. When it confirms the znode,
+// zookeeper had heard from our session no earlier than the moment we sent it, so the session can't expire
+// (and nobody else can be elected) before that moment + the session timeout.
+// The lease runs until sent + leaseFraction * session timeout, measured with System.nanoTime(),
+// the fraction leaving room for the difference between our clock and the server's.
+// isLeader() is then just two volatile reads and a nanoTime().
+//
+// The fencing token is the czxid of our candidate znode: a new leader's znode was always created after the
+// previous leader's, so the tokens only ever grow, even across a re-created election znode.
+// Followers check the tokens of the commands they get with a FencingTokenValidator.
+public class LeaderLease {
+    public static final double DEFAULT_LEASE_FRACTION = 0.8;
+
+    // replaced by rebind() when the session expired and was recovered
+    private volatile ZooKeeper zooKeeper;
+    private final String electionNamespace;
+    private final double leaseFraction;
+    private final ScheduledExecutorService scheduler;
+
+    // guarded by this
+    private ScheduledFuture<?> renewals = null;
+    private String candidatePath = null;
+
+    private volatile boolean held = false;
+    private volatile long expiryNanos = 0;
+    private volatile long fencingToken = -1;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong renewalsDone = new AtomicLong();
+    private final AtomicLong renewalFailures = new AtomicLong();
+    // renewals that came back after the lease had already run out
+    private final AtomicLong lapses = new AtomicLong();
+    private final AtomicLong totalRenewalNanos = new AtomicLong();
+    private final AtomicLong maxRenewalNanos = new AtomicLong();
+
+    LeaderLease(ZooKeeper zooKeeper, String electionNamespace, double leaseFraction) {
+        if (leaseFraction <= 0 || leaseFraction >= 1) {
+            throw new IllegalArgumentException("leaseFraction must be between 0 and 1");
+        }
+        this.zooKeeper = zooKeeper;
+        this.electionNamespace = electionNamespace;
+        this.leaseFraction = leaseFraction;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "leader-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // called by the election when we win, before the callbacks run
+    synchronized void acquire(String candidateZnodeName) throws KeeperException, InterruptedException {
+        candidatePath = electionNamespace + "/" + candidateZnodeName;
+        if (!renew()) {
+            throw new KeeperException.NoNodeException(candidatePath);
+        }
+        acquisitions.incrementAndGet();
+
+        // like the zookeeper client pings, a renewal every third of the session timeout,
+        // so two of them can fail before the lease runs out
+        long interval = Math.max(1, zooKeeper.getSessionTimeout() / 3);
+        if (renewals != null) {
+            renewals.cancel(false);
+        }
+        renewals = scheduler.scheduleWithFixedDelay(this::scheduledRenewal, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // called by the election when we step down or lose our candidate znode
+    void revoke() {
+        // stop answering isLeader() right away, even if a renewal holds the monitor
+        held = false;
+        synchronized (this) {
+            held = false;
+            candidatePath = null;
+            if (renewals != null) {
+                renewals.cancel(false);
+                renewals = null;
+            }
+        }
+    }
+
+    // the session the lease was held with expired, the next acquire() uses the new one
+    void rebind(ZooKeeper zooKeeper) {
+        revoke();
+        this.zooKeeper = zooKeeper;
+    }
+
+    private void scheduledRenewal() {
+        try {
+            synchronized (this) {
+                if (candidatePath == null) {
+                    return;
+                }
+                if (!renew()) {
+                    System.out.println("Lost the leader lease, our candidate znode is gone");
+                    revoke();
+                }
+            }
+        } catch (KeeperException.SessionExpiredException e) {
+            revoke();
+        } catch (KeeperException e) {
+            // connection loss: we keep what is left of the lease and try again at the next renewal
+            renewalFailures.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // returns false if our candidate znode doesn't exist anymore
+    private boolean renew() throws KeeperException, InterruptedException {
+        long sentNanos = System.nanoTime();
+        // the sync makes the exists() below see everything the quorum committed before we sent it,
+        // the client sends requests in order so we don't have to wait for its callback
+        zooKeeper.sync(candidatePath, (resultCode, path, context) -> {
+        }, null);
+        Stat stat = zooKeeper.exists(candidatePath, false);
+        long doneNanos = System.nanoTime();
+
+        if (stat == null) {
+            return false;
+        }
+
+        long renewalNanos = doneNanos - sentNanos;
+        renewalsDone.incrementAndGet();
+        totalRenewalNanos.addAndGet(renewalNanos);
+        maxRenewalNanos.accumulateAndGet(renewalNanos, Math::max);
+        if (held && doneNanos - expiryNanos > 0) {
+            lapses.incrementAndGet();
+        }
+
+        long leaseNanos = (long) (TimeUnit.MILLISECONDS.toNanos(zooKeeper.getSessionTimeout()) * leaseFraction);
+        fencingToken = stat.getCzxid();
+        expiryNanos = sentNanos + leaseNanos;
+        held = true;
+        return true;
+    }
+
+    // true while we hold a valid lease, no zookeeper call involved
+    public boolean isLeader() {
+        return held && System.nanoTime() - expiryNanos < 0;
+    }
+
+    // the token to attach to every command sent while leading, -1 if we never led
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    public long getRemainingNanos() {
+        return held ? Math.max(0, expiryNanos - System.nanoTime()) : 0;
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    public long getRenewals() {
+        return renewalsDone.get();
+    }
+
+    public long getRenewalFailures() {
+        return renewalFailures.get();
+    }
+
+    public long getLapses() {
+        return lapses.get();
+    }
+
+    public double getAverageRenewalMillis() {
+        long renewals = renewalsDone.get();
+        return renewals == 0 ? 0 : totalRenewalNanos.get() / 1e6 / renewals;
+    }
+
+    public double getMaxRenewalMillis() {
+        return maxRenewalNanos.get() / 1e6;
+    }
+
+    public void shutdown() {
+        revoke();
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LeaderLease{leader=%s, token=%d, remaining=%.0fms, acquisitions=%d, renewals=%d, "
+                        + "failures=%d, lapses=%d, avg renewal=%.2fms, max renewal=%.2fms}",
+                isLeader(), fencingToken, getRemainingNanos() / 1e6, getAcquisitions(), getRenewals(),
+                getRenewalFailures(), getLapses(), getAverageRenewalMillis(), getMaxRenewalMillis());
+    }
+}
@@ -0,0 +1,228 @@
+package cluster.management;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Client side load balancer over the workers of the service registry.
+// Register it with ServiceRegistryIntegrated.addRegistryListener() and it follows the cluster membership.
+//
+// select() is lock free and allocation free: it reads one volatile array and picks an endpoint with
+// round robin, weighted random, or power of two choices (P2C).
+// P2C samples two endpoints at random and takes the one with the lower load, where the load is the latency EWMA
+// multiplied by the number of requests in flight, so traffic drifts towards the fastest workers
+// instead of being spread uniformly.
+public class LoadBalancer implements OnRegistryUpdateCallback {
+
+    public enum Strategy {
+        ROUND_ROBIN,
+        WEIGHTED,
+        POWER_OF_TWO_CHOICES
+    }
+
+    // weight of the latest sample in the latency EWMA
+    private static final double DEFAULT_EWMA_ALPHA = 0.3;
+
+    public static final class Endpoint {
+        private final String name;
+        private final String address;
+        private final int weight;
+        private final double ewmaAlpha;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // the latency EWMA in nanoseconds, stored as the bits of a double so it can be updated with a CAS
+        private final AtomicLong latencyEwmaBits = new AtomicLong(Double.doubleToRawLongBits(0));
+
+        private Endpoint(String name, String address, int weight, double ewmaAlpha) {
+            this.name = name;
+            this.address = address;
+            this.weight = weight;
+            this.ewmaAlpha = ewmaAlpha;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public double getLatencyEwmaNanos() {
+            return Double.longBitsToDouble(latencyEwmaBits.get());
+        }
+
+        // call before sending a request to this endpoint
+        public void onRequestStart() {
+            inFlight.incrementAndGet();
+        }
+
+        // call when the response (or the failure) came back
+        public void onRequestComplete(long latencyNanos) {
+            inFlight.decrementAndGet();
+
+            while (true) {
+                long currentBits = latencyEwmaBits.get();
+                double current = Double.longBitsToDouble(currentBits);
+                // the first sample initializes the average instead of being blended with 0
+                double updated = current == 0 ? latencyNanos : current + ewmaAlpha * (latencyNanos - current);
+                if (latencyEwmaBits.compareAndSet(currentBits, Double.doubleToRawLongBits(updated))) {
+                    return;
+                }
+            }
+        }
+
+        // only meaningful between two measured endpoints, see selectPowerOfTwoChoices()
+        private double load() {
+            return getLatencyEwmaNanos() * (inFlight.get() + 1);
+        }
+
+        @Override
+        public String toString() {
+            return address + " (weight " + weight + ", in flight " + getInFlight()
+                    + ", ewma " + Math.round(getLatencyEwmaNanos() / 1000) + " us)";
+        }
+    }
+
+    // everything select() needs, replaced as a whole on every membership change
+    private static final class Table {
+        private static final Table EMPTY = new Table(new Endpoint[0], new long[0]);
+
+        private final Endpoint[] endpoints;
+        // cumulativeWeights[i] = sum of the weights of endpoints[0..i]
+        private final long[] cumulativeWeights;
+
+        private Table(Endpoint[] endpoints, long[] cumulativeWeights) {
+            this.endpoints = endpoints;
+            this.cumulativeWeights = cumulativeWeights;
+        }
+    }
+
+    private final Strategy strategy;
+    private final double ewmaAlpha;
+    private final AtomicInteger roundRobinCounter = new AtomicInteger();
+    private volatile Table table = Table.EMPTY;
+
+    public LoadBalancer(Strategy strategy) {
+        this(strategy, DEFAULT_EWMA_ALPHA);
+    }
+
+    public LoadBalancer(Strategy strategy, double ewmaAlpha) {
+        this.strategy = strategy;
+        this.ewmaAlpha = ewmaAlpha;
+    }
+
+    // returns null when there is no endpoint to pick from
+    public Endpoint select() {
+        Table currentTable = this.table;
+        Endpoint[] endpoints = currentTable.endpoints;
+        int size = endpoints.length;
+        if (size == 0) {
+            return null;
+        }
+        if (size == 1) {
+            return endpoints[0];
+        }
+
+        switch (strategy) {
+            case WEIGHTED:
+                return selectWeighted(currentTable);
+            case POWER_OF_TWO_CHOICES:
+                return selectPowerOfTwoChoices(endpoints);
+            case ROUND_ROBIN:
+            default:
+                return endpoints[(roundRobinCounter.getAndIncrement() & Integer.MAX_VALUE) % size];
+        }
+    }
+
+    private static Endpoint selectWeighted(Table currentTable) {
+        long[] cumulativeWeights = currentTable.cumulativeWeights;
+        long point = ThreadLocalRandom.current().nextLong(cumulativeWeights[cumulativeWeights.length - 1]);
+
+        // first index whose cumulative weight is greater than the random point
+        int low = 0;
+        int high = cumulativeWeights.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulativeWeights[middle] > point) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return currentTable.endpoints[low];
+    }
+
+    private static Endpoint selectPowerOfTwoChoices(Endpoint[] endpoints) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(endpoints.length);
+        // a second index that is guaranteed to be different from the first one
+        int second = (first + 1 + random.nextInt(endpoints.length - 1)) % endpoints.length;
+
+        Endpoint firstEndpoint = endpoints[first];
+        Endpoint secondEndpoint = endpoints[second];
+        // An endpoint that was never measured has no latency to compare, its load would be 0 and it would win
+        // every comparison, so a new or hung worker would get all the traffic until its first answer.
+        // We compare the requests in flight alone instead: the new worker is still probed quickly,
+        // and a hung one stops being picked as soon as its requests pile up.
+        if (firstEndpoint.getLatencyEwmaNanos() == 0 || secondEndpoint.getLatencyEwmaNanos() == 0) {
+            return firstEndpoint.getInFlight() <= secondEndpoint.getInFlight() ? firstEndpoint : secondEndpoint;
+        }
+        return firstEndpoint.load() <= secondEndpoint.load() ? firstEndpoint : secondEndpoint;
+    }
+
+    // Rebuilds the table from the new membership. Endpoints that are still there keep their Endpoint object,
+    // so their in-flight counts and latency statistics survive the change, only new workers get a fresh one.
+    @Override
+    public synchronized void onRegistryUpdated(RegistrySnapshot snapshot) {
+        Map<String, Endpoint> currentEndpoints = new HashMap<>();
+        for (Endpoint endpoint : table.endpoints) {
+            currentEndpoints.put(endpoint.name, endpoint);
+        }
+
+        Map<String, EndpointMetadata> members = snapshot.getMetadata();
+        Endpoint[] endpoints = new Endpoint[members.size()];
+        long[] cumulativeWeights = new long[members.size()];
+        long totalWeight = 0;
+        int index = 0;
+
+        for (Map.Entry<String, EndpointMetadata> member : members.entrySet()) {
+            String address = member.getValue().getAddress();
+            // the weight comes from the worker's registry metadata, legacy registrations weigh 1
+            int weight = Math.max(1, member.getValue().getWeight());
+
+            Endpoint endpoint = currentEndpoints.get(member.getKey());
+            if (endpoint == null || !endpoint.address.equals(address) || endpoint.weight != weight) {
+                endpoint = new Endpoint(member.getKey(), address, weight, ewmaAlpha);
+            }
+            totalWeight += endpoint.weight;
+            endpoints[index] = endpoint;
+            cumulativeWeights[index] = totalWeight;
+            index++;
+        }
+
+        this.table = new Table(endpoints, cumulativeWeights);
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public int size() {
+        return table.endpoints.length;
+    }
+
+    public Endpoint[] getEndpoints() {
+        return table.endpoints.clone();
+    }
+}
@@ -3,4 +3,9 @@ package cluster.management;
 public interface OnElectionCAllback {
     void onElectedToBeLeader();
     void onWorker();
+
+    // called right before onElectedToBeLeader() when the previous leader handed leadership over to us,
+    // with the state it shipped, see LeaderElectionIntegrated.handOffLeadership()
+    default void onLeadershipHandedOver(byte[] state) {
+    }
 }
@@ -0,0 +1,6 @@
+package cluster.management;
+
+public interface OnRegistryUpdateCallback {
+    // called with every newly published snapshot, on the thread that published it, so keep it short
+    void onRegistryUpdated(RegistrySnapshot snapshot);
+}
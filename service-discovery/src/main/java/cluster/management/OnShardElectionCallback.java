@@ -0,0 +1,17 @@
+package cluster.management;
+
+import java.util.Set;
+
+// The callbacks of a ShardedLeaderElection.
+// onElectedToBeLeader() runs when we start leading our first shard, onWorker() when we lead none anymore (or never did).
+public interface OnShardElectionCallback extends OnElectionCAllback {
+    // we lead this shard now, called before we act on any other shard
+    void onShardAssigned(int shard);
+
+    // we stopped leading this shard, called before the next candidate can take it over
+    void onShardRevoked(int shard);
+
+    // called after every change, with all the shards we lead
+    default void onLeadShardsChanged(Set<Integer> leadShards) {
+    }
+}
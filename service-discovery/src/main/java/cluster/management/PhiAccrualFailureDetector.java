@@ -0,0 +1,132 @@
+package cluster.management;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// The phi accrual failure detector (Hayashibara et al.), per endpoint.
+// Instead of a yes/no timeout it gives a suspicion level phi = -log10(P(a heartbeat arrives later than now)),
+// computed from the distribution of the intervals between the last heartbeats: phi = 1 means a 10% chance that
+// we suspect a live endpoint, phi = 8 one in a hundred million. So the detection adapts to each endpoint's jitter:
+// a steady endpoint is suspected soon after it stops, a noisy one gets more slack.
+// The intervals are assumed normally distributed, the tail probability uses the logistic approximation of the
+// normal CDF, and the standard deviation is floored so a very steady endpoint isn't suspected after one late packet.
+public class PhiAccrualFailureDetector {
+    private static final int DEFAULT_WINDOW_SIZE = 100;
+
+    private final int windowSize;
+    private final long minStdDeviationNanos;
+    // added to the mean interval, the pause we tolerate before phi starts growing (e.g. a GC)
+    private final long acceptablePauseNanos;
+    private final long firstIntervalNanos;
+
+    private final Map<String, History> histories = new ConcurrentHashMap<>();
+
+    // the arrival intervals of one endpoint, in a ring buffer
+    private static final class History {
+        private final long[] intervals;
+        private int count = 0;
+        private int next = 0;
+        private long sum = 0;
+        private double sumOfSquares = 0;
+        private long lastArrivalNanos;
+
+        History(int windowSize, long firstIntervalNanos, long arrivalNanos) {
+            this.intervals = new long[windowSize];
+            // bootstrap with two intervals around the expected one, so the first phi values are sensible
+            add(firstIntervalNanos - firstIntervalNanos / 4);
+            add(firstIntervalNanos + firstIntervalNanos / 4);
+            this.lastArrivalNanos = arrivalNanos;
+        }
+
+        private void add(long interval) {
+            if (count == intervals.length) {
+                long oldest = intervals[next];
+                sum -= oldest;
+                sumOfSquares -= (double) oldest * oldest;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % intervals.length;
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+        }
+    }
+
+    public PhiAccrualFailureDetector(long expectedIntervalMillis) {
+        this(DEFAULT_WINDOW_SIZE, expectedIntervalMillis, expectedIntervalMillis / 2, 0);
+    }
+
+    public PhiAccrualFailureDetector(int windowSize, long expectedIntervalMillis, long minStdDeviationMillis,
+                                     long acceptablePauseMillis) {
+        if (windowSize < 2 || expectedIntervalMillis <= 0 || minStdDeviationMillis <= 0 || acceptablePauseMillis < 0) {
+            throw new IllegalArgumentException("expected windowSize >= 2, positive intervals and a non negative pause");
+        }
+        this.windowSize = windowSize;
+        this.firstIntervalNanos = TimeUnit.MILLISECONDS.toNanos(expectedIntervalMillis);
+        this.minStdDeviationNanos = TimeUnit.MILLISECONDS.toNanos(minStdDeviationMillis);
+        this.acceptablePauseNanos = TimeUnit.MILLISECONDS.toNanos(acceptablePauseMillis);
+    }
+
+    // records a heartbeat from the endpoint, the first one starts monitoring it
+    public void heartbeat(String endpoint, long arrivalNanos) {
+        History history = histories.get(endpoint);
+        if (history == null) {
+            history = histories.putIfAbsent(endpoint, new History(windowSize, firstIntervalNanos, arrivalNanos));
+            if (history == null) {
+                return;
+            }
+        }
+        synchronized (history) {
+            long interval = arrivalNanos - history.lastArrivalNanos;
+            if (interval <= 0) {
+                // a duplicate, or a late answer to an older ping
+                return;
+            }
+            history.add(interval);
+            history.lastArrivalNanos = arrivalNanos;
+        }
+    }
+
+    // the suspicion level of the endpoint at the given time, 0 for an endpoint we never heard from
+    public double phi(String endpoint, long nowNanos) {
+        History history = histories.get(endpoint);
+        if (history == null) {
+            return 0;
+        }
+
+        double elapsed;
+        double mean;
+        double variance;
+        synchronized (history) {
+            elapsed = nowNanos - history.lastArrivalNanos;
+            mean = (double) history.sum / history.count;
+            variance = history.sumOfSquares / history.count - mean * mean;
+        }
+        double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDeviationNanos);
+        return phi(elapsed, mean + acceptablePauseNanos, stdDeviation);
+    }
+
+    // -log10 of the probability that a normally distributed interval is longer than elapsed
+    static double phi(double elapsed, double mean, double stdDeviation) {
+        double y = (elapsed - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    public boolean isMonitoring(String endpoint) {
+        return histories.containsKey(endpoint);
+    }
+
+    public void remove(String endpoint) {
+        histories.remove(endpoint);
+    }
+
+    public int size() {
+        return histories.size();
+    }
+}
@@ -0,0 +1,22 @@
+package cluster.management;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.List;
+
+// A component that can carry on after its zookeeper session expired, see ZooKeeperSessionManager.enableRecovery().
+// The ephemeral znodes it owned went away with the session: the manager asks every component for the operations
+// re-creating them, runs all of them in one multi() on the new session, so the node is back in the election and
+// the registry at once or not at all, and then hands every component the new session and its results.
+public interface RecoverableComponent {
+    // the operations re-creating the znodes this component owned in the expired session, empty if none
+    List<Op> recreateOperations();
+
+    // called once the operations succeeded, with the results of this component's operations in the same order.
+    // The components are rebound in the order they were added, so the election, whose re-election invokes
+    // the OnElectionCAllback, goes last
+    void rebind(ZooKeeper zooKeeper, List<OpResult> results) throws KeeperException, InterruptedException;
+}
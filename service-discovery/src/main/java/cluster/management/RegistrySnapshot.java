@@ -0,0 +1,75 @@
+package cluster.management;
+
+import java.util.*;
+
+// An immutable view of the service registry at one point in time.
+// A new snapshot is built for every refresh and published through a single volatile reference,
+// so readers never take a lock and never allocate, they just read whatever the latest published snapshot is.
+public final class RegistrySnapshot {
+    static final RegistrySnapshot EMPTY = new RegistrySnapshot(0, 0, Collections.<String, EndpointMetadata>emptyMap());
+
+    private final long version;
+    private final long lastUpdatedMillis;
+
+    // true for a snapshot loaded from disk at boot, until the first live read of the registry replaces it
+    private final boolean provisional;
+
+    // znode name -> metadata, and the same with just the addresses
+    private final Map<String, EndpointMetadata> metadata;
+    private final Map<String, String> endpoints;
+    private final List<String> addresses;
+
+    RegistrySnapshot(long version, long lastUpdatedMillis, Map<String, EndpointMetadata> metadata) {
+        this(version, lastUpdatedMillis, metadata, false);
+    }
+
+    RegistrySnapshot(long version, long lastUpdatedMillis, Map<String, EndpointMetadata> metadata, boolean provisional) {
+        this.version = version;
+        this.lastUpdatedMillis = lastUpdatedMillis;
+        this.provisional = provisional;
+        this.metadata = Collections.unmodifiableMap(new LinkedHashMap<>(metadata));
+
+        Map<String, String> endpoints = new LinkedHashMap<>(metadata.size() * 2);
+        for (Map.Entry<String, EndpointMetadata> endpoint : metadata.entrySet()) {
+            endpoints.put(endpoint.getKey(), endpoint.getValue().getAddress());
+        }
+        this.endpoints = Collections.unmodifiableMap(endpoints);
+        this.addresses = Collections.unmodifiableList(new ArrayList<>(endpoints.values()));
+    }
+
+    // 0 until the registry has been read for the first time, then incremented by every refresh
+    public long getVersion() {
+        return version;
+    }
+
+    // wall clock time (System.currentTimeMillis()) at which this snapshot was published
+    public long getLastUpdatedMillis() {
+        return lastUpdatedMillis;
+    }
+
+    public long getAgeMillis() {
+        return System.currentTimeMillis() - lastUpdatedMillis;
+    }
+
+    // a provisional snapshot may be arbitrarily stale, it only serves until we are synced with zookeeper
+    public boolean isProvisional() {
+        return provisional;
+    }
+
+    public Map<String, EndpointMetadata> getMetadata() {
+        return metadata;
+    }
+
+    public Map<String, String> getEndpoints() {
+        return endpoints;
+    }
+
+    public List<String> getAddresses() {
+        return addresses;
+    }
+
+    @Override
+    public String toString() {
+        return "RegistrySnapshot{version=" + version + (provisional ? ", provisional" : "") + ", addresses=" + addresses + "}";
+    }
+}
@@ -0,0 +1,176 @@
+package cluster.management;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Keeps the last live registry snapshot in a small local file, so a restarting node can route
+// from the moment it boots, and still has addresses when zookeeper is unreachable.
+//
+// The file is written through a memory mapping into a temporary file that is then moved over the old one
+// with an atomic rename, so a reader (or a crash) only ever sees the complete old file or the complete new one.
+// Layout, all big endian:
+//   int magic, int format version, long snapshot version, long last updated millis, int endpoint count,
+//   then for every endpoint: int name length, name (UTF-8), int payload length, payload (the raw znode data,
+//   see EndpointMetadata, a plain UTF-8 address for the legacy form)
+//
+// The registry publishes through saveInBackground(): the write and its fsync run on a writer thread of their own,
+// and while a write is under way only the latest of the snapshots published meanwhile is kept for the next one.
+public class RegistrySnapshotStore {
+    private static final int MAGIC = 0x52534e50; // "RSNP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final Path file;
+    private final Path temporaryFile;
+
+    // the snapshot waiting for the writer thread, a newer one replaces it
+    private final AtomicReference<RegistrySnapshot> pendingSnapshot = new AtomicReference<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "registry-snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong savedSnapshots = new AtomicLong();
+    private final AtomicLong replacedSnapshots = new AtomicLong();
+
+    public RegistrySnapshotStore(Path file) {
+        this.file = file.toAbsolutePath();
+        this.temporaryFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public void save(RegistrySnapshot snapshot) throws IOException {
+        Map<String, EndpointMetadata> endpoints = snapshot.getMetadata();
+
+        byte[][] encoded = new byte[endpoints.size() * 2][];
+        int size = HEADER_SIZE;
+        int index = 0;
+        for (Map.Entry<String, EndpointMetadata> endpoint : endpoints.entrySet()) {
+            encoded[index] = endpoint.getKey().getBytes(StandardCharsets.UTF_8);
+            encoded[index + 1] = endpoint.getValue().getPayload();
+            size += 4 + encoded[index].length + 4 + encoded[index + 1].length;
+            index += 2;
+        }
+
+        Files.deleteIfExists(temporaryFile);
+        try (FileChannel channel = FileChannel.open(temporaryFile,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC)
+                    .putInt(FORMAT_VERSION)
+                    .putLong(snapshot.getVersion())
+                    .putLong(snapshot.getLastUpdatedMillis())
+                    .putInt(endpoints.size());
+            for (byte[] bytes : encoded) {
+                buffer.putInt(bytes.length).put(bytes);
+            }
+            buffer.force();
+        }
+
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns right away, the snapshot is written on the writer thread unless a newer one replaces it first
+    public void saveInBackground(RegistrySnapshot snapshot) {
+        if (pendingSnapshot.getAndSet(snapshot) != null) {
+            // the writer did not take the previous one yet, it will take this one instead
+            replacedSnapshots.incrementAndGet();
+            return;
+        }
+        try {
+            writer.execute(this::savePending);
+        } catch (RejectedExecutionException e) {
+            // closed, we stopped persisting
+        }
+    }
+
+    private void savePending() {
+        RegistrySnapshot snapshot = pendingSnapshot.getAndSet(null);
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            save(snapshot);
+            savedSnapshots.incrementAndGet();
+        } catch (IOException e) {
+            System.out.println("Could not persist the registry snapshot : " + e);
+        }
+    }
+
+    public long getSavedSnapshots() {
+        return savedSnapshots.get();
+    }
+
+    // the snapshots that were never written because a newer one came before the writer was free
+    public long getReplacedSnapshots() {
+        return replacedSnapshots.get();
+    }
+
+    // writes the snapshot still pending, if any, and stops the writer thread
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                System.out.println("The last registry snapshot was not written within " + CLOSE_TIMEOUT_MILLIS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // returns the stored snapshot marked as provisional, or null if there is no usable file
+    public RegistrySnapshot load() {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                System.out.println("Ignoring unreadable registry snapshot " + file);
+                return null;
+            }
+
+            long version = buffer.getLong();
+            long lastUpdatedMillis = buffer.getLong();
+            int count = buffer.getInt();
+
+            Map<String, EndpointMetadata> endpoints = new LinkedHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String name = new String(readBytes(buffer), StandardCharsets.UTF_8);
+                endpoints.put(name, new EndpointMetadata(readBytes(buffer)));
+            }
+            return new RegistrySnapshot(version, lastUpdatedMillis, endpoints, true);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            System.out.println("Ignoring unreadable registry snapshot " + file + " : " + e);
+            return null;
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("corrupted length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
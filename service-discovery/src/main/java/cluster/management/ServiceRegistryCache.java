@@ -0,0 +1,226 @@
+package cluster.management;
+
+import org.apache.zookeeper.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// An in-memory copy of the service registry that is kept up to date with deltas.
+// A single persistent recursive watch on the registry znode (zookeeper 3.6+) delivers a
+// NodeCreated / NodeDeleted / NodeDataChanged event for every child, so we patch one entry per event
+// instead of re-listing and re-reading the whole subtree.
+// We only fall back to a full resync when we get reconnected, because events may have been missed while disconnected.
+public class ServiceRegistryCache implements Watcher {
+    private static final String CHILD_PREFIX = ServiceRegistryIntegrated.REGISTRY_ZNODE + "/";
+
+    private final ZooKeeper zooKeeper;
+    // when not null, the persistent watch is set through its dispatch, see ZooKeeperSessionManager.watchSubtree()
+    private final ZooKeeperSessionManager session;
+    private final ServiceRegistryIntegrated serviceRegistry;
+
+    // when not null, the zookeeper calls run on the REGISTRY lane instead of the zookeeper event thread
+    private final ClusterEventExecutor eventExecutor;
+
+    // znode name -> metadata, only accessed while holding the cache monitor
+    private final Map<String, EndpointMetadata> endpoints = new HashMap<>();
+
+    // znode name -> true if the znode has to be (re)read, false if it was deleted.
+    // Filled by the event thread, drained in one go by applyPendingChanges()
+    private final Map<String, Boolean> pendingChanges = new ConcurrentHashMap<>();
+    private final AtomicBoolean applyQueued = new AtomicBoolean(false);
+    private final AtomicBoolean resyncQueued = new AtomicBoolean(false);
+
+    private volatile boolean started = false;
+    // false until a full read succeeded, a start() whose read failed reads again when it is retried
+    private volatile boolean synced = false;
+    private volatile boolean resyncOnReconnect = false;
+
+    public ServiceRegistryCache(ZooKeeper zooKeeper, ServiceRegistryIntegrated serviceRegistry) {
+        this(zooKeeper, serviceRegistry, null);
+    }
+
+    public ServiceRegistryCache(ZooKeeper zooKeeper, ServiceRegistryIntegrated serviceRegistry, ClusterEventExecutor eventExecutor) {
+        this(zooKeeper, null, serviceRegistry, eventExecutor);
+    }
+
+    public ServiceRegistryCache(ZooKeeperSessionManager session, ServiceRegistryIntegrated serviceRegistry, ClusterEventExecutor eventExecutor) {
+        this(session.getZooKeeper(), session, serviceRegistry, eventExecutor);
+    }
+
+    private ServiceRegistryCache(ZooKeeper zooKeeper, ZooKeeperSessionManager session,
+                                 ServiceRegistryIntegrated serviceRegistry, ClusterEventExecutor eventExecutor) {
+        this.zooKeeper = zooKeeper;
+        this.session = session;
+        this.serviceRegistry = serviceRegistry;
+        this.eventExecutor = eventExecutor;
+    }
+
+    public synchronized void start() throws KeeperException, InterruptedException {
+        if (started && synced) {
+            return;
+        }
+
+        if (!started) {
+            // register the watch before listing the children so no change can slip in between
+            if (session != null) {
+                session.watchSubtree(ServiceRegistryIntegrated.REGISTRY_ZNODE, this);
+            } else {
+                zooKeeper.addWatch(ServiceRegistryIntegrated.REGISTRY_ZNODE, this, AddWatchMode.PERSISTENT_RECURSIVE);
+            }
+            started = true;
+        }
+        resync();
+    }
+
+    public synchronized void stop() throws KeeperException, InterruptedException {
+        if (!started) {
+            return;
+        }
+        started = false;
+        synced = false;
+        if (session != null) {
+            session.unwatchSubtree(ServiceRegistryIntegrated.REGISTRY_ZNODE, this);
+        } else {
+            zooKeeper.removeWatches(ServiceRegistryIntegrated.REGISTRY_ZNODE, this, WatcherType.Any, true);
+        }
+    }
+
+    public synchronized int size() {
+        return endpoints.size();
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    public synchronized Map<String, EndpointMetadata> copyEndpoints() {
+        return new HashMap<>(endpoints);
+    }
+
+    // full re-list and re-read, only used at start and after a reconnect
+    private synchronized void resync() throws KeeperException, InterruptedException {
+        List<String> workerNodes = zooKeeper.getChildren(ServiceRegistryIntegrated.REGISTRY_ZNODE, false);
+        Map<String, EndpointMetadata> freshEndpoints = serviceRegistry.readEndpointsBatched(workerNodes);
+
+        endpoints.clear();
+        endpoints.putAll(freshEndpoints);
+        synced = true;
+        publish();
+    }
+
+    private void publish() {
+        serviceRegistry.onRegistryCacheChanged(endpoints);
+    }
+
+    // only records what changed, the zookeeper reads happen in applyPendingChanges()
+    @Override
+    public void process(WatchedEvent event) {
+        if (!started) {
+            return;
+        }
+
+        switch (event.getType()) {
+            case None:
+                if (event.getState() == Event.KeeperState.Disconnected) {
+                    resyncOnReconnect = true;
+                } else if (event.getState() == Event.KeeperState.SyncConnected && resyncOnReconnect) {
+                    resyncOnReconnect = false;
+                    if (eventExecutor == null) {
+                        run("registry cache resync", this::resync);
+                    } else {
+                        // until it succeeds the cache may have missed changes, so it is retried rather than dropped
+                        eventExecutor.submitRetrying(ClusterEventExecutor.Lane.REGISTRY, resyncQueued,
+                                "registry cache resync", this::resync);
+                    }
+                }
+                break;
+
+            case NodeCreated:
+            case NodeDataChanged:
+                recordChange(event.getPath(), Boolean.TRUE);
+                break;
+
+            case NodeDeleted:
+                recordChange(event.getPath(), Boolean.FALSE);
+                break;
+        }
+    }
+
+    private void recordChange(String path, Boolean readData) {
+        String workerNode = childName(path);
+        if (workerNode == null) {
+            return;
+        }
+
+        pendingChanges.put(workerNode, readData);
+        if (eventExecutor == null) {
+            run("registry cache update", this::applyPendingChanges);
+        } else {
+            // one queued apply covers every change recorded until it starts running,
+            // a failed apply leaves its changes pending and is retried
+            eventExecutor.submitRetrying(ClusterEventExecutor.Lane.REGISTRY, applyQueued,
+                    "registry cache update", this::applyPendingChanges);
+        }
+    }
+
+    private synchronized void applyPendingChanges() throws KeeperException, InterruptedException {
+        boolean changed = false;
+
+        for (String workerNode : new ArrayList<>(pendingChanges.keySet())) {
+            // remove() hands us the latest recorded change, a newer one recorded after this point stays pending
+            Boolean readData = pendingChanges.remove(workerNode);
+            if (readData == null) {
+                continue;
+            }
+
+            if (!readData) {
+                changed |= endpoints.remove(workerNode) != null;
+                continue;
+            }
+
+            try {
+                byte[] addressBytes = zooKeeper.getData(CHILD_PREFIX + workerNode, false, null);
+                endpoints.put(workerNode, new EndpointMetadata(addressBytes));
+                changed = true;
+            } catch (KeeperException.NoNodeException e) {
+                // the znode is already gone again, its NodeDeleted event is right behind this one
+            } catch (KeeperException e) {
+                // put the change back for the retry, unless a newer one was recorded in the meantime
+                pendingChanges.putIfAbsent(workerNode, readData);
+                if (changed) {
+                    publish();
+                }
+                throw e;
+            }
+        }
+
+        if (changed) {
+            publish();
+        }
+    }
+
+    // runs the task on the zookeeper event thread, without an executor
+    private void run(String description, ClusterEventExecutor.ClusterTask task) {
+        try {
+            task.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // returns the name of a direct child of the registry znode, or null for the registry znode itself
+    // and for anything deeper in the subtree
+    private static String childName(String path) {
+        if (path == null || !path.startsWith(CHILD_PREFIX)) {
+            return null;
+        }
+        String name = path.substring(CHILD_PREFIX.length());
+        return name.indexOf('/') < 0 ? name : null;
+    }
+}
@@ -3,34 +3,100 @@ package cluster.management;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class ServiceRegistryIntegrated implements Watcher {
-        private static final String REGISTRY_ZNODE = "/service_registry";
-        private final ZooKeeper zooKeeper;
+public class ServiceRegistryIntegrated implements Watcher, RecoverableComponent {
+        static final String REGISTRY_ZNODE = "/service_registry";
 
-        private String currentZnode = null;
+        // maximum number of getData operations we pack into a single multi-read request,
+        // so that the response stays well below the default jute.maxbuffer (1 MB)
+        private static final int MAX_READS_PER_BATCH = 500;
 
-        private List<String> allServiceAddresses = null;
+        // replaced by rebind() when the session expired and was recovered
+        private volatile ZooKeeper zooKeeper;
+        // when not null, our watch events come through its per path dispatch instead of an explicit watcher,
+        // so the components sharing the session share the server side watches too
+        private final ZooKeeperSessionManager session;
+
+        // when true, updateAddresses() reads all the children in batched multi-read requests
+        // instead of doing an exists() and a getData() round trip per child
+        private volatile boolean batchedRefresh = true;
+
+        private volatile String currentZnode = null;
+        // what we registered with, so the registration can be re-created in a new session
+        private volatile byte[] registeredData = null;
+
+        // the latest published view of the registry, replaced as a whole on every refresh
+        // so getAllServiceAddresses() never has to wait for a refresh in progress
+        private volatile RegistrySnapshot snapshot = RegistrySnapshot.EMPTY;
+
+        // incremental cache fed by a persistent recursive watch, see registerForIncrementalUpdates()
+        private volatile ServiceRegistryCache registryCache = null;
+
+        // when set, change events only trigger() a refresh and bursts of events collapse into one refresh,
+        // see enableCoalescing()
+        private volatile CoalescingRefresher refresher = null;
+
+        // when not null, the zookeeper calls triggered by our watches run on its REGISTRY lane
+        // instead of the zookeeper event thread
+        private final ClusterEventExecutor eventExecutor;
+        // the coalescing flags of the tasks we submit with ClusterEventExecutor.submitRetrying()
+        private final AtomicBoolean refreshQueued = new AtomicBoolean(false);
+        private final AtomicBoolean znodeCreationQueued = new AtomicBoolean(false);
+        private final AtomicBoolean cacheStartQueued = new AtomicBoolean(false);
+
+        // components fed by the registry, like the LoadBalancer
+        private final List<OnRegistryUpdateCallback> registryListeners = new CopyOnWriteArrayList<>();
+
+        // when set, the live snapshots are also written to disk, see useSnapshotStore()
+        private volatile RegistrySnapshotStore snapshotStore = null;
+
+        // the endpoints as zookeeper sees them, including the suspected ones the snapshot leaves out
+        private volatile Map<String, EndpointMetadata> members = Collections.emptyMap();
+
+        // endpoints a failure detector (the HeartbeatMonitor) believes dead before zookeeper does,
+        // they are kept out of the published snapshots until cleared or gone from zookeeper
+        private final Set<String> suspectedEndpoints = ConcurrentHashMap.newKeySet();
 
     public ServiceRegistryIntegrated(ZooKeeper zooKeeper) {
+        this(zooKeeper, null);
+    }
+
+    public ServiceRegistryIntegrated(ZooKeeper zooKeeper, ClusterEventExecutor eventExecutor) {
+        this(zooKeeper, null, eventExecutor);
+    }
+
+    public ServiceRegistryIntegrated(ZooKeeperSessionManager session, ClusterEventExecutor eventExecutor) {
+        this(session.getZooKeeper(), session, eventExecutor);
+    }
+
+    private ServiceRegistryIntegrated(ZooKeeper zooKeeper, ZooKeeperSessionManager session, ClusterEventExecutor eventExecutor) {
         this.zooKeeper = zooKeeper;
+        this.session = session;
+        this.eventExecutor = eventExecutor;
 
         // create REGISTRY_ZNODE as a PERSISTENT node
-        createServiceRegistryZnode();
+        if (eventExecutor != null) {
+            // don't keep the caller waiting for the connection, registerToCluster() copes with a missing parent
+            eventExecutor.submitRetrying(ClusterEventExecutor.Lane.REGISTRY, znodeCreationQueued,
+                    "registry znode creation", this::createServiceRegistryZnode);
+        } else {
+            createServiceRegistryZnode();
+        }
     }
 
     public void createServiceRegistryZnode(){
-        // check if REGISTRY_ZNODE is existed in the zookeeper
-        // if not, we create it as a PERSISTENT node
-
-        // Race condition may happen here but zookeeper will handle it. How? check your notes.
+        // we create REGISTRY_ZNODE as a PERSISTENT node if it doesn't exist yet.
+        // No exists() first: a single create() is one round trip, and losing the race to another node
+        // just comes back as NodeExists
         try {
-            if(zooKeeper.exists(REGISTRY_ZNODE,false) == null){
-                zooKeeper.create(REGISTRY_ZNODE,new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-            }
+            zooKeeper.create(REGISTRY_ZNODE,new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // created already
         } catch (KeeperException e) {
             e.printStackTrace();
         } catch (InterruptedException e) {
@@ -38,16 +104,136 @@ public class ServiceRegistryIntegrated implements Watcher {
         }
     }
 
+    // registers a plain address, the legacy form of the registry data
     public void registerToCluster(String metaData) throws InterruptedException, KeeperException {
+        registerToCluster(metaData.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // registers an EndpointMetadata payload, see EndpointMetadata.encode()
+    public void registerToCluster(byte[] metaData) throws InterruptedException, KeeperException {
+        if (currentZnode != null) {
+            // a worker is told it is a worker again every time its predecessor leaves
+            System.out.println("Already registered with the service registry as " + currentZnode);
+            return;
+        }
 
         // by making it EPHEMERAL_SEQUENTIAL,
         // we simply avoid any name collisions but the actual sequence number is not important for us at this time
-        this.currentZnode = zooKeeper.create(REGISTRY_ZNODE + "/n_" ,metaData.getBytes(),
-                ZooDefs.Ids.OPEN_ACL_UNSAFE,CreateMode.EPHEMERAL_SEQUENTIAL);
+        try {
+            this.currentZnode = zooKeeper.create(REGISTRY_ZNODE + "/n_" ,metaData,
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE,CreateMode.EPHEMERAL_SEQUENTIAL);
+        } catch (KeeperException.NoNodeException e) {
+            // the registry znode was not created yet: we create it and join in one transaction
+            this.currentZnode = createRegistryAndJoin(metaData);
+        }
 
+        this.registeredData = metaData;
         System.out.println("Registered with the service registry as "+this.currentZnode);
     }
 
+    // one round trip instead of an exists() and two create(), and we never leave the parent behind without joining
+    private String createRegistryAndJoin(byte[] metaData) throws InterruptedException, KeeperException {
+        try {
+            List<OpResult> results = zooKeeper.multi(Arrays.asList(
+                    Op.create(REGISTRY_ZNODE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+                    Op.create(REGISTRY_ZNODE + "/n_", metaData, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL)));
+            return ((OpResult.CreateResult) results.get(1)).getPath();
+        } catch (KeeperException.NodeExistsException e) {
+            // another node created the parent in between, nothing of ours was applied
+            return zooKeeper.create(REGISTRY_ZNODE + "/n_", metaData,
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        }
+    }
+
+    public boolean isRegistered() {
+        return currentZnode != null;
+    }
+
+    // our registration, if we had one, is re-created with the same data under a new sequence number
+    @Override
+    public List<Op> recreateOperations() {
+        byte[] data = registeredData;
+        if (currentZnode == null || data == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(Op.create(REGISTRY_ZNODE + "/n_", data,
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+    }
+
+    // After a session expiry: take the new session and registration, then read the registry again the way we
+    // followed it before, the watches of the expired session are gone
+    @Override
+    public void rebind(ZooKeeper zooKeeper, List<OpResult> results) {
+        ServiceRegistryCache previousCache;
+        synchronized (this) {
+            this.zooKeeper = zooKeeper;
+            if (!results.isEmpty()) {
+                this.currentZnode = ((OpResult.CreateResult) results.get(0)).getPath();
+                System.out.println("Registered again with the service registry as " + currentZnode);
+            }
+            previousCache = registryCache;
+            registryCache = null;
+        }
+        boolean incremental = previousCache != null;
+        if (incremental && session != null) {
+            // the dispatch table outlives the session, the old cache must not get the new session's events
+            session.removeSubtreeWatcher(REGISTRY_ZNODE, previousCache);
+        }
+
+        if (incremental) {
+            registerForIncrementalUpdates();
+        } else if (isLiveSynced()) {
+            registerForUpdates();
+        }
+    }
+
+    public void setBatchedRefresh(boolean batchedRefresh) {
+        this.batchedRefresh = batchedRefresh;
+    }
+
+    public boolean isBatchedRefresh() {
+        return batchedRefresh;
+    }
+
+    // Collapse the change events that arrive within windowMillis of each other into a single refresh,
+    // a refresh is never delayed more than maxDelayMillis after the first event it covers.
+    // The refresh then runs on the refresher's own thread instead of the zookeeper event thread.
+    public synchronized void enableCoalescing(long windowMillis, long maxDelayMillis) {
+        if (refresher != null) {
+            refresher.shutdown();
+        }
+        refresher = new CoalescingRefresher("service-registry", this::refresh, windowMillis, maxDelayMillis);
+    }
+
+    // events received vs refreshes executed, null when coalescing is not enabled
+    public CoalescingRefresher getRefresher() {
+        return refresher;
+    }
+
+    public void close() {
+        CoalescingRefresher currentRefresher = refresher;
+        if (currentRefresher != null) {
+            currentRefresher.shutdown();
+        }
+        if (session != null) {
+            session.removePathWatcher(REGISTRY_ZNODE, this);
+        }
+    }
+
+    // the task run by the refresher: republish the cache's view when the incremental cache is running,
+    // otherwise re-read the whole registry
+    private void refresh() throws InterruptedException, KeeperException {
+        ServiceRegistryCache currentCache = registryCache;
+        if (currentCache != null && currentCache.isStarted()) {
+            Map<String, EndpointMetadata> endpoints = currentCache.copyEndpoints();
+            synchronized (this) {
+                publishSnapshot(endpoints);
+            }
+        } else {
+            updateAddresses();
+        }
+    }
+
     // joining and leaving the cluster
     // So let's create the synchronized updateAddresses() method
     // which will be called potentially by multiple threads.
@@ -55,10 +241,145 @@ public class ServiceRegistryIntegrated implements Watcher {
 
         // get all nodes from zookeeper
         // and also register for any changes in that list to get notifications
-        List<String> workerNodes = zooKeeper.getChildren(REGISTRY_ZNODE,this);
+        List<String> workerNodes;
+        if (session != null) {
+            // the watch is set with the default watcher, the session dispatches its event to us.
+            // Only registered once we follow the registry, from then on we also get the connection events
+            session.addPathWatcher(REGISTRY_ZNODE, this);
+            workerNodes = zooKeeper.getChildren(REGISTRY_ZNODE, true);
+        } else {
+            workerNodes = zooKeeper.getChildren(REGISTRY_ZNODE,this);
+        }
+
+        publishSnapshot(readEndpoints(workerNodes));
+    }
+
+    // The zookeeper side of a refresh on its own: lists and reads the registry the way updateAddresses() does,
+    // without setting a watch or publishing (and printing) anything. For the benchmarks
+    public Map<String, EndpointMetadata> readRegistry() throws InterruptedException, KeeperException {
+        return readEndpoints(zooKeeper.getChildren(REGISTRY_ZNODE, false));
+    }
+
+    private Map<String, EndpointMetadata> readEndpoints(List<String> workerNodes) throws InterruptedException, KeeperException {
+        return batchedRefresh ? readEndpointsBatched(workerNodes) : readEndpointsOneByOne(workerNodes);
+    }
+
+    // we wrap the endpoints in an immutable snapshot and publish it with a single volatile write,
+    // readers see either the previous snapshot or this one, never a half updated list.
+    // Only called while holding the monitor so the version numbers are strictly increasing.
+    // The endpoints may be the ServiceRegistryCache's live map, which changes under the cache's monitor,
+    // so we keep a copy of our own as the members and build the snapshot from it
+    private void publishSnapshot(Map<String, EndpointMetadata> endpoints) {
+        Map<String, EndpointMetadata> currentMembers = Collections.unmodifiableMap(new LinkedHashMap<>(endpoints));
+        this.members = currentMembers;
+        // a suspicion ends when zookeeper removes the znode
+        suspectedEndpoints.retainAll(currentMembers.keySet());
+
+        // keep the metadata objects of the previous snapshot for the znodes whose data didn't change,
+        // so their lazily decoded Strings are reused instead of being decoded again on every refresh
+        Map<String, EndpointMetadata> previousEndpoints = snapshot.getMetadata();
+        Map<String, EndpointMetadata> reusedEndpoints = new LinkedHashMap<>(currentMembers.size() * 2);
+        for (Map.Entry<String, EndpointMetadata> endpoint : currentMembers.entrySet()) {
+            if (suspectedEndpoints.contains(endpoint.getKey())) {
+                continue;
+            }
+            EndpointMetadata previous = previousEndpoints.get(endpoint.getKey());
+            reusedEndpoints.put(endpoint.getKey(), endpoint.getValue().samePayload(previous) ? previous : endpoint.getValue());
+        }
+
+        RegistrySnapshot newSnapshot = new RegistrySnapshot(snapshot.getVersion() + 1, System.currentTimeMillis(), reusedEndpoints);
+        this.snapshot = newSnapshot;
+        System.out.println("The cluster addresses are : " + newSnapshot.getAddresses());
 
-        // a temporary list to store all the cluster's addresses
-        ArrayList<String> addresses = new ArrayList<>(workerNodes.size());
+        // the write and its fsync happen on the store's writer thread, not under our monitor
+        RegistrySnapshotStore currentStore = snapshotStore;
+        if (currentStore != null) {
+            currentStore.saveInBackground(newSnapshot);
+        }
+
+        for (OnRegistryUpdateCallback registryListener : registryListeners) {
+            registryListener.onRegistryUpdated(newSnapshot);
+        }
+    }
+
+    // Ejects the endpoint from the routing view right away, without waiting for zookeeper to expire its session.
+    // Ignored if the endpoint is not (or no longer) registered
+    public synchronized void suspectEndpoint(String name) {
+        if (!isLiveSynced() || !members.containsKey(name) || !suspectedEndpoints.add(name)) {
+            return;
+        }
+        publishSnapshot(members);
+    }
+
+    // the endpoint answers again, put it back in the routing view
+    public synchronized void clearSuspicion(String name) {
+        if (!suspectedEndpoints.remove(name) || !isLiveSynced()) {
+            return;
+        }
+        publishSnapshot(members);
+    }
+
+    public Set<String> getSuspectedEndpoints() {
+        return Collections.unmodifiableSet(suspectedEndpoints);
+    }
+
+    // every registered endpoint, the suspected ones included, as of the latest live snapshot
+    public Map<String, EndpointMetadata> getMembers() {
+        return members;
+    }
+
+    // Persist the latest live snapshot to the store from now on, in the background, and if the registry was not read yet,
+    // serve the snapshot left on disk by the previous run as a provisional view until the first live read.
+    // Returns true if a provisional snapshot was loaded.
+    public synchronized boolean useSnapshotStore(RegistrySnapshotStore snapshotStore) {
+        this.snapshotStore = snapshotStore;
+        if (snapshot.getVersion() > 0) {
+            return false;
+        }
+
+        RegistrySnapshot storedSnapshot = snapshotStore.load();
+        return storedSnapshot != null && publishProvisionalSnapshot(storedSnapshot);
+    }
+
+    // Publishes a snapshot we didn't read from zookeeper ourselves (from disk, or a leader checkpoint)
+    // so the listeners can work with it until the first live read replaces it.
+    // Ignored (returns false) once we are live synced, a live snapshot is always more trustworthy.
+    public synchronized boolean publishProvisionalSnapshot(RegistrySnapshot provisionalSnapshot) {
+        if (isLiveSynced()) {
+            return false;
+        }
+
+        this.snapshot = provisionalSnapshot;
+        System.out.println("Loaded provisional cluster addresses : " + provisionalSnapshot.getAddresses());
+        for (OnRegistryUpdateCallback registryListener : registryListeners) {
+            registryListener.onRegistryUpdated(provisionalSnapshot);
+        }
+        return true;
+    }
+
+    // false while we only have the provisional snapshot from disk (or nothing at all)
+    public boolean isLiveSynced() {
+        RegistrySnapshot currentSnapshot = snapshot;
+        return currentSnapshot.getVersion() > 0 && !currentSnapshot.isProvisional();
+    }
+
+    // the listener gets the current snapshot right away if the registry was already read
+    public synchronized void addRegistryListener(OnRegistryUpdateCallback registryListener) {
+        registryListeners.add(registryListener);
+        if (snapshot.getVersion() > 0) {
+            registryListener.onRegistryUpdated(snapshot);
+        }
+    }
+
+    public void removeRegistryListener(OnRegistryUpdateCallback registryListener) {
+        registryListeners.remove(registryListener);
+    }
+
+    // 2N serialized round trips: an exists() and a getData() for every child
+    private Map<String, EndpointMetadata> readEndpointsOneByOne(List<String> workerNodes) throws InterruptedException, KeeperException {
+
+        // a temporary map to store all the cluster's endpoints keyed by their znode name
+        Map<String, EndpointMetadata> endpoints = new LinkedHashMap<>(workerNodes.size() * 2);
 
         for (String workerNode: workerNodes) {
 
@@ -78,22 +399,59 @@ public class ServiceRegistryIntegrated implements Watcher {
 
             // if znode does exist
             byte[] addressBytes = zooKeeper.getData(nodeFullPath,false,stat);
-            String address = new String(addressBytes);
-            addresses.add(address);
+            // decoded lazily, we don't create any String here
+            endpoints.put(workerNode, new EndpointMetadata(addressBytes));
         }
+        return endpoints;
+    }
+
+    // ceil(N / MAX_READS_PER_BATCH) round trips: the getData operations are pipelined inside read-only multi() requests.
+    // We don't need the exists() call anymore, a child that disappeared after getChildren()
+    // simply comes back as an ErrorResult (NONODE) and we skip it.
+    // Unlike the async getData() callbacks, this is safe to call from the zookeeper event thread
+    // because we never wait for a callback that has to be delivered by the thread we are blocking.
+    Map<String, EndpointMetadata> readEndpointsBatched(List<String> workerNodes) throws InterruptedException, KeeperException {
+        Map<String, EndpointMetadata> endpoints = new LinkedHashMap<>(workerNodes.size() * 2);
+
+        for (int from = 0; from < workerNodes.size(); from += MAX_READS_PER_BATCH) {
+            int to = Math.min(from + MAX_READS_PER_BATCH, workerNodes.size());
+
+            List<Op> reads = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                reads.add(Op.getData(REGISTRY_ZNODE + "/" + workerNodes.get(i)));
+            }
 
-        // we will wrap that list with an unmodifiable
-        // list object and store it in the all service addresses member variable
-        // because the method is synchronized
-        // this entire update will happen atomically
-        this.allServiceAddresses = Collections.unmodifiableList(addresses);
-        System.out.println("The cluster addresses are : " + this.allServiceAddresses);
+            // results come back in the same order as the operations
+            List<OpResult> results = zooKeeper.multi(reads);
+            for (int i = from; i < to; i++) {
+                OpResult result = results.get(i - from);
+                if (result instanceof OpResult.GetDataResult) {
+                    endpoints.put(workerNodes.get(i), new EndpointMetadata(((OpResult.GetDataResult) result).getData()));
+                }
+            }
+        }
+        return endpoints;
     }
 
     // we registered for updates about any changes in the cluster.
     // So let's handle those changes events inside the process() method.
     @Override
     public void process(WatchedEvent watchedEvent) {
+        CoalescingRefresher currentRefresher = refresher;
+        if (currentRefresher != null) {
+            // the refresh re-registers our watch once the burst of events is over
+            currentRefresher.trigger();
+            return;
+        }
+
+        if (eventExecutor != null) {
+            // only one refresh needs to wait in the queue, it reads the latest state when it runs.
+            // It also re-sets our watch, so a refresh that was dropped or failed would be the last one
+            eventExecutor.submitRetrying(ClusterEventExecutor.Lane.REGISTRY, refreshQueued,
+                    "registry refresh", this::updateAddresses);
+            return;
+        }
+
         try {
             // Again this will update our all service addresses variable and reregister us for future updates.
             updateAddresses();
@@ -106,6 +464,13 @@ public class ServiceRegistryIntegrated implements Watcher {
 
     // The one thing we're missing right now is the initial call to updateAddresses()
     public void registerForUpdates(){
+        if (eventExecutor != null) {
+            // the first read must not be dropped, nothing would trigger another one
+            eventExecutor.submitRetrying(ClusterEventExecutor.Lane.REGISTRY, refreshQueued,
+                    "registry refresh", this::updateAddresses);
+            return;
+        }
+
         try {
             updateAddresses();
         } catch (InterruptedException e) {
@@ -113,28 +478,112 @@ public class ServiceRegistryIntegrated implements Watcher {
         }
     }
 
+    // Instead of re-listing and re-reading the whole registry on every change,
+    // keep an in-memory map that is patched with the per-child events of a persistent recursive watch.
+    // Every membership change then costs at most one getData() instead of a full refresh.
+    public void registerForIncrementalUpdates(){
+        ServiceRegistryCache currentCache;
+        synchronized (this) {
+            if (registryCache == null) {
+                registryCache = session != null
+                        ? new ServiceRegistryCache(session, this, eventExecutor)
+                        : new ServiceRegistryCache(zooKeeper, this, eventExecutor);
+            }
+            currentCache = registryCache;
+        }
+
+        if (eventExecutor != null) {
+            // the initial full read can take a while on a big cluster, don't do it on the caller's thread
+            eventExecutor.submitRetrying(ClusterEventExecutor.Lane.REGISTRY, cacheStartQueued,
+                    "registry cache start", currentCache::start);
+            return;
+        }
+
+        try {
+            currentCache.start();
+        } catch (InterruptedException e) {
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // called by the ServiceRegistryCache, while holding its monitor, every time its view of the registry changes
+    void onRegistryCacheChanged(Map<String, EndpointMetadata> endpoints) {
+        CoalescingRefresher currentRefresher = refresher;
+        if (currentRefresher != null) {
+            // the refresher copies the cache's view once the burst is over
+            currentRefresher.trigger();
+            return;
+        }
+
+        synchronized (this) {
+            publishSnapshot(endpoints);
+        }
+    }
+
     // we may also want to get the list of the most up-to-date addresses.
-    // So let's create the synchronized get all service addresses method which will give us those cached results.
-    public synchronized List<String> getAllServiceAddresses() throws InterruptedException, KeeperException {
+    // This is not synchronized: it returns the addresses of the latest published snapshot,
+    // so request-path callers never block behind a zookeeper refresh.
+    public List<String> getAllServiceAddresses() throws InterruptedException, KeeperException {
+        RegistrySnapshot currentSnapshot = this.snapshot;
 
-        // If the allServiceAddresses is null then the caller simply forgot to call registerForUpdates()
+        // If nothing was published yet then the caller simply forgot to call registerForUpdates()
         // so to make it safe we update it for them
-        if(this.allServiceAddresses == null){
+        if(currentSnapshot.getVersion() == 0){
             updateAddresses();
+            currentSnapshot = this.snapshot;
         }
 
-        return this.allServiceAddresses;
+        return currentSnapshot.getAddresses();
+    }
+
+    // the latest published snapshot, callers can check getVersion() and getAgeMillis() to see how stale it is
+    public RegistrySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public long getSnapshotVersion() {
+        return snapshot.getVersion();
+    }
+
+    public long getSnapshotLastUpdatedMillis() {
+        return snapshot.getLastUpdatedMillis();
     }
 
     // The last feature we need to add is the ability to unregister from the cluster.
     // This is very useful if the node is gracefully shut down itself or if the worker suddenly becomes a leader
     // so, it would want to unregister to avoid communicating with itself.
+    // One round trip: we delete our znode right away instead of checking that it exists first,
+    // a znode that is already gone simply comes back as NoNode.
     public void unregisterFromCluster() throws InterruptedException, KeeperException {
+        String registeredZnode = currentZnode;
+        currentZnode = null;
+        registeredData = null;
+        if (registeredZnode == null) {
+            return;
+        }
+        try {
+            zooKeeper.delete(registeredZnode, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // gone already
+        }
+    }
 
-        // first check that we indeed have
-        // an existent znode registered with the service registry
-        if(currentZnode!= null && zooKeeper.exists(currentZnode,false) != null){
-            zooKeeper.delete(currentZnode,-1);
+    // Like unregisterFromCluster() but the caller doesn't wait for the round trip, for a worker becoming the leader.
+    // The requests of a session are applied in order, so whatever the caller sends next (e.g. the leader's first read
+    // of the registry) already sees us gone
+    public void unregisterFromClusterAsync() {
+        String registeredZnode = currentZnode;
+        currentZnode = null;
+        registeredData = null;
+        if (registeredZnode == null) {
+            return;
         }
+        zooKeeper.delete(registeredZnode, -1, (resultCode, path, context) -> {
+            KeeperException.Code code = KeeperException.Code.get(resultCode);
+            if (code != KeeperException.Code.OK && code != KeeperException.Code.NONODE) {
+                System.out.println("Could not unregister " + path + " from the service registry : " + code);
+            }
+        }, null);
     }
 }
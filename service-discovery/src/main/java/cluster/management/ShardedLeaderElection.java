@@ -0,0 +1,470 @@
+package cluster.management;
+
+import org.apache.zookeeper.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// K independent leader elections, one per shard of the work, so the coordination load is spread over several leaders
+// instead of all of it landing on a single one.
+//
+// Every node volunteers in every shard election, /election_shards/shard-<i>/c_<sequence>, and follows each of them like
+// LeaderElectionIntegrated does: the first candidate leads, the others only watch their predecessor.
+// Every node also has a member znode under /election_shards/members holding the number of shards it leads,
+// so all of them know how many nodes are alive and which ones have room for more shards.
+//
+// Balancing: with floor = min(maxShardsPerNode, K / live nodes) and quota = min(maxShardsPerNode, ceil(K / live nodes)),
+// a node leads at most quota shards, and only more than floor while no other member is below floor.
+// That spreads the shards with at most one shard of difference between two nodes.
+//  - a node that comes first in a shard it may not take passes the shard on, as long as another member could take it:
+//    it moves its candidate znode to the back of the line (delete + create in one multi()),
+//    which wakes up the next candidate only
+//  - when a node joins the quota drops, and the nodes above it pass their extra shards on the same way.
+//    A node creates its member znode only after its candidate znodes, so a shard passed on for it always reaches it
+//  - when a node fails its shards go to the next candidates, the quota of the others grows to make room
+// If no member can take a shard (only possible when maxShardsPerNode * nodes < K) the first candidate keeps its place
+// without leading, until a member leaves or sheds a shard.
+//
+// The shards live under their own root rather than under /election, where LeaderElectionIntegrated's recursive
+// watch would take them for candidates.
+//
+// When the session expires our candidate znodes go with it and the next candidates take our shards over,
+// so we revoke every shard we lead as soon as we learn about the expiry. A disconnection alone revokes nothing,
+// the session may survive it. Added to a ZooKeeperSessionManager as a RecoverableComponent, we volunteer again
+// in the new session, at the back of every line, and get shards again from the next rebalance.
+public class ShardedLeaderElection implements Watcher, RecoverableComponent {
+    private static final String SHARDS_ROOT = "/election_shards";
+    private static final String MEMBERS_ZNODE = SHARDS_ROOT + "/members";
+    private static final String SHARD_PREFIX = SHARDS_ROOT + "/shard-";
+
+    // replaced by rebind() when the session expired and was recovered
+    private volatile ZooKeeper zooKeeper;
+    private final OnShardElectionCallback onShardElectionCallback;
+    private final int shardCount;
+    private final int maxShardsPerNode;
+
+    // when not null, the re-elections (and the callbacks they invoke) run on its ELECTION lane
+    private final ClusterEventExecutor eventExecutor;
+    private final AtomicBoolean rebalanceQueued = new AtomicBoolean(false);
+
+    // one index per shard plus the members, all fed by a single persistent recursive watch on SHARDS_ROOT
+    private final CandidateIndex[] candidateIndexes;
+    // member znode name -> number of shards it leads, read again after every change of a member znode
+    private volatile Map<String, Integer> memberLoads = Collections.emptyMap();
+    private volatile boolean membersStale = true;
+    private final Watcher shardWatcher = this::onShardEvent;
+    private volatile boolean shardWatchAdded = false;
+    private volatile boolean indexesStale = true;
+
+    private volatile String memberZnodeName;
+    // guarded by this
+    private int publishedLoad = 0;
+    private final String[] candidateZnodeNames;
+    // the predecessor we have an exists() watch on, per shard, so we don't set it again.
+    // Cleared by the watch itself, which may fire before the recursive watch removed the predecessor from the index
+    private final AtomicReferenceArray<String> watchedPredecessors;
+    private final TreeSet<Integer> leadShards = new TreeSet<>();
+    private boolean workerAnnounced = false;
+
+    private final AtomicLong assignments = new AtomicLong();
+    private final AtomicLong revocations = new AtomicLong();
+    private final AtomicLong passes = new AtomicLong();
+
+    public ShardedLeaderElection(ZooKeeper zooKeeper, OnShardElectionCallback onShardElectionCallback,
+                                 int shardCount, int maxShardsPerNode) {
+        this(zooKeeper, onShardElectionCallback, shardCount, maxShardsPerNode, null);
+    }
+
+    public ShardedLeaderElection(ZooKeeper zooKeeper, OnShardElectionCallback onShardElectionCallback,
+                                 int shardCount, int maxShardsPerNode, ClusterEventExecutor eventExecutor) {
+        if (shardCount < 1 || maxShardsPerNode < 1) {
+            throw new IllegalArgumentException("expected at least one shard and one shard per node");
+        }
+        this.zooKeeper = zooKeeper;
+        this.onShardElectionCallback = onShardElectionCallback;
+        this.shardCount = shardCount;
+        this.maxShardsPerNode = maxShardsPerNode;
+        this.eventExecutor = eventExecutor;
+        this.candidateIndexes = new CandidateIndex[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            candidateIndexes[shard] = new CandidateIndex();
+        }
+        this.candidateZnodeNames = new String[shardCount];
+        this.watchedPredecessors = new AtomicReferenceArray<>(shardCount);
+    }
+
+    public synchronized void volunteerForLeadership() throws KeeperException, InterruptedException {
+        createPersistent(SHARDS_ROOT);
+        createPersistent(MEMBERS_ZNODE);
+        for (int shard = 0; shard < shardCount; shard++) {
+            createPersistent(SHARD_PREFIX + shard);
+        }
+
+        for (int shard = 0; shard < shardCount; shard++) {
+            String candidatePath = zooKeeper.create(SHARD_PREFIX + shard + "/c_", new byte[]{},
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+            candidateZnodeNames[shard] = childName(candidatePath);
+            candidateIndexes[shard].add(candidateZnodeNames[shard]);
+        }
+
+        // the others start passing shards on to us once they see this one, we are in every line already
+        String memberPath = zooKeeper.create(MEMBERS_ZNODE + "/m_", encodeLoad(0),
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        memberZnodeName = childName(memberPath);
+        System.out.println("Member " + memberPath + " volunteered for " + shardCount + " shards");
+    }
+
+    // Runs every shard's election again: sheds the shards above our quota, then leads or follows in the others.
+    public synchronized void reelectLeader() throws KeeperException, InterruptedException {
+        if (memberZnodeName == null) {
+            return;
+        }
+        if (indexesStale) {
+            syncIndexes();
+        }
+        if (membersStale) {
+            readMemberLoads();
+        }
+
+        int quota = getQuota();
+        int floor = getFloor();
+        boolean memberBelowFloor = hasMemberBelow(floor);
+        while (leadShards.size() > quota || (leadShards.size() > floor && memberBelowFloor)) {
+            // a node joined, the others take over our extra shards
+            int shard = leadShards.last();
+            revoke(shard);
+            passOn(shard);
+            memberBelowFloor = false;
+        }
+
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (!leadShards.contains(shard)) {
+                evaluateShard(shard, quota, floor);
+            }
+        }
+        publishLoad();
+
+        if (leadShards.isEmpty() && !workerAnnounced) {
+            workerAnnounced = true;
+            onShardElectionCallback.onWorker();
+        }
+    }
+
+    private void evaluateShard(int shard, int quota, int floor) throws KeeperException, InterruptedException {
+        CandidateIndex candidateIndex = candidateIndexes[shard];
+        boolean passed = false;
+        while (true) {
+            String predecessorZnodeName = candidateIndex.predecessorOf(candidateZnodeNames[shard]);
+            if (predecessorZnodeName == null) {
+                int lead = leadShards.size();
+                boolean memberBelowFloor = hasMemberBelow(floor);
+                if (lead < floor || (lead < quota && !memberBelowFloor)) {
+                    assign(shard);
+                    return;
+                }
+                if (passed || !(memberBelowFloor || hasMemberBelow(quota))) {
+                    // we keep our place without leading, a change of the members' loads brings us back here
+                    return;
+                }
+                passOn(shard);
+                passed = true;
+                continue;
+            }
+
+            if (predecessorZnodeName.equals(watchedPredecessors.get(shard))) {
+                return;
+            }
+            if (zooKeeper.exists(SHARD_PREFIX + shard + "/" + predecessorZnodeName, this) != null) {
+                watchedPredecessors.set(shard, predecessorZnodeName);
+                return;
+            }
+            // the index hasn't seen this deletion yet
+            candidateIndex.remove(predecessorZnodeName);
+        }
+    }
+
+    private void assign(int shard) {
+        leadShards.add(shard);
+        assignments.incrementAndGet();
+        System.out.println("Leading shard " + shard);
+        if (leadShards.size() == 1) {
+            workerAnnounced = false;
+            onShardElectionCallback.onElectedToBeLeader();
+        }
+        onShardElectionCallback.onShardAssigned(shard);
+        onShardElectionCallback.onLeadShardsChanged(getLeadShards());
+    }
+
+    private void revoke(int shard) {
+        // stop acting as the shard's leader before anybody else can take it
+        leadShards.remove(shard);
+        revocations.incrementAndGet();
+        System.out.println("Giving up shard " + shard);
+        onShardElectionCallback.onShardRevoked(shard);
+        onShardElectionCallback.onLeadShardsChanged(getLeadShards());
+        if (leadShards.isEmpty()) {
+            workerAnnounced = true;
+            onShardElectionCallback.onWorker();
+        }
+    }
+
+    // moves our candidate znode to the back of the shard's line, only the next candidate is notified
+    private void passOn(int shard) throws KeeperException, InterruptedException {
+        String shardPath = SHARD_PREFIX + shard;
+        List<OpResult> results = zooKeeper.multi(Arrays.asList(
+                Op.delete(shardPath + "/" + candidateZnodeNames[shard], -1),
+                Op.create(shardPath + "/c_", new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL)));
+
+        candidateIndexes[shard].remove(candidateZnodeNames[shard]);
+        candidateZnodeNames[shard] = childName(((OpResult.CreateResult) results.get(1)).getPath());
+        candidateIndexes[shard].add(candidateZnodeNames[shard]);
+        watchedPredecessors.set(shard, null);
+        passes.incrementAndGet();
+    }
+
+    // our candidate znodes are gone, whoever comes next in their lines may lead our shards already
+    private synchronized void revokeAll() {
+        while (!leadShards.isEmpty()) {
+            revoke(leadShards.last());
+        }
+        // so is our member znode, a new one starts at 0
+        publishedLoad = 0;
+    }
+
+    // whether another member leads fewer shards than the given number
+    private boolean hasMemberBelow(int shards) {
+        for (Map.Entry<String, Integer> member : memberLoads.entrySet()) {
+            if (!member.getKey().equals(memberZnodeName) && member.getValue() < shards) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // one setData() per reelectLeader() at most, whatever the number of shards we took or gave up
+    private void publishLoad() throws KeeperException, InterruptedException {
+        if (leadShards.size() != publishedLoad) {
+            zooKeeper.setData(MEMBERS_ZNODE + "/" + memberZnodeName, encodeLoad(leadShards.size()), -1);
+            publishedLoad = leadShards.size();
+        }
+    }
+
+    // a getChildren() and a single read-only multi() for all the loads
+    private void readMemberLoads() throws KeeperException, InterruptedException {
+        membersStale = false;
+        List<String> members = zooKeeper.getChildren(MEMBERS_ZNODE, false);
+        List<Op> reads = new ArrayList<>(members.size());
+        for (String member : members) {
+            reads.add(Op.getData(MEMBERS_ZNODE + "/" + member));
+        }
+
+        Map<String, Integer> loads = new HashMap<>();
+        List<OpResult> results = reads.isEmpty() ? Collections.emptyList() : zooKeeper.multi(reads);
+        for (int i = 0; i < results.size(); i++) {
+            OpResult result = results.get(i);
+            // a member that left after getChildren() comes back as an ErrorResult
+            if (result instanceof OpResult.GetDataResult) {
+                loads.put(members.get(i), ByteBuffer.wrap(((OpResult.GetDataResult) result).getData()).getInt());
+            }
+        }
+        memberLoads = loads;
+    }
+
+    private static byte[] encodeLoad(int load) {
+        return ByteBuffer.allocate(4).putInt(load).array();
+    }
+
+    // how many shards we may lead with the current number of live nodes
+    public int getQuota() {
+        int liveNodes = Math.max(1, memberLoads.size());
+        return Math.min(maxShardsPerNode, (shardCount + liveNodes - 1) / liveNodes);
+    }
+
+    // how many shards every node should lead at least, when there are enough shards and room for them
+    public int getFloor() {
+        int liveNodes = Math.max(1, memberLoads.size());
+        return Math.min(maxShardsPerNode, shardCount / liveNodes);
+    }
+
+    public synchronized Set<Integer> getLeadShards() {
+        return Collections.unmodifiableSet(new TreeSet<>(leadShards));
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public int getLiveNodes() {
+        return memberLoads.size();
+    }
+
+    public long getAssignments() {
+        return assignments.get();
+    }
+
+    public long getRevocations() {
+        return revocations.get();
+    }
+
+    public long getPasses() {
+        return passes.get();
+    }
+
+    // Lists the members and every shard's candidates once, from then on the recursive watch keeps them up to date.
+    // The watch is added before the listings, so nothing created in between is missed.
+    private void syncIndexes() throws KeeperException, InterruptedException {
+        if (!shardWatchAdded) {
+            zooKeeper.addWatch(SHARDS_ROOT, shardWatcher, AddWatchMode.PERSISTENT_RECURSIVE);
+            shardWatchAdded = true;
+        }
+        indexesStale = false;
+        membersStale = true;
+        for (int shard = 0; shard < shardCount; shard++) {
+            String shardPath = SHARD_PREFIX + shard;
+            candidateIndexes[shard].reset(() -> zooKeeper.getChildren(shardPath, false));
+        }
+    }
+
+    // updates the indexes on the zookeeper event thread, only a change of the members needs a rebalance
+    private void onShardEvent(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None) {
+            if (event.getState() == Event.KeeperState.Expired) {
+                revokeAll();
+            }
+            if (event.getState() != Event.KeeperState.SyncConnected) {
+                indexesStale = true;
+            }
+            return;
+        }
+
+        String path = event.getPath();
+        String parent = path.substring(0, path.lastIndexOf('/'));
+        String name = childName(path);
+        boolean created = event.getType() == Event.EventType.NodeCreated;
+        boolean deleted = event.getType() == Event.EventType.NodeDeleted;
+
+        if (parent.equals(MEMBERS_ZNODE)) {
+            // a member joined, left or its load changed, our own load changes are nothing new to us
+            if (!name.equals(memberZnodeName) || !event.getType().equals(Event.EventType.NodeDataChanged)) {
+                membersStale = true;
+                submitRebalance();
+            }
+            return;
+        }
+        if (!created && !deleted) {
+            return;
+        }
+
+        int shard = shardOf(parent);
+        if (shard >= 0) {
+            if (created) {
+                candidateIndexes[shard].add(name);
+            } else {
+                candidateIndexes[shard].remove(name);
+            }
+        }
+    }
+
+    private void submitRebalance() {
+        if (eventExecutor != null) {
+            // a queued rebalance looks at every shard anyway, no need to queue a second one.
+            // It is retried rather than dropped, a lost rebalance can leave shards without a leader
+            eventExecutor.submitRetrying(ClusterEventExecutor.Lane.ELECTION, rebalanceQueued,
+                    "shard rebalance", this::reelectLeader);
+            return;
+        }
+        try {
+            reelectLeader();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // the shard number of a shard znode path, -1 for anything else
+    private int shardOf(String shardPath) {
+        if (!shardPath.startsWith(SHARD_PREFIX)) {
+            return -1;
+        }
+        try {
+            int shard = Integer.parseInt(shardPath.substring(SHARD_PREFIX.length()));
+            return shard < shardCount ? shard : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void createPersistent(String path) throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.create(path, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // another node created it first
+        }
+    }
+
+    private static String childName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    // a candidate again in every shard, and a member, in the same order as volunteerForLeadership()
+    @Override
+    public synchronized List<Op> recreateOperations() {
+        if (memberZnodeName == null) {
+            return Collections.emptyList();
+        }
+        List<Op> operations = new ArrayList<>(shardCount + 1);
+        for (int shard = 0; shard < shardCount; shard++) {
+            operations.add(Op.create(SHARD_PREFIX + shard + "/c_", new byte[]{},
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+        }
+        operations.add(Op.create(MEMBERS_ZNODE + "/m_", encodeLoad(0), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+        return operations;
+    }
+
+    // Takes the new znodes and rebalances, the shards come back to us as the others pass them on
+    @Override
+    public void rebind(ZooKeeper zooKeeper, List<OpResult> results) throws KeeperException, InterruptedException {
+        synchronized (this) {
+            this.zooKeeper = zooKeeper;
+            // in case the Expired event never reached us
+            revokeAll();
+            shardWatchAdded = false;
+            indexesStale = true;
+            membersStale = true;
+            if (results.isEmpty()) {
+                return;
+            }
+            for (int shard = 0; shard < shardCount; shard++) {
+                candidateZnodeNames[shard] = childName(((OpResult.CreateResult) results.get(shard)).getPath());
+                watchedPredecessors.set(shard, null);
+            }
+            memberZnodeName = childName(((OpResult.CreateResult) results.get(shardCount)).getPath());
+        }
+        submitRebalance();
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        // one of our predecessors left
+        if (event.getType() == Event.EventType.NodeDeleted) {
+            String path = event.getPath();
+            int shard = shardOf(path.substring(0, path.lastIndexOf('/')));
+            if (shard >= 0) {
+                candidateIndexes[shard].remove(childName(path));
+                watchedPredecessors.compareAndSet(shard, childName(path), null);
+            }
+            submitRebalance();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ShardedLeaderElection{shards=" + shardCount + ", live nodes=" + getLiveNodes() + ", quota=" + getQuota()
+                + ", leading=" + leadShards + ", assignments=" + getAssignments() + ", revocations=" + getRevocations()
+                + ", passes=" + getPasses() + "}";
+    }
+}
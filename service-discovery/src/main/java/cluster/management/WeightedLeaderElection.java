@@ -0,0 +1,439 @@
+package cluster.management;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A leader election where the candidate with the highest priority (a capacity score, e.g. the number of cores) wins,
+// instead of the one that volunteered first as in LeaderElectionIntegrated.
+//
+// The priority is part of the candidate znode name, w_<9999 - priority>_<sequence>, so the CandidateIndex sorts the
+// candidates best first without reading any data, and every candidate still watches only its predecessor:
+// a candidate leaving wakes up a single other candidate, there is no herd effect.
+// The candidate znode data holds the priority as well, for tools that inspect the election.
+//
+// Since the best candidate can join after a leader was elected, leadership is held through a separate ephemeral
+// LEADER_ZNODE rather than by being first. The first candidate (and only that one) watches it:
+//  - when it is gone, the first candidate creates it and leads
+//  - when its holder is worse by more than the preemption margin, the first candidate writes a preemption request
+//    into it. The leader steps down once it led for at least the minimum tenure: it stops leading (onWorker())
+//    and then deletes the znode, so there is never more than one leader
+// A candidate that is better but not by the margin waits for the leader to leave, so candidates of about the same
+// capacity never take leadership from each other back and forth.
+//
+// Leader znode data: short candidate name length, candidate name, int priority,
+//                    short length of the candidate that asked the leader to step down (0 if none), its name
+public class WeightedLeaderElection implements Watcher, RecoverableComponent {
+    private static final String ELECTION_NAMESPACE = "/election_weighted";
+    private static final String LEADER_ZNODE = "/election_weighted_leader";
+    public static final int MAX_PRIORITY = 9999;
+    // a challenger must be at least 25% better to take leadership from a running leader
+    public static final double DEFAULT_PREEMPTION_MARGIN = 0.25;
+    public static final long DEFAULT_MIN_TENURE_MILLIS = 30_000;
+
+    // replaced by rebind() when the session expired and was recovered
+    private volatile ZooKeeper zooKeeper;
+    private final OnElectionCAllback onElectionCAllback;
+    private final int priority;
+    private final double preemptionMargin;
+    private final long minTenureNanos;
+
+    // when not null, re-elections (and the callbacks they invoke) run on its ELECTION lane
+    private final ClusterEventExecutor eventExecutor;
+    private final AtomicBoolean reelectionQueued = new AtomicBoolean(false);
+    // wakes us up when a leader's tenure is over
+    private final ScheduledExecutorService scheduler;
+
+    // best candidate first, fed by a persistent recursive watch on the election znode
+    private final CandidateIndex candidateIndex = new CandidateIndex(WeightedLeaderElection::keyOf);
+    private final Watcher candidateWatcher = this::onCandidateEvent;
+    private volatile boolean candidateWatchAdded = false;
+    private volatile boolean candidateIndexStale = true;
+
+    // guarded by this
+    private String currentZnodeName;
+    private boolean worker = false;
+    private long electedNanos;
+    private ScheduledFuture<?> tenureTimer = null;
+
+    private volatile boolean leader = false;
+
+    private final AtomicLong elections = new AtomicLong();
+    private final AtomicLong preemptionsRequested = new AtomicLong();
+    private final AtomicLong stepDowns = new AtomicLong();
+
+    public WeightedLeaderElection(ZooKeeper zooKeeper, OnElectionCAllback onElectionCAllback, int priority) {
+        this(zooKeeper, onElectionCAllback, priority, DEFAULT_PREEMPTION_MARGIN, DEFAULT_MIN_TENURE_MILLIS, null);
+    }
+
+    public WeightedLeaderElection(ZooKeeper zooKeeper, OnElectionCAllback onElectionCAllback, int priority,
+                                  double preemptionMargin, long minTenureMillis, ClusterEventExecutor eventExecutor) {
+        if (priority < 0 || priority > MAX_PRIORITY) {
+            throw new IllegalArgumentException("priority must be between 0 and " + MAX_PRIORITY);
+        }
+        if (preemptionMargin < 0) {
+            throw new IllegalArgumentException("preemptionMargin must not be negative");
+        }
+        this.zooKeeper = zooKeeper;
+        this.onElectionCAllback = onElectionCAllback;
+        this.priority = priority;
+        this.preemptionMargin = preemptionMargin;
+        this.minTenureNanos = TimeUnit.MILLISECONDS.toNanos(minTenureMillis);
+        this.eventExecutor = eventExecutor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "weighted-election");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized void volunteerForLeadership() throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.create(ELECTION_NAMESPACE, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // another candidate created it first
+        }
+
+        String znodePrefix = String.format("%s/w_%04d_", ELECTION_NAMESPACE, MAX_PRIORITY - priority);
+        String znodeFullPath = zooKeeper.create(znodePrefix,
+                ByteBuffer.allocate(4).putInt(priority).array(),
+                ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.EPHEMERAL_SEQUENTIAL);
+
+        System.out.println("znode name " + znodeFullPath + " with priority " + priority);
+        this.currentZnodeName = znodeFullPath.replace(ELECTION_NAMESPACE + "/", "");
+        candidateIndex.add(currentZnodeName);
+    }
+
+    public synchronized void reelectLeader() throws KeeperException, InterruptedException {
+        if (currentZnodeName == null) {
+            return;
+        }
+        if (candidateIndexStale) {
+            syncCandidateIndex();
+        }
+
+        if (leader) {
+            // a leader keeps leading until it is asked to step down or its session goes away
+            checkPreemptionRequest();
+            if (leader) {
+                return;
+            }
+        }
+
+        while (true) {
+            String predecessorZnodeName = candidateIndex.predecessorOf(currentZnodeName);
+            if (predecessorZnodeName == null) {
+                // we are the best candidate, the leader znode tells us whether we lead
+                if (contendForLeadership()) {
+                    return;
+                }
+                continue;
+            }
+
+            if (zooKeeper.exists(ELECTION_NAMESPACE + "/" + predecessorZnodeName, this) != null) {
+                becomeWorker();
+                System.out.println("Watching znode " + predecessorZnodeName);
+                return;
+            }
+            // the index hasn't seen this deletion yet
+            candidateIndex.remove(predecessorZnodeName);
+        }
+    }
+
+    // Only called on the best candidate. Returns false if the leader znode changed under us and we have to look again.
+    private boolean contendForLeadership() throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.create(LEADER_ZNODE, encodeLeader(currentZnodeName, priority, null),
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        } catch (KeeperException.NodeExistsException e) {
+            return challengeLeader();
+        }
+
+        System.out.println("I am the leader");
+        leader = true;
+        worker = false;
+        electedNanos = System.nanoTime();
+        elections.incrementAndGet();
+        // from now on we watch the leader znode for preemption requests
+        if (zooKeeper.exists(LEADER_ZNODE, this) == null) {
+            // our session expired right after the create, the next event brings us back here
+            leader = false;
+            return true;
+        }
+        this.onElectionCAllback.onElectedToBeLeader();
+        return true;
+    }
+
+    // another candidate leads: we wait for it to leave, and ask it to step down if we are better by the margin
+    private boolean challengeLeader() throws KeeperException, InterruptedException {
+        Stat leaderStat = new Stat();
+        byte[] data;
+        try {
+            data = zooKeeper.getData(LEADER_ZNODE, this, leaderStat);
+        } catch (KeeperException.NoNodeException e) {
+            return false;
+        }
+        becomeWorker();
+
+        LeaderRecord incumbent = decodeLeader(data);
+        if (incumbent.preemptedBy != null || priority <= incumbent.priority * (1 + preemptionMargin)) {
+            System.out.println("Following leader " + incumbent.candidate + " with priority " + incumbent.priority);
+            return true;
+        }
+
+        try {
+            zooKeeper.setData(LEADER_ZNODE, encodeLeader(incumbent.candidate, incumbent.priority, currentZnodeName),
+                    leaderStat.getVersion());
+        } catch (KeeperException.BadVersionException | KeeperException.NoNodeException e) {
+            // the leader changed meanwhile
+            return false;
+        }
+        preemptionsRequested.incrementAndGet();
+        System.out.println("Asked leader " + incumbent.candidate + " with priority " + incumbent.priority + " to step down");
+        return true;
+    }
+
+    // on the leader, after the leader znode changed
+    private void checkPreemptionRequest() throws KeeperException, InterruptedException {
+        Stat leaderStat = new Stat();
+        LeaderRecord record;
+        try {
+            record = decodeLeader(zooKeeper.getData(LEADER_ZNODE, this, leaderStat));
+        } catch (KeeperException.NoNodeException e) {
+            record = null;
+        }
+        if (record == null || !record.candidate.equals(currentZnodeName)) {
+            // only our session going away should delete our leader znode, but we can't lead without it
+            System.out.println("Lost the leader znode");
+            stepDown();
+            return;
+        }
+        if (record.preemptedBy == null) {
+            return;
+        }
+
+        if (zooKeeper.exists(ELECTION_NAMESPACE + "/" + record.preemptedBy, false) == null) {
+            // the challenger left, forget about its request
+            try {
+                zooKeeper.setData(LEADER_ZNODE, encodeLeader(currentZnodeName, priority, null), leaderStat.getVersion());
+            } catch (KeeperException.BadVersionException e) {
+                // a newer request arrived, its event brings us back here
+            }
+            return;
+        }
+
+        long remainingNanos = electedNanos + minTenureNanos - System.nanoTime();
+        if (remainingNanos > 0) {
+            if (tenureTimer == null) {
+                tenureTimer = scheduler.schedule(this::submitReelection, remainingNanos, TimeUnit.NANOSECONDS);
+            }
+            return;
+        }
+
+        System.out.println("Stepping down for " + record.preemptedBy);
+        stepDown();
+        try {
+            zooKeeper.delete(LEADER_ZNODE, leaderStat.getVersion());
+        } catch (KeeperException.NoNodeException | KeeperException.BadVersionException e) {
+            // gone already, or changed: the events bring everybody back to a re-election
+        }
+    }
+
+    private void stepDown() {
+        leader = false;
+        stepDowns.incrementAndGet();
+        if (tenureTimer != null) {
+            tenureTimer.cancel(false);
+            tenureTimer = null;
+        }
+        becomeWorker();
+    }
+
+    private void becomeWorker() {
+        if (!worker) {
+            worker = true;
+            this.onElectionCAllback.onWorker();
+        }
+    }
+
+    private void submitReelection() {
+        if (eventExecutor != null) {
+            // retried rather than dropped, a lost re-election leaves the cluster without a leader
+            eventExecutor.submitRetrying(ClusterEventExecutor.Lane.ELECTION, reelectionQueued,
+                    "weighted re-election", this::reelectLeader);
+            return;
+        }
+        try {
+            reelectLeader();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public boolean isLeader() {
+        return leader;
+    }
+
+    // a candidate again with the same priority, the expired session took our place with it
+    @Override
+    public synchronized List<Op> recreateOperations() {
+        if (currentZnodeName == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(Op.create(String.format("%s/w_%04d_", ELECTION_NAMESPACE, MAX_PRIORITY - priority),
+                ByteBuffer.allocate(4).putInt(priority).array(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+    }
+
+    // Takes the new candidate znode and runs a re-election. A leader lost the leader znode with its session,
+    // so it goes through onWorker() unless it wins again
+    @Override
+    public synchronized void rebind(ZooKeeper zooKeeper, List<OpResult> results) {
+        this.zooKeeper = zooKeeper;
+        leader = false;
+        if (tenureTimer != null) {
+            tenureTimer.cancel(false);
+            tenureTimer = null;
+        }
+        candidateWatchAdded = false;
+        candidateIndexStale = true;
+        if (results.isEmpty()) {
+            return;
+        }
+        String znodeFullPath = ((OpResult.CreateResult) results.get(0)).getPath();
+        System.out.println("znode name " + znodeFullPath + " with priority " + priority);
+        this.currentZnodeName = znodeFullPath.replace(ELECTION_NAMESPACE + "/", "");
+        submitReelection();
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public CandidateIndex getCandidateIndex() {
+        return candidateIndex;
+    }
+
+    public long getElections() {
+        return elections.get();
+    }
+
+    public long getPreemptionsRequested() {
+        return preemptionsRequested.get();
+    }
+
+    public long getStepDowns() {
+        return stepDowns.get();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    // same listing and following as LeaderElectionIntegrated, see syncCandidateIndex() there
+    private void syncCandidateIndex() throws KeeperException, InterruptedException {
+        if (!candidateWatchAdded) {
+            zooKeeper.addWatch(ELECTION_NAMESPACE, candidateWatcher, AddWatchMode.PERSISTENT_RECURSIVE);
+            candidateWatchAdded = true;
+        }
+        candidateIndexStale = false;
+        candidateIndex.reset(() -> zooKeeper.getChildren(ELECTION_NAMESPACE, false));
+    }
+
+    private void onCandidateEvent(WatchedEvent event) {
+        switch (event.getType()) {
+            case None:
+                if (event.getState() != Event.KeeperState.SyncConnected) {
+                    candidateIndexStale = true;
+                }
+                break;
+
+            case NodeCreated:
+                candidateIndex.add(childName(event.getPath()));
+                break;
+
+            case NodeDeleted:
+                candidateIndex.remove(childName(event.getPath()));
+                break;
+        }
+    }
+
+    private static String childName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    // w_<rank>_<sequence>: the rank (9999 - priority) first, then the sequence, -1 for anything else
+    static long keyOf(String znodeName) {
+        if (znodeName.length() != 17 || !znodeName.startsWith("w_") || znodeName.charAt(6) != '_') {
+            return -1;
+        }
+        long rank = 0;
+        for (int i = 2; i < 6; i++) {
+            char digit = znodeName.charAt(i);
+            if (digit < '0' || digit > '9') {
+                return -1;
+            }
+            rank = rank * 10 + (digit - '0');
+        }
+        long sequence = CandidateIndex.sequenceOf(znodeName);
+        return sequence < 0 ? -1 : rank * 10_000_000_000L + sequence;
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        switch (event.getType()) {
+            // our predecessor or the leader left, or the leader znode got a preemption request
+            case NodeDeleted:
+            case NodeDataChanged:
+                submitReelection();
+                break;
+        }
+    }
+
+    private static final class LeaderRecord {
+        private final String candidate;
+        private final int priority;
+        private final String preemptedBy;
+
+        private LeaderRecord(String candidate, int priority, String preemptedBy) {
+            this.candidate = candidate;
+            this.priority = priority;
+            this.preemptedBy = preemptedBy;
+        }
+    }
+
+    private static byte[] encodeLeader(String candidate, int priority, String preemptedBy) {
+        byte[] candidateBytes = candidate.getBytes(StandardCharsets.UTF_8);
+        byte[] preemptedByBytes = preemptedBy == null ? new byte[0] : preemptedBy.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + candidateBytes.length + 4 + 2 + preemptedByBytes.length)
+                .putShort((short) candidateBytes.length)
+                .put(candidateBytes)
+                .putInt(priority)
+                .putShort((short) preemptedByBytes.length)
+                .put(preemptedByBytes)
+                .array();
+    }
+
+    private static LeaderRecord decodeLeader(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        byte[] candidate = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(candidate);
+        int priority = buffer.getInt();
+        byte[] preemptedBy = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(preemptedBy);
+        return new LeaderRecord(new String(candidate, StandardCharsets.UTF_8), priority,
+                preemptedBy.length == 0 ? null : new String(preemptedBy, StandardCharsets.UTF_8));
+    }
+}
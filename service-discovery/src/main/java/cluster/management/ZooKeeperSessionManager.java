@@ -0,0 +1,499 @@
+package cluster.management;
+
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One zookeeper session per ensemble for the whole JVM, shared by every coordination component
+// (election, registry, checkpoint...) instead of each of them connecting on its own:
+// one connection and one heartbeat stream against the ensemble, and a component that starts after the first one
+// gets a session that is already connected.
+//
+// The manager is the session's default watcher:
+// - connection events drive the session state machine, CONNECTING -> CONNECTED <-> DISCONNECTED -> EXPIRED / CLOSED,
+//   which components follow with a SessionStateListener instead of each handling KeeperState on its own
+// - node events of watches set with the default watcher (exists(path, true), addWatch(path, mode)...) are
+//   dispatched by path to the components registered with addPathWatcher() / addSubtreeWatcher(),
+//   so the server keeps a single watch per path however many components are interested in it.
+//   watchSubtree() / unwatchSubtree() also add and remove the persistent recursive watch itself.
+//   Like zookeeper does for explicit watchers, the registered components also get the connection events.
+// Watches set with an explicit Watcher object keep going straight to that object, as before.
+// Dispatching happens on the zookeeper event thread, watchers hand slow work over (see ClusterEventExecutor).
+//
+// With enableRecovery() an expired session is not the end: EXPIRED -> RECONNECTING -> CONNECTED.
+// We open a new session, retrying with an exponential backoff, re-create the ephemeral znodes of the
+// RecoverableComponents in one multi() and rebind them to the new session, and only then report CONNECTED.
+// The per path tables and the listeners carry over, the watches themselves are re-set by the components.
+public class ZooKeeperSessionManager implements Watcher, AutoCloseable {
+
+    public enum State {
+        CONNECTING,
+        CONNECTED,
+        DISCONNECTED,
+        EXPIRED,
+        RECONNECTING,
+        CLOSED
+    }
+
+    public interface SessionStateListener {
+        void onSessionStateChanged(State previousState, State newState);
+    }
+
+    // connect string -> shared session, see acquire()
+    private static final Map<String, ZooKeeperSessionManager> sessions = new HashMap<>();
+
+    private final String connectString;
+    private final int sessionTimeout;
+    // replaced when an expired session is recovered, the events of the previous ones are ignored
+    private volatile ZooKeeper zooKeeper;
+    private State state = State.CONNECTING;
+    private int references = 0;
+
+    // see enableRecovery(), 0 when an expired session stays expired
+    private long initialBackoffMillis = 0;
+    private long maxBackoffMillis = 0;
+    private final List<RecoverableComponent> recoverableComponents = new CopyOnWriteArrayList<>();
+    private Thread recoveryThread = null;
+    private final AtomicLong recoveries = new AtomicLong();
+    private final AtomicLong failedRecoveryAttempts = new AtomicLong();
+    private volatile double lastRecoveryMillis = -1;
+
+    private final List<SessionStateListener> stateListeners = new CopyOnWriteArrayList<>();
+    // path -> components notified of the events on that path
+    private final Map<String, CopyOnWriteArrayList<Watcher>> pathWatchers = new ConcurrentHashMap<>();
+    // path -> components notified of the events on that path and everything below it
+    private final Map<String, CopyOnWriteArrayList<Watcher>> subtreeWatchers = new ConcurrentHashMap<>();
+
+    private ZooKeeperSessionManager(String connectString, int sessionTimeout) throws IOException {
+        this.connectString = connectString;
+        this.sessionTimeout = sessionTimeout;
+        this.zooKeeper = newZooKeeper();
+    }
+
+    // the handle's events only count as long as it is the current one
+    private ZooKeeper newZooKeeper() throws IOException {
+        ZooKeeper[] handle = new ZooKeeper[1];
+        handle[0] = new ZooKeeper(connectString, sessionTimeout, event -> {
+            if (handle[0] == null || handle[0] == zooKeeper) {
+                process(event);
+            }
+        });
+        return handle[0];
+    }
+
+    // The shared session of this ensemble, connecting it on the first call.
+    // Every acquire() has to be matched by a release(), the session is closed with the last one.
+    // A session that expired or was closed is replaced by a new one
+    public static ZooKeeperSessionManager acquire(String connectString, int sessionTimeout) throws IOException {
+        synchronized (sessions) {
+            ZooKeeperSessionManager session = sessions.get(connectString);
+            if (session == null || session.isTerminated()) {
+                session = new ZooKeeperSessionManager(connectString, sessionTimeout);
+                sessions.put(connectString, session);
+            } else if (session.sessionTimeout != sessionTimeout) {
+                System.out.println("Sharing the session to " + connectString + " with its timeout of "
+                        + session.sessionTimeout + " ms instead of " + sessionTimeout + " ms");
+            }
+            session.references++;
+            return session;
+        }
+    }
+
+    // A session of its own, outside the shared ones, for a JVM that plays several nodes (benchmarks, tests).
+    // It is closed by close()
+    public static ZooKeeperSessionManager open(String connectString, int sessionTimeout) throws IOException {
+        ZooKeeperSessionManager session = new ZooKeeperSessionManager(connectString, sessionTimeout);
+        session.references = 1;
+        return session;
+    }
+
+    // open() and wait for the session, for the callers that have nothing to do before it is up, like the benchmarks.
+    // Closes the session and throws if it didn't connect within sessionTimeout
+    public static ZooKeeperSessionManager openConnected(String connectString, int sessionTimeout)
+            throws IOException, InterruptedException {
+        ZooKeeperSessionManager session = open(connectString, sessionTimeout);
+        if (!session.awaitConnected(sessionTimeout)) {
+            session.close();
+            throw new IOException("could not connect to " + connectString + " within " + sessionTimeout + " ms");
+        }
+        return session;
+    }
+
+    public void release() {
+        synchronized (sessions) {
+            if (--references > 0) {
+                return;
+            }
+            sessions.remove(connectString, this);
+        }
+        close();
+    }
+
+    // the current session, components that keep it have to implement RecoverableComponent to get the next one
+    public ZooKeeper getZooKeeper() {
+        return zooKeeper;
+    }
+
+    // Reopen the session when it expires instead of leaving the node out of the cluster,
+    // waiting initialBackoffMillis after a failed attempt, then twice as long every time up to maxBackoffMillis
+    public synchronized void enableRecovery(long initialBackoffMillis, long maxBackoffMillis) {
+        if (initialBackoffMillis <= 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("expected 0 < initialBackoffMillis <= maxBackoffMillis");
+        }
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public void addRecoverableComponent(RecoverableComponent component) {
+        recoverableComponents.add(component);
+    }
+
+    public void removeRecoverableComponent(RecoverableComponent component) {
+        recoverableComponents.remove(component);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    // an expired session we are recovering is not terminated
+    private synchronized boolean isTerminated() {
+        return state == State.CLOSED || (state == State.EXPIRED && recoveryThread == null);
+    }
+
+    // returns false if the session is not connected after timeoutMillis, or can't be anymore
+    public synchronized boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (state != State.CONNECTED) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0 || isTerminated()) {
+                return false;
+            }
+            wait(remainingMillis);
+        }
+        return true;
+    }
+
+    // the listener is told the current state right away
+    public void addSessionStateListener(SessionStateListener listener) {
+        State currentState;
+        synchronized (this) {
+            stateListeners.add(listener);
+            currentState = state;
+        }
+        listener.onSessionStateChanged(currentState, currentState);
+    }
+
+    public void removeSessionStateListener(SessionStateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    // the watcher gets the default watcher's events for this exact path until it is removed,
+    // re-arming a one-shot watch (exists(path, true)...) after it fired is still up to the component.
+    // Adding the same watcher twice has no effect, it still gets every event once
+    public void addPathWatcher(String path, Watcher watcher) {
+        pathWatchers.computeIfAbsent(path, key -> new CopyOnWriteArrayList<>()).addIfAbsent(watcher);
+    }
+
+    public void removePathWatcher(String path, Watcher watcher) {
+        remove(pathWatchers, path, watcher);
+    }
+
+    // like addPathWatcher() for the path and all its descendants, what a PERSISTENT_RECURSIVE watch reports
+    public void addSubtreeWatcher(String path, Watcher watcher) {
+        subtreeWatchers.computeIfAbsent(path, key -> new CopyOnWriteArrayList<>()).addIfAbsent(watcher);
+    }
+
+    public void removeSubtreeWatcher(String path, Watcher watcher) {
+        remove(subtreeWatchers, path, watcher);
+    }
+
+    // addSubtreeWatcher() plus the persistent recursive watch on the current session. The server keeps one
+    // watch for the path however many components follow it, adding it again is a no-op.
+    // After a recovery the new session has no watches, the component calls it again from its rebind()
+    public void watchSubtree(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        synchronized (subtreeWatchers) {
+            // the table first, so no event of the new watch finds it empty
+            addSubtreeWatcher(path, watcher);
+            zooKeeper.addWatch(path, AddWatchMode.PERSISTENT_RECURSIVE);
+        }
+    }
+
+    // the watch is only removed from the server with the last component following the path
+    public void unwatchSubtree(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        synchronized (subtreeWatchers) {
+            removeSubtreeWatcher(path, watcher);
+            if (subtreeWatchers.containsKey(path) || pathWatchers.containsKey(path)) {
+                return;
+            }
+            try {
+                zooKeeper.removeAllWatches(path, WatcherType.Any, true);
+            } catch (KeeperException.NoWatcherException e) {
+                // the session that had it expired
+            }
+        }
+    }
+
+    private static void remove(Map<String, CopyOnWriteArrayList<Watcher>> watchers, String path, Watcher watcher) {
+        watchers.computeIfPresent(path, (key, pathList) -> {
+            pathList.remove(watcher);
+            return pathList.isEmpty() ? null : pathList;
+        });
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None) {
+            if (onConnectionEvent(event.getState())) {
+                dispatchConnectionEvent(event);
+            }
+            return;
+        }
+        dispatch(event);
+    }
+
+    // every registered component once, whatever the number of paths it follows
+    private void dispatchConnectionEvent(WatchedEvent event) {
+        Set<Watcher> watchers = new LinkedHashSet<>();
+        for (List<Watcher> pathList : pathWatchers.values()) {
+            watchers.addAll(pathList);
+        }
+        for (List<Watcher> pathList : subtreeWatchers.values()) {
+            watchers.addAll(pathList);
+        }
+        for (Watcher watcher : watchers) {
+            deliver(watcher, event);
+        }
+    }
+
+    // one lookup for the exact path, then one per ancestor for the subtree watchers
+    private void dispatch(WatchedEvent event) {
+        String path = event.getPath();
+        List<Watcher> watchers = pathWatchers.get(path);
+        if (watchers != null) {
+            for (Watcher watcher : watchers) {
+                deliver(watcher, event);
+            }
+        }
+        if (subtreeWatchers.isEmpty()) {
+            return;
+        }
+        String ancestor = path;
+        while (true) {
+            watchers = subtreeWatchers.get(ancestor);
+            if (watchers != null) {
+                for (Watcher watcher : watchers) {
+                    deliver(watcher, event);
+                }
+            }
+            if (ancestor.equals("/")) {
+                return;
+            }
+            int lastSlash = ancestor.lastIndexOf('/');
+            ancestor = lastSlash == 0 ? "/" : ancestor.substring(0, lastSlash);
+        }
+    }
+
+    // one faulty component must not stop the others from getting the event
+    private static void deliver(Watcher watcher, WatchedEvent event) {
+        try {
+            watcher.process(event);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // returns false for the events of a session we are still recovering, the components hear about it in rebind()
+    private boolean onConnectionEvent(Event.KeeperState keeperState) {
+        synchronized (this) {
+            if (state == State.RECONNECTING) {
+                // the recovery thread follows the new session on its own, it reports CONNECTED once the
+                // components are rebound
+                notifyAll();
+                return false;
+            }
+        }
+        switch (keeperState) {
+            case SyncConnected:
+            case ConnectedReadOnly:
+                moveTo(State.CONNECTED);
+                break;
+            case Disconnected:
+                moveTo(State.DISCONNECTED);
+                break;
+            case Expired:
+                moveTo(State.EXPIRED);
+                startRecovery();
+                break;
+            case Closed:
+                moveTo(State.CLOSED);
+                break;
+            default:
+                // authentication events don't change the state of the session
+                break;
+        }
+        return true;
+    }
+
+    private void moveTo(State newState) {
+        State previousState;
+        synchronized (this) {
+            previousState = state;
+            // nothing comes back from a closed session, and an expired one only through the recovery
+            if (previousState == newState || previousState == State.CLOSED
+                    || (previousState == State.EXPIRED && newState != State.RECONNECTING && newState != State.CLOSED)
+                    || (previousState == State.RECONNECTING && newState != State.CONNECTED && newState != State.CLOSED)) {
+                return;
+            }
+            state = newState;
+            notifyAll();
+        }
+        System.out.println("Zookeeper session to " + connectString + " : " + previousState + " -> " + newState);
+        for (SessionStateListener listener : stateListeners) {
+            listener.onSessionStateChanged(previousState, newState);
+        }
+    }
+
+    private synchronized void startRecovery() {
+        if (initialBackoffMillis == 0 || recoveryThread != null || state != State.EXPIRED) {
+            return;
+        }
+        recoveryThread = new Thread(this::recover, "zookeeper-session-recovery");
+        recoveryThread.setDaemon(true);
+        recoveryThread.start();
+    }
+
+    // on the recovery thread: a new session, then the znodes and the components, retried until it all worked
+    private void recover() {
+        long expiredNanos = System.nanoTime();
+        moveTo(State.RECONNECTING);
+        long backoffMillis = initialBackoffMillis;
+        try {
+            while (getState() == State.RECONNECTING) {
+                try {
+                    if (recoverOnce()) {
+                        recoveries.incrementAndGet();
+                        lastRecoveryMillis = (System.nanoTime() - expiredNanos) / 1e6;
+                        synchronized (this) {
+                            recoveryThread = null;
+                        }
+                        moveTo(State.CONNECTED);
+                        System.out.println(String.format("Recovered the expired zookeeper session in %.1f ms as 0x%s",
+                                lastRecoveryMillis, Long.toHexString(zooKeeper.getSessionId())));
+                        return;
+                    }
+                } catch (KeeperException | IOException e) {
+                    System.out.println("Session recovery attempt failed : " + e);
+                }
+                failedRecoveryAttempts.incrementAndGet();
+                // spread the retries of the nodes that expired together, so they don't all hit the ensemble at once
+                Thread.sleep(backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1));
+                backoffMillis = Math.min(maxBackoffMillis, backoffMillis * 2);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                if (recoveryThread == Thread.currentThread()) {
+                    recoveryThread = null;
+                }
+            }
+        }
+    }
+
+    // returns false if the new session could not connect within a session timeout
+    private boolean recoverOnce() throws IOException, KeeperException, InterruptedException {
+        // a session that didn't make it through the previous attempt may have created znodes, closing it drops them
+        ZooKeeper previous = zooKeeper;
+        zooKeeper = newZooKeeper();
+        previous.close();
+        ZooKeeper current = zooKeeper;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sessionTimeout);
+        synchronized (this) {
+            while (!current.getState().isConnected()) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0 || state != State.RECONNECTING) {
+                    return false;
+                }
+                wait(remainingMillis);
+            }
+        }
+
+        // every component's znodes in one transaction, the node is back everywhere or nowhere
+        List<RecoverableComponent> components = new ArrayList<>(recoverableComponents);
+        List<Op> operations = new ArrayList<>();
+        int[] firstOperation = new int[components.size() + 1];
+        for (int i = 0; i < components.size(); i++) {
+            firstOperation[i] = operations.size();
+            operations.addAll(components.get(i).recreateOperations());
+        }
+        firstOperation[components.size()] = operations.size();
+        List<OpResult> results = operations.isEmpty() ? Collections.emptyList() : current.multi(operations);
+
+        for (int i = 0; i < components.size(); i++) {
+            components.get(i).rebind(current, results.subList(firstOperation[i], firstOperation[i + 1]));
+        }
+        return true;
+    }
+
+    public long getRecoveries() {
+        return recoveries.get();
+    }
+
+    public long getFailedRecoveryAttempts() {
+        return failedRecoveryAttempts.get();
+    }
+
+    // from the expiry to the end of the recovery, -1 until a session was recovered
+    public double getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    // closes the session whatever the number of references, release() is the normal way out.
+    // Doesn't throw InterruptedException, so the manager can be a try-with-resources resource:
+    // if we are interrupted while the client closes, the interrupt flag is set again for the caller
+    @Override
+    public void close() {
+        Thread currentRecovery;
+        synchronized (this) {
+            currentRecovery = recoveryThread;
+        }
+        if (currentRecovery != null) {
+            currentRecovery.interrupt();
+        }
+        try {
+            zooKeeper.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the client doesn't always deliver the Closed event once close() returned
+        moveTo(State.CLOSED);
+    }
+
+    @Override
+    public String toString() {
+        return "ZooKeeperSessionManager{" + connectString + ", session=0x" + Long.toHexString(zooKeeper.getSessionId())
+                + ", state=" + getState() + ", pathWatchers=" + pathWatchers.size()
+                + ", subtreeWatchers=" + subtreeWatchers.size() + ", references=" + references
+                + ", recoveries=" + getRecoveries() + ", failedRecoveryAttempts=" + getFailedRecoveryAttempts() + "}";
+    }
+}